@@ -0,0 +1,71 @@
+package nl.group9.firestore.unit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of converting document data to the export format, and of writing the exported tree as JSON and YAML.
+ * <p>
+ * No Firestore client (nor a stand-in) is involved: the document data is generated, so only the conversion of the
+ * values and the JSON and YAML generators are measured, not the listing and reading of documents.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExportBenchmark {
+
+    @Param({"10", "50"})
+    public int width;
+
+    /**
+     * Collections and nested maps; each level multiplies the number of documents by the width, so width 50 and
+     * depth 3 already generate over 127,000 documents
+     */
+    @Param({"1", "2"})
+    public int depth;
+
+    private SyntheticTree tree;
+    private FirestoreExporter exporter;
+
+    @Setup
+    public void setup() {
+        tree = SyntheticTree.generate(width, depth);
+        exporter = new FirestoreExporter(null, FirestoreUnit.options(), FirestoreUnit.JSON_MAPPER);
+    }
+
+    @Benchmark
+    public void exportValues(Blackhole blackhole) {
+        for (Map<String, Object> document : tree.documents()) {
+            blackhole.consume(exporter.exportValue(document));
+        }
+    }
+
+    @Benchmark
+    public void writeJson() throws IOException {
+        FirestoreUnit.JSON_MAPPER.writeValue(OutputStream.nullOutputStream(), tree.reference());
+    }
+
+    @Benchmark
+    public void writeYaml() throws IOException {
+        FirestoreUnit.YAML_MAPPER.writeValue(OutputStream.nullOutputStream(), tree.reference());
+    }
+}
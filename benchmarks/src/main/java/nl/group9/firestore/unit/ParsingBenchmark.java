@@ -0,0 +1,71 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of reading reference files: into a tree for JSON and YAML, and streamed document by document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParsingBenchmark {
+
+    @Param({"10", "50"})
+    public int width;
+
+    /**
+     * Collections and nested maps; each level multiplies the number of documents by the width, so width 50 and
+     * depth 3 already generate over 127,000 documents
+     */
+    @Param({"1", "2"})
+    public int depth;
+
+    private byte[] json;
+    private byte[] yaml;
+
+    @Setup
+    public void setup() throws IOException {
+        SyntheticTree tree = SyntheticTree.generate(width, depth);
+        json = FirestoreUnit.JSON_MAPPER.writeValueAsBytes(tree.reference());
+        yaml = FirestoreUnit.YAML_MAPPER.writeValueAsBytes(tree.reference());
+    }
+
+    @Benchmark
+    public JsonNode readTreeJson() throws IOException {
+        return FirestoreUnit.JSON_MAPPER.readTree(json);
+    }
+
+    @Benchmark
+    public JsonNode readTreeYaml() throws IOException {
+        return FirestoreUnit.YAML_MAPPER.readTree(yaml);
+    }
+
+    @Benchmark
+    public void streamJson(Blackhole blackhole) throws IOException {
+        try (JsonParser parser = FirestoreUnit.JSON_MAPPER.createParser(json)) {
+            new StreamingReferenceReader().read(parser, (path, fields) -> {
+                blackhole.consume(fields);
+                return true;
+            });
+        }
+    }
+}
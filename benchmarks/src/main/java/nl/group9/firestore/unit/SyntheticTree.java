@@ -0,0 +1,119 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.cloud.Timestamp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A generated tree of documents, both as the data Firestore returns for them and as reference tree in the export
+ * format. The tree takes the place of a Firestore database, so the benchmarks run in-process and are repeatable.
+ * <p>
+ * Each collection contains <code>width</code> documents, and each document has a sub collection up to
+ * <code>depth</code> levels. Each document has about <code>width</code> fields of all supported types, an array of
+ * <code>width</code> elements, and a map nested <code>depth</code> levels deep.
+ * </p>
+ */
+final class SyntheticTree {
+
+    private static final long EPOCH_SECONDS = 1_711_109_594L;
+
+    private final List<String> paths = new ArrayList<>();
+    private final List<Map<String, Object>> documents = new ArrayList<>();
+    private final ObjectNode reference;
+    private final FirestoreExporter exporter;
+    private final int width;
+    private final int depth;
+
+    private SyntheticTree(int width, int depth) {
+        this.width = width;
+        this.depth = depth;
+        // The exporter only converts values here, it does not access Firestore
+        this.exporter = new FirestoreExporter(null, FirestoreUnit.options(), FirestoreUnit.JSON_MAPPER);
+        this.reference = FirestoreUnit.JSON_MAPPER.createObjectNode();
+        collection(reference.putObject("_bench"), "bench", 1);
+    }
+
+    /**
+     * Generate a tree
+     * @param width The number of documents per collection and fields per document
+     * @param depth The number of levels of collections and of nested maps
+     * @return The tree
+     */
+    static SyntheticTree generate(int width, int depth) {
+        return new SyntheticTree(width, depth);
+    }
+
+    /**
+     * @return The paths of the documents, in the order of the reference tree
+     */
+    List<String> paths() {
+        return paths;
+    }
+
+    /**
+     * @return The data of the documents, as returned by <code>DocumentSnapshot.getData()</code>
+     */
+    List<Map<String, Object>> documents() {
+        return documents;
+    }
+
+    /**
+     * @return The reference tree, in the export format
+     */
+    ObjectNode reference() {
+        return reference;
+    }
+
+    private void collection(ObjectNode node, String path, int level) {
+        for (int i = 0; i < width; i++) {
+            String documentPath = path + "/doc" + i;
+            Map<String, Object> data = document(i);
+            paths.add(documentPath);
+            documents.add(data);
+
+            ObjectNode documentNode = node.putObject("doc" + i);
+            documentNode.setAll((ObjectNode) exporter.exportValue(data));
+            if (level < depth) {
+                collection(documentNode.putObject("_sub"), documentPath + "/sub", level + 1);
+            }
+        }
+    }
+
+    private Map<String, Object> document(int seed) {
+        Map<String, Object> data = new HashMap<>();
+        for (int i = 0; i < width; i++) {
+            switch (i % 5) {
+                case 0 -> data.put("text" + i, "Text value " + seed + "-" + i);
+                case 1 -> data.put("long" + i, (long) seed * i);
+                case 2 -> data.put("double" + i, seed + i / 8.0);
+                case 3 -> data.put("boolean" + i, (seed + i) % 2 == 0);
+                default -> data.put("timestamp" + i, Timestamp.ofTimeSecondsAndNanos(EPOCH_SECONDS + seed * 60L + i, 123_000_000));
+            }
+        }
+        data.put("array", array(seed));
+        data.put("map", map(seed, depth));
+        return data;
+    }
+
+    private List<Object> array(int seed) {
+        List<Object> array = new ArrayList<>(width);
+        for (int i = 0; i < width; i++) {
+            array.add(i % 2 == 0 ? (Object) ((long) seed + i) : "element" + i);
+        }
+        return array;
+    }
+
+    private Map<String, Object> map(int seed, int levels) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("text", "Nested " + seed + "-" + levels);
+        map.put("long", (long) levels);
+        if (levels > 1) {
+            map.put("map", map(seed, levels - 1));
+        }
+        return map;
+    }
+}
@@ -0,0 +1,100 @@
+package nl.group9.firestore.unit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static nl.group9.firestore.unit.ValidationPlan.DocumentPlan;
+import static nl.group9.firestore.unit.ValidationPlan.MapValue;
+
+/**
+ * Benchmarks of compiling a reference tree and comparing the compiled documents with the document data, with strict
+ * and lax array ordering.
+ * <p>
+ * No Firestore client (nor a stand-in) is involved: the document data is generated, so only the compilation and the
+ * comparator are measured, not the reads, the read limiter or the retries of a validation.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidationBenchmark {
+
+    private static final ZoneId ZONE = ZoneId.of("UTC");
+    private static final ValueComparator.MismatchSink FAIL = mismatch -> {
+        throw new IllegalStateException("Unexpected mismatch " + mismatch.message());
+    };
+
+    @Param({"10", "50"})
+    public int width;
+
+    /**
+     * Collections and nested maps; each level multiplies the number of documents by the width, so width 50 and
+     * depth 3 already generate over 127,000 documents
+     */
+    @Param({"1", "2"})
+    public int depth;
+
+    private SyntheticTree tree;
+    private List<MapValue> expected;
+    private ValueComparator strictComparator;
+    private ValueComparator laxComparator;
+    private ValueComparator countedLaxComparator;
+
+    @Setup
+    public void setup() {
+        tree = SyntheticTree.generate(width, depth);
+        expected = new ArrayList<>();
+        for (DocumentPlan document : ValidationPlan.compile(tree.reference(), ZONE).documents()) {
+            expected.add(new MapValue(document.path(), document.fields()));
+        }
+        strictComparator = new ValueComparator(FirestoreUnit.options());
+        laxComparator = new ValueComparator(FirestoreUnit.options().withLaxArrayOrdering());
+        countedLaxComparator = new ValueComparator(FirestoreUnit.options().withCountedLaxArrayOrdering());
+    }
+
+    @Benchmark
+    public ValidationPlan compile() {
+        return ValidationPlan.compile(tree.reference(), ZONE);
+    }
+
+    @Benchmark
+    public void compareStrict(Blackhole blackhole) {
+        compare(strictComparator, blackhole);
+    }
+
+    @Benchmark
+    public void compareLax(Blackhole blackhole) {
+        compare(laxComparator, blackhole);
+    }
+
+    @Benchmark
+    public void compareCountedLax(Blackhole blackhole) {
+        compare(countedLaxComparator, blackhole);
+    }
+
+    private void compare(ValueComparator comparator, Blackhole blackhole) {
+        List<Map<String, Object>> documents = tree.documents();
+        for (int i = 0; i < documents.size(); i++) {
+            blackhole.consume(comparator.compareValue(expected.get(i), documents.get(i), FAIL));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package nl.group9.firestore.unit;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.BulkWriter;
+import com.google.cloud.firestore.WriteResult;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Internal helpers for the writes of a {@link BulkWriter}, shared by loading and deleting documents
+ */
+final class BulkWrites {
+
+    private BulkWrites() {}
+
+    /**
+     * Keep the first failure of a write, without waiting for it
+     * @param write The result of the write
+     * @param failure Receives the first failure of the writes it is passed to
+     */
+    static void track(ApiFuture<WriteResult> write, AtomicReference<Throwable> failure) {
+        ApiFutures.addCallback(write, new ApiFutureCallback<WriteResult>() {
+            @Override
+            public void onFailure(Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+
+            @Override
+            public void onSuccess(WriteResult result) {
+                // Nothing to do
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Close a bulk writer, waiting for its pending writes
+     * @param bulkWriter The bulk writer
+     */
+    static void close(BulkWriter bulkWriter) {
+        try {
+            bulkWriter.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
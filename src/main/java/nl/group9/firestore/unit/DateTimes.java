@@ -0,0 +1,138 @@
+package nl.group9.firestore.unit;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAccessor;
+
+/**
+ * Internal helper to convert between the ISO 8601 date/time texts of the reference files and Firestore timestamps.
+ */
+final class DateTimes {
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ISO_DATE_TIME;
+    private static final int SECONDS_PER_DAY = 86_400;
+
+    private DateTimes() {}
+
+    /**
+     * Parse a date/time text. Texts without zone information are interpreted in the given zone.
+     * @param text The text to parse
+     * @param zoneId The zone for texts without zone information
+     * @return The instant, or null when the text is not a date/time
+     */
+    static Instant parse(String text, ZoneId zoneId) {
+        if (!mayBeDateTime(text)) {
+            return null;
+        }
+
+        try {
+            TemporalAccessor parseResult = FORMATTER.parseBest(text, ZonedDateTime::from, LocalDateTime::from);
+            if (parseResult instanceof LocalDateTime localDateTime) {
+                return localDateTime.atZone(zoneId).toInstant();
+            }
+            return ((ZonedDateTime) parseResult).toInstant();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Format a timestamp in the given zone. The result is identical to formatting the corresponding
+     * {@link ZonedDateTime} with {@link DateTimeFormatter#ISO_DATE_TIME}, without creating either of them.
+     * @param seconds The seconds since the epoch
+     * @param nanos The nanoseconds within the second
+     * @param zoneId The zone to format in
+     * @return The formatted date/time
+     */
+    static String format(long seconds, int nanos, ZoneId zoneId) {
+        ZoneOffset offset = zoneId instanceof ZoneOffset zoneOffset
+                ? zoneOffset
+                : zoneId.getRules().getOffset(Instant.ofEpochSecond(seconds, nanos));
+        long localSeconds = seconds + offset.getTotalSeconds();
+        LocalDate date = LocalDate.ofEpochDay(Math.floorDiv(localSeconds, SECONDS_PER_DAY));
+        int secondOfDay = (int) Math.floorMod(localSeconds, SECONDS_PER_DAY);
+
+        StringBuilder builder = new StringBuilder(40);
+        appendYear(builder, date.getYear());
+        builder.append('-');
+        appendTwoDigits(builder, date.getMonthValue());
+        builder.append('-');
+        appendTwoDigits(builder, date.getDayOfMonth());
+        builder.append('T');
+        appendTwoDigits(builder, secondOfDay / 3600);
+        builder.append(':');
+        appendTwoDigits(builder, secondOfDay / 60 % 60);
+        builder.append(':');
+        appendTwoDigits(builder, secondOfDay % 60);
+        appendFraction(builder, nanos);
+        builder.append(offset.getId());
+        if (!(zoneId instanceof ZoneOffset)) {
+            builder.append('[').append(zoneId.getId()).append(']');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Quick check to avoid parsing texts which can never be a date/time. The formatter parses case-insensitively, so
+     * the time separator may be a lowercase 't' as well.
+     */
+    private static boolean mayBeDateTime(String text) {
+        if (text.length() < 16) {
+            return false;
+        }
+        char first = text.charAt(0);
+        if (first == '+' || first == '-') {
+            // Year with sign, leave it to the parser
+            return true;
+        }
+        char separator = text.charAt(10);
+        return text.charAt(4) == '-' && (separator == 'T' || separator == 't');
+    }
+
+    private static void appendYear(StringBuilder builder, int year) {
+        if (year > 9999) {
+            builder.append('+');
+        } else if (year < 0) {
+            builder.append('-');
+            year = -year;
+        }
+        if (year < 1000) {
+            builder.append(year < 10 ? "000" : year < 100 ? "00" : "0");
+        }
+        builder.append(year);
+    }
+
+    private static void appendTwoDigits(StringBuilder builder, int value) {
+        if (value < 10) {
+            builder.append('0');
+        }
+        builder.append(value);
+    }
+
+    /**
+     * Append the fraction of the second, without trailing zeros; nothing is appended for a whole second
+     */
+    private static void appendFraction(StringBuilder builder, int nanos) {
+        if (nanos == 0) {
+            return;
+        }
+
+        int digits = 9;
+        while (nanos % 10 == 0) {
+            nanos /= 10;
+            digits--;
+        }
+        String fraction = Integer.toString(nanos);
+        builder.append('.');
+        for (int i = fraction.length(); i < digits; i++) {
+            builder.append('0');
+        }
+        builder.append(fraction);
+    }
+}
@@ -0,0 +1,137 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.cloud.firestore.Firestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * A state of a tree of documents to compare using
+ * {@link FirestoreUnit#diff(FirestoreUnit.Options, DiffSource, DiffSource, java.util.function.Consumer)}. A source
+ * can be a tree in Firestore, an exported file or an exported tree in memory. Documents which are skipped or do not
+ * define any fields are not part of the state, the same as when validating.
+ */
+public abstract class DiffSource {
+
+    DiffSource() {
+    }
+
+    /**
+     * A document tree in Firestore, read the same way as for an export
+     * @param firestore The firestore instance to read from
+     * @param options The options for reading, e.g. the page size
+     * @param path The path of the document to start from
+     * @return The source
+     */
+    public static DiffSource firestore(Firestore firestore, FirestoreUnit.Options options, String path) {
+        return new FirestoreDiffSource(firestore, options, path);
+    }
+
+    /**
+     * A JSON file, in the format of an export
+     * @param file The file
+     * @return The source
+     */
+    public static DiffSource json(File file) {
+        return new ParsedDiffSource(() -> FirestoreUnit.JSON_MAPPER.createParser(file));
+    }
+
+    /**
+     * A YAML file, in the format of an export
+     * @param file The file
+     * @return The source
+     */
+    public static DiffSource yaml(File file) {
+        return new ParsedDiffSource(() -> FirestoreUnit.YAML_MAPPER.createParser(file));
+    }
+
+    /**
+     * A binary snapshot, written by {@link FirestoreUnit#exportSnapshot(Firestore, FirestoreUnit.Options, String, File)}.
+     * Documents requested by path are looked up in the index of the snapshot.
+     * @param file The file
+     * @return The source
+     */
+    public static DiffSource snapshot(File file) {
+        return new SnapshotDiffSource(file);
+    }
+
+    /**
+     * A tree in memory, in the format of an export
+     * @param tree The root of the tree
+     * @return The source
+     */
+    public static DiffSource tree(JsonNode tree) {
+        return new ParsedDiffSource(() -> tree.traverse(FirestoreUnit.JSON_MAPPER));
+    }
+
+    /**
+     * Read all documents of the source. The source may be read more than once.
+     * @param handler The handler for the documents
+     * @throws IOException When the source cannot be read
+     */
+    abstract void documents(StreamingReferenceReader.DocumentHandler handler) throws IOException;
+
+    /**
+     * Read the documents with the given paths. Documents which do not exist are not passed to the handler.
+     * @param paths The paths of the documents
+     * @param handler The handler for the documents
+     * @throws IOException When the source cannot be read
+     */
+    void documents(Set<String> paths, StreamingReferenceReader.DocumentHandler handler) throws IOException {
+        documents((path, fields) -> !paths.contains(path) || handler.document(path, fields));
+    }
+
+    /**
+     * Creates a new parser for each read
+     */
+    @FunctionalInterface
+    private interface ParserFactory {
+        JsonParser create() throws IOException;
+    }
+
+    /**
+     * A source in the export format, which is streamed from a new parser for each read
+     */
+    private static class ParsedDiffSource extends DiffSource {
+        private final ParserFactory parserFactory;
+
+        ParsedDiffSource(ParserFactory parserFactory) {
+            this.parserFactory = parserFactory;
+        }
+
+        @Override
+        void documents(StreamingReferenceReader.DocumentHandler handler) throws IOException {
+            try (JsonParser parser = parserFactory.create()) {
+                new StreamingReferenceReader().read(parser, handler);
+            }
+        }
+    }
+
+    /**
+     * A binary snapshot, which is opened again for each read
+     */
+    private static class SnapshotDiffSource extends DiffSource {
+        private final File file;
+
+        SnapshotDiffSource(File file) {
+            this.file = file;
+        }
+
+        @Override
+        void documents(StreamingReferenceReader.DocumentHandler handler) throws IOException {
+            try (SnapshotReader reader = SnapshotReader.open(file)) {
+                reader.documents(path -> true, handler);
+            }
+        }
+
+        @Override
+        void documents(Set<String> paths, StreamingReferenceReader.DocumentHandler handler) throws IOException {
+            try (SnapshotReader reader = SnapshotReader.open(file)) {
+                reader.documents(paths::contains, handler);
+            }
+        }
+    }
+}
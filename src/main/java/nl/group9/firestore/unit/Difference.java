@@ -0,0 +1,42 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A single difference between two states of a tree of documents, as found by
+ * {@link FirestoreUnit#diff(FirestoreUnit.Options, DiffSource, DiffSource, java.util.function.Consumer)}. Values use
+ * the export format.
+ * @param path The path of the document, or of the field within the document (e.g. collection/document/map/field)
+ * @param kind The kind of difference
+ * @param oldValue The value in the old state: the fields of a removed document, the removed or changed field, or null
+ * @param newValue The value in the new state: the fields of an added document, the added or changed field, or null
+ */
+public record Difference(String path, Kind kind, JsonNode oldValue, JsonNode newValue) {
+
+    /**
+     * The kinds of differences
+     */
+    public enum Kind {
+        /**
+         * The document only exists in the new state
+         */
+        DOCUMENT_ADDED,
+        /**
+         * The document only exists in the old state
+         */
+        DOCUMENT_REMOVED,
+        /**
+         * The field only exists in the new state of the document or map
+         */
+        FIELD_ADDED,
+        /**
+         * The field only exists in the old state of the document or map
+         */
+        FIELD_REMOVED,
+        /**
+         * The field has a different value. Maps are compared field by field; other values, including arrays, are
+         * reported as a whole.
+         */
+        FIELD_CHANGED
+    }
+}
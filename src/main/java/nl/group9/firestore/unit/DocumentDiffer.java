@@ -0,0 +1,106 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Internal class to compare two states of a document tree. The comparison is hash first:
+ * <ol>
+ *     <li>The old state is read once, keeping only a fingerprint per document.</li>
+ *     <li>The new state is read once. Documents with an unknown path are added, documents with the same fingerprint
+ *     are unchanged and skipped. Only the fields of changed documents are kept.</li>
+ *     <li>The changed and removed documents are read again from the old state, and compared field by field.</li>
+ * </ol>
+ * The time is linear in the number of documents. The memory used is a fingerprint per document of the old state,
+ * plus the new fields of the changed documents; unchanged documents are never kept.
+ */
+class DocumentDiffer {
+
+    private final ZoneId zoneId;
+    private final Consumer<Difference> patch;
+
+    DocumentDiffer(FirestoreUnit.Options options, Consumer<Difference> patch) {
+        this.zoneId = options.getZoneId();
+        this.patch = patch;
+    }
+
+    /**
+     * Compare two states, passing the differences to the patch consumer as they are found
+     * @param from The old state
+     * @param to The new state
+     * @throws IOException When a source cannot be read
+     */
+    void diff(DiffSource from, DiffSource to) throws IOException {
+        Map<String, byte[]> fingerprints = new HashMap<>();
+        from.documents((path, fields) -> {
+            fingerprints.put(path, Fingerprint.of(fields, zoneId));
+            return true;
+        });
+
+        Map<String, ObjectNode> changed = new HashMap<>();
+        to.documents((path, fields) -> {
+            byte[] fingerprint = fingerprints.remove(path);
+            if (fingerprint == null) {
+                patch.accept(new Difference(path, Difference.Kind.DOCUMENT_ADDED, null, fields));
+            } else if (!Arrays.equals(fingerprint, Fingerprint.of(fields, zoneId))) {
+                changed.put(path, fields);
+            }
+            return true;
+        });
+
+        // The remaining fingerprints are the documents which were removed
+        Set<String> paths = new HashSet<>(fingerprints.keySet());
+        fingerprints.clear();
+        paths.addAll(changed.keySet());
+        if (paths.isEmpty()) {
+            return;
+        }
+
+        from.documents(paths, (path, fields) -> {
+            ObjectNode newFields = changed.remove(path);
+            if (newFields == null) {
+                patch.accept(new Difference(path, Difference.Kind.DOCUMENT_REMOVED, fields, null));
+            } else {
+                diffFields(path, fields, newFields);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Compare the fields of a document or map. Maps are compared field by field, other values as a whole.
+     */
+    private void diffFields(String parentPath, JsonNode oldFields, JsonNode newFields) {
+        for (Iterator<Map.Entry<String, JsonNode>> it = oldFields.fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> field = it.next();
+            String path = parentPath + "/" + field.getKey();
+            JsonNode oldValue = field.getValue();
+            JsonNode newValue = newFields.get(field.getKey());
+
+            if (newValue == null) {
+                patch.accept(new Difference(path, Difference.Kind.FIELD_REMOVED, oldValue, null));
+            } else if (oldValue.isObject() && newValue.isObject()) {
+                diffFields(path, oldValue, newValue);
+            } else if (!Arrays.equals(Fingerprint.of(oldValue, zoneId), Fingerprint.of(newValue, zoneId))) {
+                patch.accept(new Difference(path, Difference.Kind.FIELD_CHANGED, oldValue, newValue));
+            }
+        }
+
+        for (Iterator<Map.Entry<String, JsonNode>> it = newFields.fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> field = it.next();
+            if (!oldFields.has(field.getKey())) {
+                patch.accept(new Difference(parentPath + "/" + field.getKey(), Difference.Kind.FIELD_ADDED, null, field.getValue()));
+            }
+        }
+    }
+}
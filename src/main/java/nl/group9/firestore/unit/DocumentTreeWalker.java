@@ -0,0 +1,227 @@
+package nl.group9.firestore.unit;
+
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Internal class to walk a tree of documents and collections in Firestore, using listCollections() and
+ * listDocuments(). The documents of a collection are listed in pages of the configured size.
+ * <p>
+ * With a parallelism larger than 1, each document and each collection is handled by a separate task on a pool of
+ * that size. The pool has a bounded work queue; when it is full, the task which discovered the new work runs it
+ * itself. This pauses the listing until the pool catches up, so memory stays bounded for collections of any size.
+ * </p>
+ * @param <T> The type of the state kept per document or collection, e.g. the node to export to
+ */
+class DocumentTreeWalker<T> {
+
+    private final Visitor<T> visitor;
+    private final int parallelism;
+    private final int pageSize;
+    private final ProgressListener progressListener;
+    private final AtomicLong documentsVisited = new AtomicLong();
+    private final Retrier retrier;
+
+    /**
+     * Callback for the documents and collections found while walking the tree
+     * @param <T> The type of the state kept per document or collection
+     */
+    interface Visitor<T> {
+
+        /**
+         * Visit a document. Called before the collections of the document are listed.
+         * @param document The document
+         * @param state The state of the document
+         */
+        void visitDocument(DocumentReference document, T state);
+
+        /**
+         * Create the state for a collection of a document. Called on the task which lists the collections, in the
+         * order in which they are listed.
+         * @param parent The state of the parent document
+         * @param collection The collection
+         * @return The state of the collection
+         */
+        T enterCollection(T parent, CollectionReference collection);
+
+        /**
+         * Create the state for a document in a collection. Called on the task which lists the documents, in the order
+         * in which they are listed.
+         * @param parent The state of the parent collection
+         * @param document The document
+         * @return The state of the document
+         */
+        T enterDocument(T parent, DocumentReference document);
+    }
+
+    DocumentTreeWalker(Visitor<T> visitor, FirestoreUnit.Options options) {
+        this.visitor = visitor;
+        this.parallelism = options.getExportParallelism();
+        this.pageSize = options.getPageSize();
+        this.progressListener = options.getProgressListener();
+        this.retrier = new Retrier(options);
+    }
+
+    /**
+     * Walk the tree starting at a document, including the document itself
+     * @param document The document to start at
+     * @param state The state of the document
+     */
+    void walkDocument(DocumentReference document, T state) {
+        if (parallelism > 1) {
+            walkParallel(tracker -> walkDocument(document, state, tracker));
+        } else {
+            walkDocument(document, state, null);
+        }
+    }
+
+    /**
+     * Walk the tree starting at a collection
+     * @param collection The collection to start at
+     * @param state The state of the collection
+     */
+    void walkCollection(CollectionReference collection, T state) {
+        if (parallelism > 1) {
+            walkParallel(tracker -> walkCollection(collection, state, tracker));
+        } else {
+            walkCollection(collection, state, null);
+        }
+    }
+
+    private void walkParallel(Consumer<TaskTracker> start) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                parallelism, parallelism,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(pageSize, parallelism)),
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+        try {
+            TaskTracker tracker = new TaskTracker(pool);
+            tracker.submit(() -> start.accept(tracker));
+            tracker.await();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Visit a document and its collections. The state of each child is created by the task which lists it, before
+     * the task walking the child is submitted. This results in the same order as a sequential walk, while each state
+     * is only modified by a single task at a time.
+     */
+    private void walkDocument(DocumentReference document, T state, TaskTracker tracker) {
+        visitor.visitDocument(document, state);
+        long visited = documentsVisited.incrementAndGet();
+        if (progressListener != null) {
+            progressListener.documentVisited(document.getPath(), visited);
+        }
+
+        retrier.iterable(document::listCollections).forEach(collection -> {
+            T collectionState = visitor.enterCollection(state, collection);
+            run(tracker, () -> walkCollection(collection, collectionState, tracker));
+        });
+    }
+
+    /**
+     * List the documents of a collection page by page. The states of the documents of a page are created in the
+     * order in which they are listed, after which a task per document is submitted. When the work queue is full, the
+     * submitting task runs the document itself, which pauses the listing.
+     */
+    private void walkCollection(CollectionReference collection, T state, TaskTracker tracker) {
+        Iterator<DocumentReference> documents = retrier.iterable(collection::listDocuments).iterator();
+        List<DocumentReference> page = new ArrayList<>(pageSize);
+        List<T> pageStates = new ArrayList<>(pageSize);
+        while (documents.hasNext()) {
+            while (page.size() < pageSize && documents.hasNext()) {
+                DocumentReference document = documents.next();
+                page.add(document);
+                pageStates.add(visitor.enterDocument(state, document));
+            }
+
+            for (int i = 0; i < page.size(); i++) {
+                DocumentReference document = page.get(i);
+                T documentState = pageStates.get(i);
+                run(tracker, () -> walkDocument(document, documentState, tracker));
+            }
+            page.clear();
+            pageStates.clear();
+        }
+    }
+
+    private void run(TaskTracker tracker, Runnable task) {
+        if (tracker == null) {
+            task.run();
+        } else {
+            tracker.submit(task);
+        }
+    }
+
+    /**
+     * Keeps track of the tasks of a parallel walk. Tasks may submit new tasks; {@link #await()} returns once all
+     * tasks, including the ones submitted while waiting, are finished. The number of RPCs in flight is bounded by the
+     * number of threads of the executor, as each task performs its calls blocking.
+     */
+    private static class TaskTracker {
+        private final Executor executor;
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        TaskTracker(Executor executor) {
+            this.executor = executor;
+        }
+
+        void submit(Runnable task) {
+            pending.incrementAndGet();
+            executor.execute(() -> {
+                try {
+                    if (failure.get() == null) {
+                        task.run();
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    finished();
+                }
+            });
+        }
+
+        void await() {
+            finished();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+
+            Throwable t = failure.get();
+            if (t instanceof RuntimeException e) {
+                throw e;
+            } else if (t instanceof Error e) {
+                throw e;
+            } else if (t != null) {
+                throw new RuntimeException(t);
+            }
+        }
+
+        private void finished() {
+            if (pending.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+
+import static nl.group9.firestore.unit.ValidationPlan.*;
+
+/**
+ * Internal helper to compute SHA-256 fingerprints. The fingerprint of a value in the export format is computed over
+ * its canonical form, so two values have the same fingerprint when they represent the same Firestore value: the order
+ * of the fields of maps is ignored, and date/time texts are compared as instants, so the zone used for an export does
+ * not matter. The fingerprint of a compiled document identifies what the document is validated against.
+ */
+final class Fingerprint {
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private Fingerprint() {}
+
+    /**
+     * Compute the fingerprint of a value
+     * @param value The value, e.g. the fields of a document
+     * @param zoneId The zone for date/time texts without zone information
+     * @return The fingerprint
+     */
+    static byte[] of(JsonNode value, ZoneId zoneId) {
+        MessageDigest digest = digest();
+        update(digest, value, zoneId);
+        return digest.digest();
+    }
+
+    /**
+     * Compute the fingerprint of a compiled document, including the options which affect the comparison
+     * @param document The compiled document
+     * @param options The options of the validation
+     * @return The fingerprint as hexadecimal text
+     */
+    static String of(DocumentPlan document, FirestoreUnit.Options options) {
+        MessageDigest digest = digest();
+        digest.update((byte) (options.isStrictArrayOrdering() ? 1 : 0));
+        digest.update((byte) (options.isCountedLaxArrayOrdering() ? 1 : 0));
+        updateFields(digest, document.fields());
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, JsonNode value, ZoneId zoneId) {
+        if (value == null || value.isNull() || value.isMissingNode()) {
+            digest.update((byte) 'N');
+        } else if (value.isBoolean()) {
+            digest.update((byte) 'B');
+            digest.update((byte) (value.booleanValue() ? 1 : 0));
+        } else if (value.isFloatingPointNumber()) {
+            digest.update((byte) 'D');
+            updateLong(digest, Double.doubleToLongBits(value.asDouble()));
+        } else if (value.isIntegralNumber()) {
+            digest.update((byte) 'L');
+            updateLong(digest, value.asLong());
+        } else if (value.isTextual()) {
+            Instant instant = DateTimes.parse(value.textValue(), zoneId);
+            if (instant == null) {
+                digest.update((byte) 'S');
+                updateText(digest, value.textValue());
+            } else {
+                digest.update((byte) 'T');
+                updateLong(digest, instant.getEpochSecond());
+                updateLong(digest, instant.getNano());
+            }
+        } else if (value.isArray()) {
+            digest.update((byte) 'A');
+            updateLong(digest, value.size());
+            for (JsonNode element : value) {
+                update(digest, element, zoneId);
+            }
+        } else if (value.isObject()) {
+            digest.update((byte) 'M');
+            updateLong(digest, value.size());
+            List<String> names = new ArrayList<>(value.size());
+            for (Iterator<String> it = value.fieldNames(); it.hasNext(); ) {
+                names.add(it.next());
+            }
+            Collections.sort(names);
+            for (String name : names) {
+                updateText(digest, name);
+                update(digest, value.get(name), zoneId);
+            }
+        } else if (value.isBinary()) {
+            byte[] bytes = binaryValue(value);
+            digest.update((byte) 'X');
+            updateLong(digest, bytes.length);
+            digest.update(bytes);
+        } else {
+            digest.update((byte) 'O');
+            updateText(digest, value.toString());
+        }
+    }
+
+    private static void updateFields(MessageDigest digest, List<FieldPlan> fields) {
+        updateLong(digest, fields.size());
+        for (FieldPlan field : fields) {
+            updateText(digest, field.name());
+            update(digest, field.value());
+        }
+    }
+
+    private static void update(MessageDigest digest, ExpectedValue value) {
+        if (value instanceof NullValue) {
+            digest.update((byte) 'N');
+        } else if (value instanceof BooleanValue b) {
+            digest.update((byte) 'B');
+            digest.update((byte) (b.value() ? 1 : 0));
+        } else if (value instanceof DoubleValue d) {
+            digest.update((byte) 'D');
+            updateLong(digest, Double.doubleToLongBits(d.value()));
+        } else if (value instanceof LongValue l) {
+            digest.update((byte) 'L');
+            updateLong(digest, l.value());
+        } else if (value instanceof TextValue t && t.dateTime()) {
+            // The text is included as well, as it is compared as is against a text value of a document
+            digest.update((byte) 'T');
+            updateLong(digest, t.seconds());
+            updateLong(digest, t.nanos());
+            updateText(digest, t.text());
+        } else if (value instanceof TextValue t) {
+            digest.update((byte) 'S');
+            updateText(digest, t.text());
+        } else if (value instanceof MapValue m) {
+            digest.update((byte) 'M');
+            updateFields(digest, m.fields());
+        } else if (value instanceof ArrayValue a) {
+            digest.update((byte) 'A');
+            updateLong(digest, a.elements().size());
+            for (ExpectedValue element : a.elements()) {
+                update(digest, element);
+            }
+        } else if (value instanceof UnsupportedValue u) {
+            digest.update((byte) 'U');
+            updateText(digest, u.message());
+        }
+    }
+
+    private static byte[] binaryValue(JsonNode value) {
+        try {
+            return value.binaryValue();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void updateText(MessageDigest digest, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        updateLong(digest, bytes.length);
+        digest.update(bytes);
+    }
+
+    private static void updateLong(MessageDigest digest, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            digest.update((byte) (value >>> shift));
+        }
+    }
+}
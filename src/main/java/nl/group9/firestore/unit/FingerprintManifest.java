@@ -0,0 +1,122 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.cloud.Timestamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Internal record of the documents which were valid in a previous validation. Per document, the fingerprint of the
+ * expected fields and the update time of the document in Firestore are kept. A document with the same fingerprint and
+ * update time is known to be valid without comparing its fields.
+ * <p>
+ * Entries of documents which are not part of a validation are kept, so several reference files can share a manifest
+ * as long as they are not validated concurrently.
+ * </p>
+ */
+class FingerprintManifest {
+
+    private final File file;
+    private final Map<String, Entry> entries;
+
+    /**
+     * The state of a valid document
+     * @param fingerprint The fingerprint of the expected fields
+     * @param updateTime The update time of the document
+     */
+    private record Entry(String fingerprint, Timestamp updateTime) {}
+
+    private FingerprintManifest(File file, Map<String, Entry> entries) {
+        this.file = file;
+        this.entries = entries;
+    }
+
+    /**
+     * Read a manifest. A manifest which does not exist or cannot be read is empty.
+     * @param file The manifest file
+     * @return The manifest
+     */
+    static FingerprintManifest load(File file) {
+        Map<String, Entry> entries = new ConcurrentHashMap<>();
+        if (file.isFile()) {
+            try {
+                JsonNode documents = FirestoreUnit.JSON_MAPPER.readTree(file).path("documents");
+                for (Iterator<Map.Entry<String, JsonNode>> it = documents.fields(); it.hasNext(); ) {
+                    Map.Entry<String, JsonNode> document = it.next();
+                    entries.put(document.getKey(), new Entry(
+                            document.getValue().path("fingerprint").asText(),
+                            Timestamp.parseTimestamp(document.getValue().path("updateTime").asText())
+                    ));
+                }
+            } catch (IOException | DateTimeParseException e) {
+                // Start over, all documents are validated
+                entries.clear();
+            }
+        }
+        return new FingerprintManifest(file, entries);
+    }
+
+    /**
+     * Whether a document was valid for the given fingerprint
+     * @param path The path of the document
+     * @param fingerprint The fingerprint of the expected fields
+     * @return true when the document may be unchanged, its update time should be checked
+     */
+    boolean isCandidate(String path, String fingerprint) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.fingerprint().equals(fingerprint);
+    }
+
+    /**
+     * Whether a document is known to be valid
+     * @param path The path of the document
+     * @param fingerprint The fingerprint of the expected fields
+     * @param updateTime The current update time of the document, null when it does not exist
+     * @return true when the document was valid for the same fingerprint, and was not updated since
+     */
+    boolean isValid(String path, String fingerprint, Timestamp updateTime) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.fingerprint().equals(fingerprint) && entry.updateTime().equals(updateTime);
+    }
+
+    /**
+     * Record the result of the validation of a document
+     * @param path The path of the document
+     * @param fingerprint The fingerprint of the expected fields
+     * @param updateTime The update time of the validated document
+     * @param valid Whether the document was valid
+     */
+    void record(String path, String fingerprint, Timestamp updateTime, boolean valid) {
+        if (valid && updateTime != null) {
+            entries.put(path, new Entry(fingerprint, updateTime));
+        } else {
+            entries.remove(path);
+        }
+    }
+
+    /**
+     * Write the manifest to its file. Testers sharing the manifest may save it concurrently.
+     */
+    synchronized void save() {
+        ObjectNode tree = FirestoreUnit.JSON_MAPPER.createObjectNode();
+        ObjectNode documents = tree.putObject("documents");
+        new TreeMap<>(entries).forEach((path, entry) -> {
+            ObjectNode document = documents.putObject(path);
+            document.put("fingerprint", entry.fingerprint());
+            document.put("updateTime", entry.updateTime().toString());
+        });
+        try {
+            FirestoreUnit.JSON_MAPPER.writeValue(file, tree);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
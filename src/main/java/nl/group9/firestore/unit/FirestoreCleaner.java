@@ -0,0 +1,94 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.cloud.firestore.BulkWriter;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.Firestore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static nl.group9.firestore.unit.FirestoreTester.COLLECTION_PREFIX;
+
+/**
+ * Internal class to delete trees of documents from Firestore. The tree is walked the same way as for an export, and
+ * each document found is deleted using a {@link BulkWriter}.
+ */
+class FirestoreCleaner {
+
+    private final Firestore firestore;
+    private final FirestoreUnit.Options options;
+
+    FirestoreCleaner(Firestore firestore, FirestoreUnit.Options options) {
+        this.firestore = firestore;
+        this.options = options;
+    }
+
+    /**
+     * Delete all collections at the root of the reference file, including all documents and sub collections in
+     * them. Only the names of the collections are read from the reference file.
+     * @param parser The parser for the reference file
+     * @throws IOException When the reference file cannot be parsed
+     */
+    void clear(JsonParser parser) throws IOException {
+        List<CollectionReference> collections = new ArrayList<>();
+        if (parser.nextToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                if (name.startsWith(COLLECTION_PREFIX)) {
+                    collections.add(firestore.collection(name.substring(COLLECTION_PREFIX.length())));
+                }
+                parser.nextToken();
+                parser.skipChildren();
+            }
+        }
+
+        delete(walker -> collections.forEach(collection -> walker.walkCollection(collection, null)));
+    }
+
+    /**
+     * Delete a document or a collection, including all documents and collections below it
+     * @param path The path of the document or collection
+     */
+    void clearTree(String path) {
+        if (path.split("/").length % 2 == 1) {
+            delete(walker -> walker.walkCollection(firestore.collection(path), null));
+        } else {
+            delete(walker -> walker.walkDocument(firestore.document(path), null));
+        }
+    }
+
+    private void delete(Consumer<DocumentTreeWalker<Void>> walk) {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        BulkWriter bulkWriter = firestore.bulkWriter(options.getBulkWriterOptions());
+        try {
+            walk.accept(new DocumentTreeWalker<Void>(new DocumentTreeWalker.Visitor<Void>() {
+                @Override
+                public void visitDocument(DocumentReference document, Void state) {
+                    BulkWrites.track(bulkWriter.delete(document), failure);
+                }
+
+                @Override
+                public Void enterCollection(Void parent, CollectionReference collection) {
+                    return null;
+                }
+
+                @Override
+                public Void enterDocument(Void parent, DocumentReference document) {
+                    return null;
+                }
+            }, options));
+        } finally {
+            BulkWrites.close(bulkWriter);
+        }
+
+        if (failure.get() != null) {
+            throw new RuntimeException("Deleting the documents failed", failure.get());
+        }
+    }
+}
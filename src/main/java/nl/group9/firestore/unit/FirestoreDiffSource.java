@@ -0,0 +1,95 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Internal source for a diff which reads a document tree from Firestore. The tree is walked by the streaming walk of
+ * {@link FirestoreExporter}, so the documents are read in the order of an export, and only a page of documents per
+ * level is kept in memory. Like the walk, retrieving documents by path is retried according to the retry options.
+ */
+class FirestoreDiffSource extends DiffSource {
+
+    private final Firestore firestore;
+    private final FirestoreUnit.Options options;
+    private final String path;
+    private final FirestoreExporter exporter;
+    private final Retrier retrier;
+
+    FirestoreDiffSource(Firestore firestore, FirestoreUnit.Options options, String path) {
+        this.firestore = firestore;
+        this.options = options;
+        this.path = path;
+        this.exporter = new FirestoreExporter(firestore, options, FirestoreUnit.JSON_MAPPER);
+        this.retrier = new Retrier(options);
+    }
+
+    @Override
+    void documents(StreamingReferenceReader.DocumentHandler handler) throws IOException {
+        try {
+            exporter.exportTree(path, (snapshot, fields) -> {
+                if (!handle(snapshot, fields, handler)) {
+                    throw new WalkStoppedException();
+                }
+            });
+        } catch (WalkStoppedException e) {
+            // The handler does not need any further documents
+        }
+    }
+
+    @Override
+    void documents(Set<String> paths, StreamingReferenceReader.DocumentHandler handler) {
+        List<DocumentReference> page = new ArrayList<>(options.getPageSize());
+        for (Iterator<String> it = paths.iterator(); it.hasNext(); ) {
+            page.add(firestore.document(it.next()));
+            if (page.size() == options.getPageSize() || !it.hasNext()) {
+                for (DocumentSnapshot snapshot : getAll(page)) {
+                    ObjectNode fields = FirestoreUnit.JSON_MAPPER.createObjectNode();
+                    exporter.exportSnapshot(snapshot, fields);
+                    if (!handle(snapshot, fields, handler)) {
+                        return;
+                    }
+                }
+                page.clear();
+            }
+        }
+    }
+
+    /**
+     * Pass a document to the handler in the export format, unless it does not exist or has no fields
+     */
+    private static boolean handle(DocumentSnapshot snapshot, ObjectNode fields, StreamingReferenceReader.DocumentHandler handler) {
+        return fields.isEmpty() || handler.document(snapshot.getReference().getPath(), fields);
+    }
+
+    private List<DocumentSnapshot> getAll(List<DocumentReference> documents) {
+        try {
+            // Firestore.getAll() returns the snapshots in the order of the requested references
+            DocumentReference[] references = documents.toArray(new DocumentReference[0]);
+            return retrier.get(() -> firestore.getAll(references));
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Thrown from the sink to end the walk once the handler stops. It only serves to unwind the walk, so no stack trace
+     * is recorded.
+     */
+    private static class WalkStoppedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        WalkStoppedException() {
+            super("Walk stopped by the handler", null, false, false);
+        }
+    }
+}
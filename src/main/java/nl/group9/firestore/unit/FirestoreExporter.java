@@ -1,5 +1,6 @@
 package nl.group9.firestore.unit;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -8,14 +9,18 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.CollectionReference;
 import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
 
-import java.time.Instant;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 
 import static org.junit.jupiter.api.Assertions.fail;
@@ -23,15 +28,16 @@ import static org.junit.jupiter.api.Assertions.fail;
 public class FirestoreExporter {
 
     private final Firestore firestore;
-    private final DateTimeFormatter formatter;
     private final FirestoreUnit.Options options;
     private final ObjectMapper objectMapper;
+    private final AtomicLong streamedDocuments = new AtomicLong();
+    private final Retrier retrier;
 
     public FirestoreExporter(Firestore firestore, FirestoreUnit.Options options, ObjectMapper objectMapper) {
         this.firestore = firestore;
         this.options = options;
         this.objectMapper = objectMapper;
-        this.formatter = DateTimeFormatter.ISO_DATE_TIME;
+        this.retrier = new Retrier(options);
     }
 
     public ObjectNode exportDocument(String path) {
@@ -42,6 +48,111 @@ public class FirestoreExporter {
         return export(path, this::exportDocumentRecursive);
     }
 
+    /**
+     * Export the documents returned by a query. Each document is placed at its own path in the tree, so the result of
+     * a collection group query contains the documents of all matching collections. Only the fields returned by the
+     * query are exported, which allows limiting the export to a projection using {@link Query#select(String...)}.
+     * @param query The query to execute
+     * @return The root of the exported tree
+     */
+    public ObjectNode exportQuery(Query query) {
+        ObjectNode root = objectMapper.createObjectNode();
+        try {
+            for (QueryDocumentSnapshot snapshot : retrier.get(query::get)) {
+                exportSnapshot(snapshot, nodesForPath(root, snapshot.getReference().getPath()));
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+        return root;
+    }
+
+    /**
+     * Export a tree of documents directly to a generator. In contrast to {@link #exportTree(String)}, only a page of
+     * documents per level of the tree is kept in memory. The output is identical to writing the result of
+     * {@link #exportTree(String)} with the same generator.
+     * @param path The path of the document to start the export from
+     * @param generator The generator to write to
+     * @throws IOException When writing fails
+     */
+    public void exportTree(String path, JsonGenerator generator) throws IOException {
+        DocumentReference docRef = firestore.document(path);
+        String[] nodeNames = nodeNamesForPath(path);
+
+        generator.writeStartObject();
+        for (String nodeName : nodeNames) {
+            generator.writeFieldName(nodeName);
+            generator.writeStartObject();
+        }
+
+        streamDocumentRecursive(getAll(List.of(docRef)).get(0), new GeneratorSink(generator));
+
+        for (int i = 0; i < nodeNames.length; i++) {
+            generator.writeEndObject();
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * Export a tree of documents to a binary snapshot. Like {@link #exportTree(String, JsonGenerator)}, only a page of
+     * documents per level of the tree is kept in memory, and the documents are written in the same order.
+     * @param path The path of the document to start the export from
+     * @param writer The snapshot to write to
+     * @throws IOException When writing fails
+     */
+    void exportTree(String path, SnapshotWriter writer) throws IOException {
+        exportTree(path, (snapshot, fields) -> writer.write(snapshot.getReference().getPath(), fields));
+    }
+
+    /**
+     * Pass the documents of a tree to a sink, in the order of a sequential walk. Like
+     * {@link #exportTree(String, JsonGenerator)}, only a page of documents per level of the tree is kept in memory.
+     * @param path The path of the document to start the export from
+     * @param sink The sink for the documents
+     * @throws IOException When the sink fails
+     */
+    void exportTree(String path, TreeSink sink) throws IOException {
+        streamDocumentRecursive(getAll(List.of(firestore.document(path))).get(0), sink);
+    }
+
+    /**
+     * Export a collection tree directly to a generator. The collection is nested in the nodes of the path of its
+     * parent document, so the output has the same layout as a complete export containing only this collection.
+     * @param collection The collection to export
+     * @param generator The generator to write to
+     * @return The number of documents written
+     * @throws IOException When writing fails
+     */
+    long exportCollection(CollectionReference collection, JsonGenerator generator) throws IOException {
+        DocumentReference parent = collection.getParent();
+        String[] nodeNames = parent == null ? new String[0] : nodeNamesForPath(parent.getPath());
+
+        generator.writeStartObject();
+        for (String nodeName : nodeNames) {
+            generator.writeFieldName(nodeName);
+            generator.writeStartObject();
+        }
+
+        GeneratorSink sink = new GeneratorSink(generator);
+        streamCollection(collection, sink);
+
+        for (int i = 0; i < nodeNames.length; i++) {
+            generator.writeEndObject();
+        }
+        generator.writeEndObject();
+        return sink.documents;
+    }
+
+    /**
+     * Pass the documents of a collection tree to a sink, in the order of a sequential walk
+     * @param collection The collection to export
+     * @param sink The sink for the documents
+     * @throws IOException When the sink fails
+     */
+    void exportCollection(CollectionReference collection, TreeSink sink) throws IOException {
+        streamCollection(collection, sink);
+    }
+
     private ObjectNode export(String path, BiConsumer<DocumentReference, ObjectNode> exporter) {
         DocumentReference docRef = firestore.document(path);
         ObjectNode root = objectMapper.createObjectNode();
@@ -53,7 +164,16 @@ public class FirestoreExporter {
 
     }
 
-    private ObjectNode nodesForPath(ObjectNode root, String path) {
+    ObjectNode nodesForPath(ObjectNode root, String path) {
+        ObjectNode currentNode = root;
+        for (String nodeName : nodeNamesForPath(path)) {
+            currentNode = currentNode.withObject(nodeName);
+        }
+
+        return currentNode;
+    }
+
+    private String[] nodeNamesForPath(String path) {
         String[] segments = path.split("/");
         String[] nodeNames = new String[segments.length];
         for (int i = 0; i < segments.length; i++) {
@@ -63,52 +183,180 @@ public class FirestoreExporter {
                 nodeNames[i] = segments[i];
             }
         }
+        return nodeNames;
+    }
 
-        ObjectNode currentNode = root;
-        for (String nodeName : nodeNames) {
-            currentNode = currentNode.withObject(nodeName);
+    /**
+     * Receives the documents of a streamed export
+     */
+    @FunctionalInterface
+    interface TreeSink {
+
+        /**
+         * Receive a document, before the collections of the document
+         * @param snapshot The snapshot of the document
+         * @param fields The exported fields of the document
+         * @throws IOException When writing fails
+         */
+        void document(DocumentSnapshot snapshot, ObjectNode fields) throws IOException;
+
+        /**
+         * Start a collection of the current document
+         * @param id The id of the collection
+         * @throws IOException When writing fails
+         */
+        default void startCollection(String id) throws IOException {}
+
+        default void endCollection() throws IOException {}
+
+        /**
+         * Start a document of the current collection, before the document is received
+         * @param id The id of the document
+         * @throws IOException When writing fails
+         */
+        default void startDocument(String id) throws IOException {}
+
+        default void endDocument() throws IOException {}
+    }
+
+    /**
+     * Writes the streamed export as nested objects to a generator
+     */
+    private static class GeneratorSink implements TreeSink {
+        private final JsonGenerator generator;
+        private long documents;
+
+        GeneratorSink(JsonGenerator generator) {
+            this.generator = generator;
         }
 
-        return currentNode;
+        @Override
+        public void document(DocumentSnapshot snapshot, ObjectNode fields) throws IOException {
+            documents++;
+            for (Iterator<Map.Entry<String, JsonNode>> it = fields.fields(); it.hasNext(); ) {
+                Map.Entry<String, JsonNode> field = it.next();
+                generator.writeFieldName(field.getKey());
+                generator.writeTree(field.getValue());
+            }
+        }
+
+        @Override
+        public void startCollection(String id) throws IOException {
+            generator.writeFieldName(FirestoreTester.COLLECTION_PREFIX + id);
+            generator.writeStartObject();
+        }
+
+        @Override
+        public void endCollection() throws IOException {
+            generator.writeEndObject();
+        }
+
+        @Override
+        public void startDocument(String id) throws IOException {
+            generator.writeFieldName(id);
+            generator.writeStartObject();
+        }
+
+        @Override
+        public void endDocument() throws IOException {
+            generator.writeEndObject();
+        }
     }
 
-    private void exportDocumentRecursive(DocumentReference docRef, ObjectNode node) {
-        exportSingleDocument(docRef, node);
+    /**
+     * Streaming variant of {@link #exportDocumentRecursive(DocumentReference, ObjectNode)}. Passes the fields and
+     * collections of the document to the sink in the same order as a sequential walk adds them to the node tree. The
+     * documents of a collection are listed and retrieved page by page, so only a page of documents per level is kept
+     * in memory.
+     */
+    private void streamDocumentRecursive(DocumentSnapshot snapshot, TreeSink sink) throws IOException {
+        ObjectNode fields = objectMapper.createObjectNode();
+        exportSnapshot(snapshot, fields);
+        sink.document(snapshot, fields);
+        long visited = streamedDocuments.incrementAndGet();
+        if (options.getProgressListener() != null) {
+            options.getProgressListener().documentVisited(snapshot.getReference().getPath(), visited);
+        }
+
+        for (CollectionReference collection : retrier.iterable(snapshot.getReference()::listCollections)) {
+            streamCollection(collection, sink);
+        }
+    }
 
-        docRef.listCollections().forEach(collection -> {
-            var childNode = node.withObject(FirestoreTester.COLLECTION_PREFIX + collection.getId());
-            exportCollectionRecursive(collection, childNode);
-        });
+    /**
+     * List and retrieve the documents of a collection page by page, and stream each of them recursively
+     */
+    private void streamCollection(CollectionReference collection, TreeSink sink) throws IOException {
+        sink.startCollection(collection.getId());
+
+        Iterator<DocumentReference> documents = retrier.iterable(collection::listDocuments).iterator();
+        List<DocumentReference> page = new ArrayList<>(options.getPageSize());
+        while (documents.hasNext()) {
+            while (page.size() < options.getPageSize() && documents.hasNext()) {
+                page.add(documents.next());
+            }
+
+            for (DocumentSnapshot childSnapshot : getAll(page)) {
+                sink.startDocument(childSnapshot.getId());
+                streamDocumentRecursive(childSnapshot, sink);
+                sink.endDocument();
+            }
+            page.clear();
+        }
+        sink.endCollection();
+    }
+
+    private List<DocumentSnapshot> getAll(List<DocumentReference> documents) {
+        try {
+            // Firestore.getAll() returns the snapshots in the order of the requested references
+            DocumentReference[] references = documents.toArray(new DocumentReference[0]);
+            return retrier.get(() -> firestore.getAll(references));
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    private void exportCollectionRecursive(CollectionReference collection, ObjectNode node) {
-        collection.listDocuments().forEach(childDoc -> {
-            var docNode = node.withObject(childDoc.getId());
-            exportDocumentRecursive(childDoc, docNode);
-        });
+    private void exportDocumentRecursive(DocumentReference docRef, ObjectNode node) {
+        new DocumentTreeWalker<>(new DocumentTreeWalker.Visitor<ObjectNode>() {
+            @Override
+            public void visitDocument(DocumentReference document, ObjectNode documentNode) {
+                exportSingleDocument(document, documentNode);
+            }
+
+            @Override
+            public ObjectNode enterCollection(ObjectNode parent, CollectionReference collection) {
+                return parent.withObject(FirestoreTester.COLLECTION_PREFIX + collection.getId());
+            }
+
+            @Override
+            public ObjectNode enterDocument(ObjectNode parent, DocumentReference document) {
+                return parent.withObject(document.getId());
+            }
+        }, options).walkDocument(docRef, node);
     }
 
     private void exportSingleDocument(DocumentReference docRef, ObjectNode node) {
         try {
-            var snapshot = docRef.get().get();
-
-            var data = snapshot.getData();
-            if (data != null) {
-                data.forEach((key, value) -> {
-                    try {
-                        node.set(key, exportValue(value));
-                    } catch (Error e) {
-                        fail("Invalid document type encountered for document" + docRef.getPath() + " and key " + key, e);
-                    }
-                });
-            }
+            exportSnapshot(retrier.get(docRef::get), node);
         } catch (InterruptedException | ExecutionException e) {
             throw new RuntimeException(e);
         }
+    }
 
+    void exportSnapshot(DocumentSnapshot snapshot, ObjectNode node) {
+        var data = snapshot.getData();
+        if (data != null) {
+            data.forEach((key, value) -> {
+                try {
+                    node.set(key, exportValue(value));
+                } catch (Error e) {
+                    fail("Invalid document type encountered for document" + snapshot.getReference().getPath() + " and key " + key, e);
+                }
+            });
+        }
     }
 
-    private JsonNode exportValue(Object value) {
+    JsonNode exportValue(Object value) {
         JsonNodeFactory factory = objectMapper.getNodeFactory();
 
         if (value == null) {
@@ -127,9 +375,7 @@ public class FirestoreExporter {
             return factory.textNode(v);
         } else  if (value instanceof Timestamp t) {
             int nanos = (t.getNanos() / 1_000) * 1_000; // Round to milliseconds
-            ZonedDateTime dt = ZonedDateTime.ofInstant(Instant.ofEpochSecond(t.getSeconds(), nanos), options.getZoneId());
-            String dateStr = formatter.format(dt);
-            return factory.textNode(dateStr);
+            return factory.textNode(DateTimes.format(t.getSeconds(), nanos, options.getZoneId()));
         } else  if (value instanceof DocumentReference) {
             return factory.textNode(((DocumentReference) value).getPath());
         } else if (value instanceof List<?> l) {
@@ -141,6 +387,4 @@ public class FirestoreExporter {
             return null;
         }
     }
-
-
 }
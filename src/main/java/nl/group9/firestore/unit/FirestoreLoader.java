@@ -0,0 +1,100 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.Blob;
+import com.google.cloud.firestore.BulkWriter;
+import com.google.cloud.firestore.Firestore;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Internal class to load the documents of a reference file into Firestore. The reference file is read as a stream and
+ * each document is written using a {@link BulkWriter} as soon as it has been parsed.
+ */
+class FirestoreLoader {
+
+    private final Firestore firestore;
+    private final FirestoreUnit.Options options;
+
+    FirestoreLoader(Firestore firestore, FirestoreUnit.Options options) {
+        this.firestore = firestore;
+        this.options = options;
+    }
+
+    /**
+     * Load all documents from the reference file. Documents which are skipped or do not define any fields are not
+     * written, their sub collections are.
+     * @param parser The parser for the reference file
+     * @throws IOException When the reference file cannot be parsed
+     */
+    void load(JsonParser parser) throws IOException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        BulkWriter bulkWriter = firestore.bulkWriter(options.getBulkWriterOptions());
+        try {
+            new StreamingReferenceReader().read(parser, (path, fields) -> {
+                BulkWrites.track(bulkWriter.set(firestore.document(path), toDocument(fields)), failure);
+                return failure.get() == null;
+            });
+        } finally {
+            BulkWrites.close(bulkWriter);
+        }
+
+        if (failure.get() != null) {
+            throw new RuntimeException("Loading the reference data failed", failure.get());
+        }
+    }
+
+    private Map<String, Object> toDocument(JsonNode node) {
+        Map<String, Object> document = new LinkedHashMap<>();
+        for (Iterator<Map.Entry<String, JsonNode>> it = node.fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> field = it.next();
+            document.put(field.getKey(), toValue(field.getValue()));
+        }
+        return document;
+    }
+
+    /**
+     * Convert a value of the reference file to the Firestore type which it is validated against. Texts in ISO 8601
+     * date/time format are stored as timestamps, other texts (including document paths) as strings.
+     */
+    private Object toValue(JsonNode value) {
+        if (value.isNull()) {
+            return null;
+        } else if (value.isArray()) {
+            List<Object> list = new ArrayList<>(value.size());
+            value.forEach(element -> list.add(toValue(element)));
+            return list;
+        } else if (value.isBoolean()) {
+            return value.asBoolean();
+        } else if (value.isBinary()) {
+            try {
+                return Blob.fromBytes(value.binaryValue());
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Invalid binary value " + value, e);
+            }
+        } else if (value.isFloatingPointNumber()) {
+            return value.asDouble();
+        } else if (value.isIntegralNumber()) {
+            return value.asLong();
+        } else if (value.isObject()) {
+            return toDocument(value);
+        } else if (value.isTextual()) {
+            Timestamp timestamp = toTimestamp(value.asText());
+            return timestamp != null ? timestamp : value.asText();
+        }
+        throw new IllegalArgumentException("Invalid JSON Node type encountered: " + value.getNodeType());
+    }
+
+    private Timestamp toTimestamp(String text) {
+        Instant instant = DateTimes.parse(text, options.getZoneId());
+        if (instant == null) {
+            return null;
+        }
+        return Timestamp.ofTimeSecondsAndNanos(instant.getEpochSecond(), instant.getNano());
+    }
+}
@@ -1,299 +1,422 @@
 package nl.group9.firestore.unit;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
 import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
 import com.google.cloud.Timestamp;
-import com.google.cloud.firestore.CollectionReference;
 import com.google.cloud.firestore.DocumentReference;
 import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldMask;
+import com.google.cloud.firestore.FieldPath;
 import com.google.cloud.firestore.Firestore;
 import com.google.common.util.concurrent.MoreExecutors;
-import org.opentest4j.AssertionFailedError;
 
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.temporal.TemporalAccessor;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
-import java.util.function.Function;
-import java.util.stream.StreamSupport;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-import static org.junit.jupiter.api.Assertions.*;
+import static nl.group9.firestore.unit.ValidationPlan.DocumentPlan;
 
 /**
- * Internal class to perform the actual validation of the JSON tree vs the Firestore contents
+ * Internal class to perform the actual validation of the compiled reference tree vs the Firestore contents. The
+ * validation itself does not raise assertion errors; the mismatches are returned as a {@link ValidationResult}.
+ * <p>
+ * Unless all failures are collected, the validation stops at the first mismatch found: reads which were not started
+ * yet are cancelled, and later mismatches and results are ignored. The result is only taken once the reads in flight
+ * have settled.
+ * </p>
  */
 class FirestoreTester {
 
     public static final String COLLECTION_PREFIX = "_";
+    /**
+     * Maximum number of documents a streaming validation has parsed but not validated yet, whether their reads are
+     * in flight or waiting for the read limiter
+     */
+    private static final int STREAMING_WINDOW = 1000;
+
     private final Firestore firestore;
-    private final JsonNode tree;
     private final Executor executor;
-    private final DateTimeFormatter formatter;
     private final FirestoreUnit.Options options;
+    private final ValueComparator comparator;
+    private final Queue<Mismatch> mismatches;
+    private final AtomicBoolean stopped;
+    private final ValueComparator.MismatchSink sink;
+    private final FingerprintManifest manifest;
+    private final ReadLimiter reads;
+    private final Retrier retrier;
+
+    public FirestoreTester(Firestore firestore, FirestoreUnit.Options options) {
+        this(firestore, options, options.getFingerprintManifest() == null
+                ? null
+                : FingerprintManifest.load(options.getFingerprintManifest()));
+    }
 
-    public FirestoreTester(Firestore firestore, FirestoreUnit.Options options, JsonNode tree) {
+    /**
+     * Create a tester with a fingerprint manifest which is shared with other testers, e.g. for the shards of a
+     * sharded export
+     * @param firestore The firestore instance to read from
+     * @param options The options for validation
+     * @param manifest The fingerprint manifest, or null
+     */
+    FirestoreTester(Firestore firestore, FirestoreUnit.Options options, FingerprintManifest manifest) {
         this.firestore = firestore;
         this.options = options;
-        this.tree = tree;
-        this.executor = MoreExecutors.directExecutor();
-        this.formatter = DateTimeFormatter.ISO_DATE_TIME;
-    }
-
-    public void validate() {
-        try {
-            traverseCollections(firestore::collection, tree).get();
-        } catch (InterruptedException e) {
-            fail(e);
-        } catch (ExecutionException e) {
-            if (e.getCause() instanceof AssertionFailedError) {
-                throw new AssertionFailedError(e.getCause().getMessage(), e.getCause());
-            } else {
-                fail(e.getCause());
+        this.executor = options.getExecutor();
+        this.comparator = new ValueComparator(options);
+        this.manifest = manifest;
+        this.reads = new ReadLimiter(options.getMaxConcurrentReads());
+        this.retrier = new Retrier(options);
+        this.mismatches = new ConcurrentLinkedQueue<>();
+        this.stopped = new AtomicBoolean();
+        boolean collectAll = options.isCollectAllFailures();
+        this.sink = mismatch -> {
+            if (collectAll) {
+                if (stopped.get()) {
+                    return false;
+                }
+                mismatches.add(mismatch);
+                return true;
             }
-        }
+            // Only the first mismatch is reported
+            if (stopped.compareAndSet(false, true)) {
+                mismatches.add(mismatch);
+                reads.cancel(new ValidationStoppedException());
+            }
+            return false;
+        };
     }
 
-    private ApiFuture<?> validateCollection(CollectionReference collectionReference, JsonNode node) {
-        List<ApiFuture<?>> futures = new ArrayList<>();
-        for (Iterator<Map.Entry<String, JsonNode>> it = node.fields(); it.hasNext(); ) {
-            Map.Entry<String, JsonNode> fieldEntry = it.next();
+    /**
+     * Validate a compiled reference tree
+     * @param plan The compiled reference tree
+     * @return The result of the validation
+     * @throws InterruptedException When interrupted while waiting for Firestore
+     * @throws ExecutionException When retrieving data from Firestore failed
+     */
+    public ValidationResult validate(ValidationPlan plan) throws InterruptedException, ExecutionException {
+        return await(validateBatched(plan.documents()));
+    }
 
-            String documentName = fieldEntry.getKey();
-            boolean skipCurrent = false;
-            if (documentName.startsWith("_")) {
-                documentName = documentName.substring(1);
-                skipCurrent = true;
-            }
+    /**
+     * Validate a reference file while it is being parsed. The validation of each document starts as soon as it has
+     * been read, while the remainder of the file is parsed.
+     * @param parser The parser for the reference file
+     * @return The result of the validation
+     * @throws IOException When the reference file cannot be parsed
+     * @throws InterruptedException When interrupted while waiting for Firestore
+     * @throws ExecutionException When retrieving data from Firestore failed
+     */
+    public ValidationResult validate(JsonParser parser) throws IOException, InterruptedException, ExecutionException {
+        PendingValidations pending = new PendingValidations();
+        new StreamingReferenceReader().read(parser, pending::add);
+        return await(pending.finish());
+    }
 
-            DocumentReference doc = collectionReference.document(documentName);
-            futures.add(validateDocument(doc, fieldEntry.getValue(), skipCurrent));
-        }
-        return ApiFutures.allAsList(futures);
+    /**
+     * Validate a compiled reference tree without blocking
+     * @param plan The compiled reference tree
+     * @return The result of the validation, completed exceptionally when retrieving data from Firestore failed
+     */
+    public CompletableFuture<ValidationResult> validateAsync(ValidationPlan plan) {
+        return complete(validateBatched(plan.documents()));
     }
 
-    private ApiFuture<?> validateDocument(DocumentReference docRef, JsonNode node, boolean skipCurrent) {
-        ApiFuture<?> childFuture = traverseCollections(docRef::collection, node);
-        if (skipCurrent) {
-            return childFuture;
-        }
+    /**
+     * Validate a reference file while it is being parsed. The file is parsed on the calling thread; this method
+     * returns once the complete file has been read, without waiting for the remaining validations.
+     * @param parser The parser for the reference file
+     * @return The result of the validation, completed exceptionally when retrieving data from Firestore failed
+     * @throws IOException When the reference file cannot be parsed
+     */
+    public CompletableFuture<ValidationResult> validateAsync(JsonParser parser) throws IOException {
+        PendingValidations pending = new PendingValidations();
+        new StreamingReferenceReader().read(parser, pending::add);
+        return complete(pending.finish());
+    }
 
-        ApiFuture<DocumentSnapshot> docFuture = docRef.get();
-        ApiFuture<DocumentSnapshot> result = ApiFutures.transform(
-                docFuture,
-                (DocumentSnapshot snapshot) -> validateDocument(snapshot, node),
-                executor
-        );
+    private CompletableFuture<ValidationResult> complete(ApiFuture<?> validation) {
+        CompletableFuture<ValidationResult> future = new CompletableFuture<>();
+        ApiFutures.addCallback(validation, new ApiFutureCallback<Object>() {
+            @Override
+            public void onFailure(Throwable t) {
+                future.completeExceptionally(t);
+            }
 
-        return ApiFutures.allAsList(Arrays.asList(childFuture, result));
+            @Override
+            public void onSuccess(Object ignored) {
+                try {
+                    future.complete(result());
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
     }
 
-    private DocumentSnapshot validateDocument(DocumentSnapshot snapshot, JsonNode node) {
-        // VALIDATE: document exists
-        String path = snapshot.getReference().getPath();
-
-        Iterable<String> iterable = node::fieldNames;
-        boolean hasFields = StreamSupport.stream(iterable.spliterator(), false)
-                                .anyMatch(this::isValueFieldName);
+    private ValidationResult await(ApiFuture<?> validation) throws InterruptedException, ExecutionException {
+        validation.get();
+        return result();
+    }
 
-        if (hasFields) {
-            assertTrue(snapshot.exists(), "The document was not found at " + path);
-            validateFields(node, path, snapshot::contains, snapshot::get);
+    /**
+     * Stop the validation, e.g. after a read failed. Reads which were not started yet are cancelled.
+     */
+    private void stop() {
+        if (stopped.compareAndSet(false, true)) {
+            reads.cancel(new ValidationStoppedException());
         }
-
-        return snapshot;
     }
 
-    private void validateFields(JsonNode node,
-                                String parentPath,
-                                Function<String, Boolean> fieldExists,
-                                Function<String, Object> fieldAccessor) {
-        for (Iterator<Map.Entry<String, JsonNode>> it = node.fields(); it.hasNext(); ) {
-            Map.Entry<String, JsonNode> fieldEntry = it.next();
-
-            if (!isCollectionFieldEntry(fieldEntry)) {
-                String name = fieldEntry.getKey();
-                JsonNode value = fieldEntry.getValue();
-                String fieldPath = parentPath + "/" + name;
-
-                // VALIDATE: Field exists and has correct value
-                assertTrue(fieldExists.apply(name), "Field does not exist at field path " + fieldPath);
-                validateField(value, fieldAccessor.apply(name), fieldPath);
-            }
+    private ValidationResult result() {
+        if (manifest != null) {
+            manifest.save();
         }
+        List<Mismatch> sorted = new ArrayList<>(mismatches);
+        sorted.sort(Comparator.comparing(Mismatch::path));
+        return new ValidationResult(sorted, retrier.retries(), reads.throttled());
     }
 
-    private void validateField(JsonNode value, Object docValue, String fieldPath) {
-        // https://firebase.google.com/docs/firestore/manage-data/data-types
-        if (value.isNull()) {
-            assertNull(docValue);
-        } else if (value.isArray()) { // Array
-            assertArrayValue(value, docValue, fieldPath);
-        } else if (value.isBoolean()) { // Boolean
-            assertPrimitiveValue(value, docValue, Boolean.class, JsonNode::asBoolean, fieldPath);
-        } else if (value.isBinary()) { // Bytes
-            fail("Not supported yet at " + fieldPath);
-            // TODO:
-        } else if (value.isFloatingPointNumber()) { // Floating point number
-            assertPrimitiveValue(value, docValue, Double.class, JsonNode::asDouble, fieldPath);
-        } else if (value.isIntegralNumber()) { // Integer
-            assertPrimitiveValue(value, docValue, Long.class, JsonNode::asLong, fieldPath);
-        } else if (value.isObject()) { // Map
-            assertMapValue(value, docValue, fieldPath);
-        } else if (value.isTextual()) {
-            if (docValue instanceof Timestamp) {
-                // Date and time
-                assertPrimitiveValue(value,
-                        timestampZoZonedDateTime((Timestamp) docValue),
-                        ZonedDateTime.class,
-                        this::jsonDateTimeToZonedDateTime,
-                        fieldPath);
-            } else if (docValue instanceof DocumentReference) {
-                assertDocumentReference(value, docValue, fieldPath);
-            } else {
-                // Text string
-                assertPrimitiveValue(value, docValue, String.class, JsonNode::asText, fieldPath);
-            }
-        } else {
-            fail("Invalid JSON Node type encountered for document path " + fieldPath);
+    /**
+     * Retrieve and validate the documents in batches of the configured size, or one by one when batched reads are
+     * disabled. A single document is read with getAll() as well, so the same read path is used either way. All batches are submitted at once; the read limiter starts them as the number of reads in flight
+     * allows.
+     */
+    private ApiFuture<?> validateBatched(List<DocumentPlan> documents) {
+        int batchSize = Math.max(options.getReadBatchSize(), 1);
+        Batches batches = new Batches();
+        for (int start = 0; start < documents.size(); start += batchSize) {
+            List<DocumentPlan> batch = documents.subList(start, Math.min(start + batchSize, documents.size()));
+            batches.add(validateBatch(batch), () -> {});
         }
-
-        // TODO: Geographical point not supported
+        return batches.finish();
     }
 
-    private void assertDocumentReference(JsonNode value, Object docValue, String fieldPath) {
-        assertType(docValue, DocumentReference.class, fieldPath);
+    private ApiFuture<List<DocumentSnapshot>> validateBatch(List<DocumentPlan> batch) {
+        if (manifest == null) {
+            return readBatch(batch, null);
+        }
 
-        DocumentReference refDocValue = (DocumentReference) docValue;
-        assertEquals(value.asText(), refDocValue.getPath(), () -> invalidValueMessage(fieldPath));
-    }
+        List<String> fingerprints = new ArrayList<>(batch.size());
+        List<DocumentReference> candidates = new ArrayList<>();
+        for (DocumentPlan document : batch) {
+            String fingerprint = Fingerprint.of(document, options);
+            fingerprints.add(fingerprint);
+            if (manifest.isCandidate(document.path(), fingerprint)) {
+                candidates.add(firestore.document(document.path()));
+            }
+        }
+        if (candidates.isEmpty()) {
+            return readBatch(batch, fingerprints);
+        }
 
-    private <T> void assertPrimitiveValue(JsonNode value, Object docValue, Class<T> type, Function<JsonNode, T> nodeValue, String fieldPath) {
-        assertType(docValue, type, fieldPath);
-        assertEquals(nodeValue.apply(value), type.cast(docValue), () -> invalidValueMessage(fieldPath));
+        // Only the update times of the candidates are retrieved; documents which were not updated are skipped
+        return ApiFutures.transformAsync(
+                reads.read(() -> retrier.getAsync(() -> firestore.getAll(candidates.toArray(new DocumentReference[0]), FieldMask.of()))),
+                (List<DocumentSnapshot> metadata) -> {
+                    Map<String, Timestamp> updateTimes = new HashMap<>();
+                    metadata.forEach(snapshot -> updateTimes.put(snapshot.getReference().getPath(), snapshot.getUpdateTime()));
+
+                    List<DocumentPlan> remaining = new ArrayList<>();
+                    List<String> remainingFingerprints = new ArrayList<>();
+                    for (int i = 0; i < batch.size(); i++) {
+                        String path = batch.get(i).path();
+                        if (!manifest.isValid(path, fingerprints.get(i), updateTimes.get(path))) {
+                            remaining.add(batch.get(i));
+                            remainingFingerprints.add(fingerprints.get(i));
+                        }
+                    }
+                    if (remaining.isEmpty()) {
+                        return ApiFutures.immediateFuture(List.<DocumentSnapshot>of());
+                    }
+                    return readBatch(remaining, remainingFingerprints);
+                },
+                executor
+        );
     }
 
-    private void assertArrayValue(JsonNode value, Object docValue, String fieldPath) {
-        assertType(docValue, List.class, fieldPath);
-
-        ArrayNode arrayNode = (ArrayNode) value;
-        List<?> docListValue = (List<?>) docValue;
-        assertEquals(arrayNode.size(), docListValue.size(),
-                "Array field does not contain the same number of elements at " + fieldPath);
-        if (options.isStrictArrayOrdering()) {
-            assertArrayValueStrict(arrayNode, docListValue, fieldPath);
-        } else {
-            assertArrayValueLax(arrayNode, docListValue, fieldPath);
+    private ApiFuture<List<DocumentSnapshot>> readBatch(List<DocumentPlan> batch, List<String> fingerprints) {
+        DocumentReference[] references = new DocumentReference[batch.size()];
+        for (int i = 0; i < references.length; i++) {
+            references[i] = firestore.document(batch.get(i).path());
         }
 
+        FieldMask fieldMask = options.isFieldMaskedReads() ? fieldMask(batch) : null;
+        ApiFuture<List<DocumentSnapshot>> snapshots = reads.read(() -> retrier.getAsync(() -> fieldMask != null
+                ? firestore.getAll(references, fieldMask)
+                : firestore.getAll(references)));
+        return ApiFutures.transform(
+                snapshots,
+                (List<DocumentSnapshot> result) -> validateBatch(batch, fingerprints, result),
+                executor
+        );
     }
 
-    private void assertArrayValueStrict(ArrayNode arrayNode, List<?> docListValue, String fieldPath) {
-        for (int i = 0; i < docListValue.size(); i++) {
-            JsonNode arrayValue = arrayNode.get(i);
-            Object docArrayValue = docListValue.get(i);
+    /**
+     * The union of the fields of the documents in a batch. Paths which are contained in another path of the union
+     * are left out, as the mask may not contain overlapping paths.
+     */
+    private FieldMask fieldMask(List<DocumentPlan> batch) {
+        Set<List<String>> paths = new HashSet<>();
+        batch.forEach(document -> paths.addAll(document.fieldPaths()));
+
+        List<FieldPath> fieldPaths = new ArrayList<>(paths.size());
+        for (List<String> path : paths) {
+            if (!isContained(path, paths)) {
+                fieldPaths.add(FieldPath.of(path.toArray(new String[0])));
+            }
+        }
+        return FieldMask.of(fieldPaths.toArray(new FieldPath[0]));
+    }
 
-            validateField(arrayValue, docArrayValue, arraySubPath(fieldPath, i));
+    private static boolean isContained(List<String> path, Set<List<String>> paths) {
+        for (int length = 1; length < path.size(); length++) {
+            if (paths.contains(path.subList(0, length))) {
+                return true;
+            }
         }
+        return false;
     }
 
-    private void assertArrayValueLax(ArrayNode arrayNode, List<?> docListValue, String fieldPath) {
-        for (int i = 0 ; i < docListValue.size(); i++) {
-            JsonNode arrayValue = arrayNode.get(i);
-            String subPath =  arraySubPath(fieldPath, i);
+    private List<DocumentSnapshot> validateBatch(List<DocumentPlan> batch,
+                                                 List<String> fingerprints,
+                                                 List<DocumentSnapshot> snapshots) {
+        // Firestore.getAll() returns the snapshots in the order of the requested references
+        for (int i = 0; i < batch.size(); i++) {
+            if (stopped.get()) {
+                throw new ValidationStoppedException();
+            }
 
-            boolean found = false;
-            for (Object docArrayValue : docListValue) {
-                try {
-                    validateField(arrayValue, docArrayValue, subPath);
-                    found = true;
-                    break; // Validation succeeded, so we found the element in the array
-                } catch (AssertionFailedError e) {
-                    // ignore
+            boolean proceed;
+            if (fingerprints == null) {
+                proceed = comparator.compareDocument(snapshots.get(i), batch.get(i), sink);
+            } else {
+                boolean[] valid = {true};
+                proceed = comparator.compareDocument(snapshots.get(i), batch.get(i), mismatch -> {
+                    valid[0] = false;
+                    return sink.mismatch(mismatch);
+                });
+                if (!stopped.get()) {
+                    manifest.record(batch.get(i).path(), fingerprints.get(i), snapshots.get(i).getUpdateTime(), valid[0]);
                 }
             }
 
-            if (!found) {
-                fail("Array value for path " + subPath + " not found in document");
+            if (!proceed) {
+                throw new ValidationStoppedException();
             }
         }
+        return snapshots;
     }
 
-    private String arraySubPath(String fieldPath, int i) {
-        return fieldPath + "[" + i + "]";
-    }
-
-    @SuppressWarnings("unchecked")
-    private void assertMapValue(JsonNode value, Object docValue, String fieldPath) {
-        assertType(docValue, Map.class, fieldPath);
-
-        Map<String, Object> mapDocValue = (Map<String, Object>) docValue;
-        validateFields(value, fieldPath, mapDocValue::containsKey, mapDocValue::get);
-    }
-
-    private ZonedDateTime jsonDateTimeToZonedDateTime(JsonNode value) {
-        TemporalAccessor parseResult = formatter.parseBest(value.asText(), ZonedDateTime::from, LocalDateTime::from);
-        ZonedDateTime dateTime;
+    /**
+     * The batches of a validation. The validation completes once all batches have settled, also after it was stopped,
+     * so no reads are in flight and no documents are compared when the result is taken. It fails with the first
+     * failure which did not merely stop the validation, e.g. a failed read; such a failure stops the validation too.
+     */
+    private class Batches {
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final SettableApiFuture<Void> result = SettableApiFuture.create();
+
+        void add(ApiFuture<?> batch, Runnable settled) {
+            pending.incrementAndGet();
+            ApiFutures.addCallback(batch, new ApiFutureCallback<Object>() {
+                @Override
+                public void onFailure(Throwable t) {
+                    if (!(t instanceof ValidationStoppedException)) {
+                        failure.compareAndSet(null, t);
+                    }
+                    stop();
+                    settled.run();
+                    finished();
+                }
 
-        if (parseResult instanceof LocalDateTime) {
-            dateTime = ((LocalDateTime) parseResult).atZone(options.getZoneId());
-        } else {
-            dateTime = (ZonedDateTime) parseResult;
-            dateTime = dateTime.toInstant().atZone(options.getZoneId());
+                @Override
+                public void onSuccess(Object ignored) {
+                    settled.run();
+                    finished();
+                }
+            }, MoreExecutors.directExecutor());
         }
 
-       return dateTime;
-    }
-
-    private ZonedDateTime timestampZoZonedDateTime(Timestamp timestamp) {
-        Instant instant = Instant.ofEpochSecond(timestamp.getSeconds() , timestamp.getNanos());
-        return instant.atZone(options.getZoneId());
-    }
+        ApiFuture<Void> finish() {
+            finished();
+            return result;
+        }
 
-    private void assertType(Object docValue, Class<?> type, String fieldPath) {
-        assertInstanceOf(type, docValue, () -> invalidTypeMessage(fieldPath, type));
+        private void finished() {
+            if (pending.decrementAndGet() == 0) {
+                Throwable t = failure.get();
+                if (t == null) {
+                    result.set(null);
+                } else {
+                    result.setException(t);
+                }
+            }
+        }
     }
 
-    private String invalidTypeMessage(String fieldPath, Class<?> expectedType) {
-        return "Field is not of expected type " + expectedType + " at " + fieldPath;
-    }
+    /**
+     * Validations started while streaming a reference file. Documents are collected into batches (a single document
+     * when batched reads are disabled), and the parsing thread blocks when too many documents are in flight.
+     */
+    private class PendingValidations {
+        private final int batchSize = Math.max(options.getReadBatchSize(), 1);
+        private final Semaphore window = new Semaphore(Math.max(STREAMING_WINDOW, batchSize));
+        private final Batches batches = new Batches();
+        private List<DocumentPlan> buffer = new ArrayList<>();
+
+        boolean add(String path, JsonNode fields) {
+            if (stopped.get()) {
+                // Validation already stopped, stop reading
+                return false;
+            }
 
-    private String invalidValueMessage(String fieldPath) {
-        return "Field does not have the expected value at " + fieldPath;
-    }
+            buffer.add(ValidationPlan.compileDocument(path, fields, options.getZoneId()));
+            if (buffer.size() >= batchSize) {
+                flush();
+            }
+            return true;
+        }
 
-    private ApiFuture<?> traverseCollections(Function<String, CollectionReference> accessor, JsonNode node) {
-        List<ApiFuture<?>> futures = new ArrayList<>();
-        for (Iterator<Map.Entry<String, JsonNode>> it = node.fields(); it.hasNext(); ) {
-            Map.Entry<String, JsonNode> fieldEntry = it.next();
+        ApiFuture<Void> finish() {
+            flush();
+            return batches.finish();
+        }
 
-            if (isCollectionFieldEntry(fieldEntry)) {
-                String name = toCollectionName(fieldEntry);
-                CollectionReference ref = accessor.apply(name);
-                futures.add(validateCollection(ref, fieldEntry.getValue()));
+        private void flush() {
+            if (buffer.isEmpty()) {
+                return;
             }
-        }
-        return ApiFutures.allAsList(futures);
-    }
 
-    private boolean isCollectionFieldEntry(Map.Entry<String, JsonNode> fieldEntry) {
-        return isCollectionFieldName(fieldEntry.getKey());
-    }
+            List<DocumentPlan> batch = buffer;
+            buffer = new ArrayList<>();
 
-    private boolean isValueFieldName(String fieldName) {
-        return !isCollectionFieldName(fieldName);
+            window.acquireUninterruptibly(batch.size());
+            batches.add(validateBatch(batch), () -> window.release(batch.size()));
+        }
     }
 
-    private boolean isCollectionFieldName(String fieldName) {
-        return fieldName.startsWith(COLLECTION_PREFIX);
-    }
+    /**
+     * Thrown to stop the validation once the first mismatch has been found, and the failure of the reads cancelled
+     * because of it. It only serves to complete the futures of the validation early, so no stack trace is recorded.
+     */
+    private static class ValidationStoppedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
 
-    private String toCollectionName(Map.Entry<String, JsonNode> fieldEntry) {
-        return fieldEntry.getKey().substring(COLLECTION_PREFIX.length());
+        ValidationStoppedException() {
+            super("Validation stopped", null, false, false);
+        }
     }
-}
\ No newline at end of file
+}
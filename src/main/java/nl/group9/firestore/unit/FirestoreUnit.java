@@ -1,25 +1,55 @@
 package nl.group9.firestore.unit;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLMapper;
+import com.google.cloud.firestore.BulkWriterOptions;
 import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.jupiter.api.AssertionFailureBuilder;
+import org.opentest4j.AssertionFailedError;
+import org.opentest4j.MultipleFailuresError;
 
 import java.io.*;
 import java.net.URL;
+import java.time.Duration;
 import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 
 import static org.junit.jupiter.api.Assertions.fail;
 
 /**
  * Main entry point of FirestoreUnit assertions. Each of the assertFirestore*() methods can be
- * used to validate the contents of the Firestore database with the reference file.
+ * used to validate the contents of the Firestore database with the reference file. The load*() methods
+ * write the contents of a reference file to the database, the clear*() methods delete them again. The diff() methods
+ * compare two states of a tree of documents.
  */
 public class FirestoreUnit {
 
+    /**
+     * Mappers are thread-safe once configured, so a single instance per format is shared
+     */
+    static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    static final ObjectMapper YAML_MAPPER = new YAMLMapper();
+    static final ObjectMapper SMILE_MAPPER = new SmileMapper();
+    private static final int REFERENCE_CACHE_SIZE = 64;
+    private static final ReferenceCache REFERENCE_CACHE = new ReferenceCache(REFERENCE_CACHE_SIZE);
+    private static final Duration DEFAULT_RETRY_INITIAL_BACKOFF = Duration.ofMillis(100);
+    private static final Duration DEFAULT_RETRY_MAX_BACKOFF = Duration.ofSeconds(5);
+
     /**
      * Private default constructor
      */
@@ -43,7 +73,7 @@ public class FirestoreUnit {
      * @param json The JSON reference data as String
      */
     public static void assertFirestoreJson(Firestore firestore, Options options, String json) {
-        assertFirestore(firestore, new ObjectMapper(), options, json);
+        assertFirestore(firestore, JSON_MAPPER, options, json);
     }
 
     /**
@@ -64,7 +94,7 @@ public class FirestoreUnit {
      * @param json The JSON reference data as File
      */
     public static void assertFirestoreJson(Firestore firestore, Options options, File json) {
-        assertFirestore(firestore, new ObjectMapper(), options, json);
+        assertFirestore(firestore, JSON_MAPPER, options, json);
     }
 
     /**
@@ -85,7 +115,7 @@ public class FirestoreUnit {
      * @param json The JSON reference data as URL
      */
     public static void assertFirestoreJson(Firestore firestore, Options options, URL json) {
-        assertFirestore(firestore, new ObjectMapper(), options, json);
+        assertFirestore(firestore, JSON_MAPPER, options, json);
     }
 
     /**
@@ -106,7 +136,7 @@ public class FirestoreUnit {
      * @param json The JSON reference data as Reader
      */
     public static void assertFirestoreJson(Firestore firestore, Options options, Reader json) {
-        assertFirestore(firestore, new ObjectMapper(), options, json);
+        assertFirestore(firestore, JSON_MAPPER, options, json);
     }
 
     /**
@@ -127,7 +157,7 @@ public class FirestoreUnit {
      * @param json The JSON reference data as InputStream
      */
     public static void assertFirestoreJson(Firestore firestore, Options options, InputStream json) {
-        assertFirestore(firestore, new ObjectMapper(), options, json);
+        assertFirestore(firestore, JSON_MAPPER, options, json);
     }
 
     /**
@@ -148,7 +178,7 @@ public class FirestoreUnit {
      * @param yaml The YAML reference data as String
      */
     public static void assertFirestoreYaml(Firestore firestore, Options options, String yaml) {
-        assertFirestore(firestore, new YAMLMapper(), options, yaml);
+        assertFirestore(firestore, YAML_MAPPER, options, yaml);
     }
 
     /**
@@ -169,7 +199,7 @@ public class FirestoreUnit {
      * @param yaml The YAML reference data as File
      */
     public static void assertFirestoreYaml(Firestore firestore, Options options, File yaml) {
-        assertFirestore(firestore, new YAMLMapper(), options, yaml);
+        assertFirestore(firestore, YAML_MAPPER, options, yaml);
     }
 
     /**
@@ -190,7 +220,7 @@ public class FirestoreUnit {
      * @param yaml The YAML reference data as URL
      */
     public static void assertFirestoreYaml(Firestore firestore, Options options, URL yaml) {
-        assertFirestore(firestore, new YAMLMapper(), options, yaml);
+        assertFirestore(firestore, YAML_MAPPER, options, yaml);
     }
 
     /**
@@ -211,7 +241,7 @@ public class FirestoreUnit {
      * @param yaml The YAML reference data as Reader
      */
     public static void assertFirestoreYaml(Firestore firestore, Options options, Reader yaml) {
-        assertFirestore(firestore, new YAMLMapper(), options, yaml);
+        assertFirestore(firestore, YAML_MAPPER, options, yaml);
     }
 
     /**
@@ -232,7 +262,323 @@ public class FirestoreUnit {
      * @param yaml The YAML reference data as InputStream
      */
     public static void assertFirestoreYaml(Firestore firestore, Options options, InputStream yaml) {
-        assertFirestore(firestore, new YAMLMapper(), options, yaml);
+        assertFirestore(firestore, YAML_MAPPER, options, yaml);
+    }
+
+    /**
+     * Validate the contents of the Firestore database is equal to the contents of a binary snapshot. The default
+     * options are used.
+     * @see #assertFirestoreSnapshot(Firestore, Options, File)
+     * @param firestore The firestore instance to read from
+     * @param snapshot The snapshot written by {@link #exportSnapshot(Firestore, Options, String, File)}
+     */
+    public static void assertFirestoreSnapshot(Firestore firestore, File snapshot) {
+        assertFirestoreSnapshot(firestore, options(), snapshot);
+    }
+
+    /**
+     * Validate the contents of the Firestore database is equal to the contents of a binary snapshot. The snapshot is
+     * memory-mapped and its documents are decoded one by one; the validation itself is the same as for a JSON
+     * reference file.
+     * @param firestore The firestore instance to read from
+     * @param options The options for validation
+     * @param snapshot The snapshot written by {@link #exportSnapshot(Firestore, Options, String, File)}
+     */
+    public static void assertFirestoreSnapshot(Firestore firestore, Options options, File snapshot) {
+        assertFirestoreSnapshot(firestore, options, snapshot, path -> true);
+    }
+
+    /**
+     * Validate a document and the documents below it against a binary snapshot. The documents are looked up in the
+     * index of the snapshot, so only their records are read from the file.
+     * @see #assertFirestoreSnapshot(Firestore, Options, File)
+     * @param firestore The firestore instance to read from
+     * @param options The options for validation
+     * @param snapshot The snapshot written by {@link #exportSnapshot(Firestore, Options, String, File)}
+     * @param path The path of the document to validate, including all documents in its sub collections
+     */
+    public static void assertFirestoreSnapshot(Firestore firestore, Options options, File snapshot, String path) {
+        assertFirestoreSnapshot(firestore, options, snapshot,
+                documentPath -> documentPath.equals(path) || documentPath.startsWith(path + "/"));
+    }
+
+    /**
+     * Validate the contents of the Firestore database is equal to the contents of a sharded export. The default
+     * options are used.
+     * @see #assertFirestoreManifest(Firestore, Options, File)
+     * @param firestore The firestore instance to read from
+     * @param manifest The manifest written by {@link #exportShardedJson(Firestore, Options, String, File)}
+     */
+    public static void assertFirestoreManifest(Firestore firestore, File manifest) {
+        assertFirestoreManifest(firestore, options(), manifest);
+    }
+
+    /**
+     * Validate the contents of the Firestore database is equal to the contents of a sharded export. Each shard listed
+     * in the manifest is parsed and validated on its own, and the shards are validated concurrently according to
+     * {@link Options#withExportParallelism(int)}. A shard which does not match is reported with its file name: the
+     * first mismatch, or all mismatches of the shard with {@link Options#withCollectAllFailures()}. When several
+     * shards do not match, each of them is reported as a separate failure.
+     * @param firestore The firestore instance to read from
+     * @param options The options for validation
+     * @param manifest The manifest written by {@link #exportShardedJson(Firestore, Options, String, File)}
+     */
+    public static void assertFirestoreManifest(Firestore firestore, Options options, File manifest) {
+        Map<String, ValidationResult> results = null;
+        try {
+            results = ShardedExporter.validate(firestore, manifest, options);
+        } catch (IOException e) {
+            fail(e);
+        }
+
+        List<AssertionError> failures = new ArrayList<>();
+        results.forEach((shard, result) -> {
+            if (!result.isValid()) {
+                failures.add(shardFailure(options, shard, result));
+            }
+        });
+        if (failures.size() == 1) {
+            throw failures.get(0);
+        } else if (!failures.isEmpty()) {
+            throw new MultipleFailuresError(
+                    "The Firestore contents do not match " + failures.size() + " shards of " + manifest, failures);
+        }
+    }
+
+    /**
+     * Validate using JSON without blocking. The default options are used.
+     * @see #assertFirestoreJsonAsync(Firestore, Options, String)
+     * @param firestore The firestore instance to read from
+     * @param json The JSON reference data as String
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreJsonAsync(Firestore firestore, String json) {
+        return assertFirestoreJsonAsync(firestore, options(), json);
+    }
+
+    /**
+     * Validate the contents of the Firestore database without blocking. The reference data is parsed (or taken from
+     * the reference cache) on the calling thread, after which the documents are retrieved and validated
+     * asynchronously, with the comparisons running on the executor of the options.
+     * <p>
+     * The future completes with the result when the contents match. Otherwise, it completes exceptionally with the
+     * same assertion error as {@link #assertFirestoreJson(Firestore, Options, String)} would throw; a failure
+     * retrieving data from Firestore is passed on as is.
+     * </p>
+     * @param firestore The firestore instance to read from
+     * @param options The options for validation
+     * @param json The JSON reference data as String
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreJsonAsync(Firestore firestore, Options options, String json) {
+        return assertFirestoreAsync(firestore, JSON_MAPPER, options, json);
+    }
+
+    /**
+     * Validate using JSON without blocking. The default options are used.
+     * @see #assertFirestoreJsonAsync(Firestore, Options, File)
+     * @param firestore The firestore instance to read from
+     * @param json The JSON reference data as File
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreJsonAsync(Firestore firestore, File json) {
+        return assertFirestoreJsonAsync(firestore, options(), json);
+    }
+
+    /**
+     * Validate using JSON without blocking
+     * @see #assertFirestoreJsonAsync(Firestore, Options, String)
+     * @param firestore The firestore instance to read from
+     * @param options The options for validation
+     * @param json The JSON reference data as File
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreJsonAsync(Firestore firestore, Options options, File json) {
+        return assertFirestoreAsync(firestore, JSON_MAPPER, options, json);
+    }
+
+    /**
+     * Validate using JSON without blocking. The default options are used.
+     * @see #assertFirestoreJsonAsync(Firestore, Options, URL)
+     * @param firestore The firestore instance to read from
+     * @param json The JSON reference data as URL
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreJsonAsync(Firestore firestore, URL json) {
+        return assertFirestoreJsonAsync(firestore, options(), json);
+    }
+
+    /**
+     * Validate using JSON without blocking
+     * @see #assertFirestoreJsonAsync(Firestore, Options, String)
+     * @param firestore The firestore instance to read from
+     * @param options The options for validation
+     * @param json The JSON reference data as URL
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreJsonAsync(Firestore firestore, Options options, URL json) {
+        return assertFirestoreAsync(firestore, JSON_MAPPER, options, json);
+    }
+
+    /**
+     * Validate using JSON without blocking. The default options are used.
+     * @see #assertFirestoreJsonAsync(Firestore, Options, Reader)
+     * @param firestore The firestore instance to read from
+     * @param json The JSON reference data as Reader
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreJsonAsync(Firestore firestore, Reader json) {
+        return assertFirestoreJsonAsync(firestore, options(), json);
+    }
+
+    /**
+     * Validate using JSON without blocking
+     * @see #assertFirestoreJsonAsync(Firestore, Options, String)
+     * @param firestore The firestore instance to read from
+     * @param options The options for validation
+     * @param json The JSON reference data as Reader
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreJsonAsync(Firestore firestore, Options options, Reader json) {
+        return assertFirestoreAsync(firestore, JSON_MAPPER, options, json);
+    }
+
+    /**
+     * Validate using JSON without blocking. The default options are used.
+     * @see #assertFirestoreJsonAsync(Firestore, Options, InputStream)
+     * @param firestore The firestore instance to read from
+     * @param json The JSON reference data as InputStream
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreJsonAsync(Firestore firestore, InputStream json) {
+        return assertFirestoreJsonAsync(firestore, options(), json);
+    }
+
+    /**
+     * Validate using JSON without blocking
+     * @see #assertFirestoreJsonAsync(Firestore, Options, String)
+     * @param firestore The firestore instance to read from
+     * @param options The options for validation
+     * @param json The JSON reference data as InputStream
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreJsonAsync(Firestore firestore, Options options, InputStream json) {
+        return assertFirestoreAsync(firestore, JSON_MAPPER, options, json);
+    }
+
+    /**
+     * Validate using YAML without blocking. The default options are used.
+     * @see #assertFirestoreYamlAsync(Firestore, Options, String)
+     * @param firestore The firestore instance to read from
+     * @param yaml The YAML reference data as String
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreYamlAsync(Firestore firestore, String yaml) {
+        return assertFirestoreYamlAsync(firestore, options(), yaml);
+    }
+
+    /**
+     * Validate using YAML without blocking
+     * @see #assertFirestoreJsonAsync(Firestore, Options, String)
+     * @param firestore The firestore instance to read from
+     * @param options The options for validation
+     * @param yaml The YAML reference data as String
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreYamlAsync(Firestore firestore, Options options, String yaml) {
+        return assertFirestoreAsync(firestore, YAML_MAPPER, options, yaml);
+    }
+
+    /**
+     * Validate using YAML without blocking. The default options are used.
+     * @see #assertFirestoreYamlAsync(Firestore, Options, File)
+     * @param firestore The firestore instance to read from
+     * @param yaml The YAML reference data as File
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreYamlAsync(Firestore firestore, File yaml) {
+        return assertFirestoreYamlAsync(firestore, options(), yaml);
+    }
+
+    /**
+     * Validate using YAML without blocking
+     * @see #assertFirestoreJsonAsync(Firestore, Options, String)
+     * @param firestore The firestore instance to read from
+     * @param options The options for validation
+     * @param yaml The YAML reference data as File
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreYamlAsync(Firestore firestore, Options options, File yaml) {
+        return assertFirestoreAsync(firestore, YAML_MAPPER, options, yaml);
+    }
+
+    /**
+     * Validate using YAML without blocking. The default options are used.
+     * @see #assertFirestoreYamlAsync(Firestore, Options, URL)
+     * @param firestore The firestore instance to read from
+     * @param yaml The YAML reference data as URL
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreYamlAsync(Firestore firestore, URL yaml) {
+        return assertFirestoreYamlAsync(firestore, options(), yaml);
+    }
+
+    /**
+     * Validate using YAML without blocking
+     * @see #assertFirestoreJsonAsync(Firestore, Options, String)
+     * @param firestore The firestore instance to read from
+     * @param options The options for validation
+     * @param yaml The YAML reference data as URL
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreYamlAsync(Firestore firestore, Options options, URL yaml) {
+        return assertFirestoreAsync(firestore, YAML_MAPPER, options, yaml);
+    }
+
+    /**
+     * Validate using YAML without blocking. The default options are used.
+     * @see #assertFirestoreYamlAsync(Firestore, Options, Reader)
+     * @param firestore The firestore instance to read from
+     * @param yaml The YAML reference data as Reader
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreYamlAsync(Firestore firestore, Reader yaml) {
+        return assertFirestoreYamlAsync(firestore, options(), yaml);
+    }
+
+    /**
+     * Validate using YAML without blocking
+     * @see #assertFirestoreJsonAsync(Firestore, Options, String)
+     * @param firestore The firestore instance to read from
+     * @param options The options for validation
+     * @param yaml The YAML reference data as Reader
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreYamlAsync(Firestore firestore, Options options, Reader yaml) {
+        return assertFirestoreAsync(firestore, YAML_MAPPER, options, yaml);
+    }
+
+    /**
+     * Validate using YAML without blocking. The default options are used.
+     * @see #assertFirestoreYamlAsync(Firestore, Options, InputStream)
+     * @param firestore The firestore instance to read from
+     * @param yaml The YAML reference data as InputStream
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreYamlAsync(Firestore firestore, InputStream yaml) {
+        return assertFirestoreYamlAsync(firestore, options(), yaml);
+    }
+
+    /**
+     * Validate using YAML without blocking
+     * @see #assertFirestoreJsonAsync(Firestore, Options, String)
+     * @param firestore The firestore instance to read from
+     * @param options The options for validation
+     * @param yaml The YAML reference data as InputStream
+     * @return The future result of the validation
+     */
+    public static CompletableFuture<ValidationResult> assertFirestoreYamlAsync(Firestore firestore, Options options, InputStream yaml) {
+        return assertFirestoreAsync(firestore, YAML_MAPPER, options, yaml);
     }
 
     /**
@@ -244,7 +590,7 @@ public class FirestoreUnit {
      * @param os The output stream
      */
     public static void exportDocumentJson(Firestore firestore, Options options, String path, OutputStream os) {
-        export(transformToNodes(firestore, options, new ObjectMapper(), path), new ObjectMapper(), os);
+        export(transformToNodes(firestore, options, JSON_MAPPER, path), JSON_MAPPER, os);
     }
 
     /**
@@ -256,7 +602,7 @@ public class FirestoreUnit {
      * @param w The writer
      */
     public static void exportDocumentJson(Firestore firestore, Options options, String path, Writer w) {
-        export(transformToNodes(firestore, options, new ObjectMapper(), path), new ObjectMapper(), w);
+        export(transformToNodes(firestore, options, JSON_MAPPER, path), JSON_MAPPER, w);
     }
 
     /**
@@ -268,7 +614,7 @@ public class FirestoreUnit {
      * @param f The file
      */
     public static void exportDocumentJson(Firestore firestore, Options options, String path, File f) {
-        export(transformToNodes(firestore, options, new ObjectMapper(), path), new ObjectMapper(), f);
+        export(transformToNodes(firestore, options, JSON_MAPPER, path), JSON_MAPPER, f);
     }
 
     /**
@@ -280,7 +626,7 @@ public class FirestoreUnit {
      * @param d The data output
      */
     public static void exportDocumentJson(Firestore firestore, Options options, String path, DataOutput d) {
-        export(transformToNodes(firestore, options, new ObjectMapper(), path), new ObjectMapper(), d);
+        export(transformToNodes(firestore, options, JSON_MAPPER, path), JSON_MAPPER, d);
     }
 
     /**
@@ -292,7 +638,7 @@ public class FirestoreUnit {
      * @param os The output stream
      */
     public static void exportDocumentYaml(Firestore firestore, Options options,  String path, OutputStream os){
-        export(transformToNodes(firestore, options, new ObjectMapper(), path), new YAMLMapper(), os);
+        export(transformToNodes(firestore, options, JSON_MAPPER, path), YAML_MAPPER, os);
     }
 
     /**
@@ -304,7 +650,7 @@ public class FirestoreUnit {
      * @param w The writer
      */
     public static void exportDocumentYaml(Firestore firestore, Options options,  String path, Writer w){
-        export(transformToNodes(firestore, options, new ObjectMapper(), path), new YAMLMapper(), w);
+        export(transformToNodes(firestore, options, JSON_MAPPER, path), YAML_MAPPER, w);
     }
 
     /**
@@ -316,7 +662,7 @@ public class FirestoreUnit {
      * @param f The file
      */
     public static void exportDocumentYaml(Firestore firestore, Options options,  String path, File f){
-        export(transformToNodes(firestore, options, new ObjectMapper(), path), new YAMLMapper(), f);
+        export(transformToNodes(firestore, options, JSON_MAPPER, path), YAML_MAPPER, f);
     }
 
     /**
@@ -328,7 +674,7 @@ public class FirestoreUnit {
      * @param d The dataoutput
      */
     public static void exportDocumentYaml(Firestore firestore, Options options,  String path, DataOutput d){
-        export(transformToNodes(firestore, options, new ObjectMapper(), path), new YAMLMapper(), d);
+        export(transformToNodes(firestore, options, JSON_MAPPER, path), YAML_MAPPER, d);
     }
 
     /**
@@ -340,7 +686,7 @@ public class FirestoreUnit {
      * @param os The output stream
      */
     public static void exportRecursiveJson(Firestore firestore, Options options,  String path, OutputStream os) {
-        export(transformToNodesRecursive(firestore, options, new ObjectMapper(), path), new ObjectMapper(), os);
+        exportRecursive(firestore, options, path, JSON_MAPPER, os);
     }
 
     /**
@@ -352,7 +698,7 @@ public class FirestoreUnit {
      * @param w The writer
      */
     public static void exportRecursiveJson(Firestore firestore, Options options,  String path, Writer w) {
-        export(transformToNodesRecursive(firestore, options, new ObjectMapper(), path), new ObjectMapper(), w);
+        exportRecursive(firestore, options, path, JSON_MAPPER, w);
     }
 
     /**
@@ -364,7 +710,7 @@ public class FirestoreUnit {
      * @param f The file
      */
     public static void exportRecursiveJson(Firestore firestore, Options options,  String path, File f) {
-        export(transformToNodesRecursive(firestore, options, new ObjectMapper(), path), new ObjectMapper(), f);
+        exportRecursive(firestore, options, path, JSON_MAPPER, f);
     }
 
     /**
@@ -376,7 +722,7 @@ public class FirestoreUnit {
      * @param d The data output
      */
     public static void exportRecursiveJson(Firestore firestore, Options options,  String path, DataOutput d) {
-        export(transformToNodesRecursive(firestore, options, new ObjectMapper(), path), new ObjectMapper(), d);
+        exportRecursive(firestore, options, path, JSON_MAPPER, d);
     }
 
     /**
@@ -388,7 +734,7 @@ public class FirestoreUnit {
      * @param os The output stream
      */
     public static void exportRecursiveYaml(Firestore firestore, Options options,  String path, OutputStream os) {
-        export(transformToNodesRecursive(firestore, options, new ObjectMapper(), path), new YAMLMapper(), os);
+        exportRecursive(firestore, options, path, YAML_MAPPER, os);
     }
 
     /**
@@ -400,7 +746,7 @@ public class FirestoreUnit {
      * @param w The writer
      */
     public static void exportRecursiveYaml(Firestore firestore, Options options,  String path, Writer w) {
-        export(transformToNodesRecursive(firestore, options, new ObjectMapper(), path), new YAMLMapper(), w);
+        exportRecursive(firestore, options, path, YAML_MAPPER, w);
     }
 
     /**
@@ -412,7 +758,7 @@ public class FirestoreUnit {
      * @param f The file
      */
     public static void exportRecursiveYaml(Firestore firestore, Options options,  String path, File f) {
-        export(transformToNodesRecursive(firestore, options, new ObjectMapper(), path), new YAMLMapper(), f);
+        exportRecursive(firestore, options, path, YAML_MAPPER, f);
     }
 
     /**
@@ -424,84 +770,1077 @@ public class FirestoreUnit {
      * @param d The dataoutput
      */
     public static void exportRecursiveYaml(Firestore firestore, Options options,  String path, DataOutput d) {
-        export(transformToNodesRecursive(firestore, options, new ObjectMapper(), path), new YAMLMapper(), d);
+        exportRecursive(firestore, options, path, YAML_MAPPER, d);
     }
 
     /**
-     * Return the default options
-     * @return the options
+     * Export the documents returned by a query to JSON. The query can be on a collection or a collection group, and
+     * may use where-filters and a field projection using <code>select(...)</code>, so only the fields of interest
+     * are retrieved. Each document is exported at its own path, in the format accepted by the various
+     * assertFirestore*() methods.
+     * @param firestore The firestore instance to read from
+     * @param options The options for exporting
+     * @param query The query to export the results of
+     * @param os The output stream
      */
-    public static Options options() {
-        return new Options();
+    public static void exportQueryJson(Firestore firestore, Options options, Query query, OutputStream os) {
+        export(transformQueryToNodes(firestore, options, JSON_MAPPER, query), JSON_MAPPER, os);
     }
 
     /**
-     * Options to configure the behaviour of the testing setup.
+     * Export the documents returned by a query as JSON
+     * @see #exportQueryJson(Firestore, Options, Query, OutputStream)
+     * @param firestore The firestore instance to read from
+     * @param options The options for exporting
+     * @param query The query to export the results of
+     * @param w The writer
      */
-    public static class Options {
-        private final ZoneId zoneId;
-        private final boolean strictArrayOrdering;
+    public static void exportQueryJson(Firestore firestore, Options options, Query query, Writer w) {
+        export(transformQueryToNodes(firestore, options, JSON_MAPPER, query), JSON_MAPPER, w);
+    }
 
-        /**
-         * Default constructor, sets default values for options
-         */
-        private Options() {
-            zoneId = ZoneId.of("UTC");
-            strictArrayOrdering = true;
-        }
+    /**
+     * Export the documents returned by a query as JSON
+     * @see #exportQueryJson(Firestore, Options, Query, OutputStream)
+     * @param firestore The firestore instance to read from
+     * @param options The options for exporting
+     * @param query The query to export the results of
+     * @param f The file
+     */
+    public static void exportQueryJson(Firestore firestore, Options options, Query query, File f) {
+        export(transformQueryToNodes(firestore, options, JSON_MAPPER, query), JSON_MAPPER, f);
+    }
 
-        /**
-         * Updating constructor. Used in the with*() methods.
-         * @param zoneId The zone id.
-         * @param strictArrayOrdering The strict array ordering flag
-         */
-        private Options(ZoneId zoneId, boolean strictArrayOrdering) {
-            this.zoneId = zoneId;
-            this.strictArrayOrdering = strictArrayOrdering;
-        }
+    /**
+     * Export the documents returned by a query as JSON
+     * @see #exportQueryJson(Firestore, Options, Query, OutputStream)
+     * @param firestore The firestore instance to read from
+     * @param options The options for exporting
+     * @param query The query to export the results of
+     * @param d The data output
+     */
+    public static void exportQueryJson(Firestore firestore, Options options, Query query, DataOutput d) {
+        export(transformQueryToNodes(firestore, options, JSON_MAPPER, query), JSON_MAPPER, d);
+    }
 
-        /**
-         * Configure the zoneId to use when comparing timestamps
-         * @param zoneId The name of the zone Id
-         * @return The new options
-         */
-        public Options withZoneId(String zoneId) {
-            return withZoneId(ZoneId.of(zoneId));
-        }
+    /**
+     * Export the documents returned by a query as YAML
+     * @see #exportQueryJson(Firestore, Options, Query, OutputStream)
+     * @param firestore The firestore instance to read from
+     * @param options The options for exporting
+     * @param query The query to export the results of
+     * @param os The output stream
+     */
+    public static void exportQueryYaml(Firestore firestore, Options options, Query query, OutputStream os) {
+        export(transformQueryToNodes(firestore, options, JSON_MAPPER, query), YAML_MAPPER, os);
+    }
 
-        /**
-         * Configure the zoneId to use when comparing timestamps
-         * @param zoneId The zone Id
-         * @return The new options
-         */
-        public Options withZoneId(ZoneId zoneId) {
-            return new Options(zoneId, strictArrayOrdering);
-        }
+    /**
+     * Export the documents returned by a query as YAML
+     * @see #exportQueryJson(Firestore, Options, Query, OutputStream)
+     * @param firestore The firestore instance to read from
+     * @param options The options for exporting
+     * @param query The query to export the results of
+     * @param w The writer
+     */
+    public static void exportQueryYaml(Firestore firestore, Options options, Query query, Writer w) {
+        export(transformQueryToNodes(firestore, options, JSON_MAPPER, query), YAML_MAPPER, w);
+    }
 
-        /**
-         * <p>
-         *      Enable strict array ordering. With strict array ordering enabled, when checking an array, the elements
-         *      are expected to be in the exact same order as in the reference file.
-         * </p>
-         * <p>
-         *     With lax array ordering, all elements in the reference file are expected to be present in the document
-         *     regardless of their order. Note that this also affects the checking of duplicates; in case elements
-         *     occur more than once in the document and reference array, lax checking will only validate that each
-         *     of the elements is present in both arrays, regardless of the number of times they are present in the array.
-         * </p>
-         * @return The new options.
-         */
-        public Options withStrictArrayOrdering() {
-            return new Options(zoneId, true);
-        }
+    /**
+     * Export the documents returned by a query as YAML
+     * @see #exportQueryJson(Firestore, Options, Query, OutputStream)
+     * @param firestore The firestore instance to read from
+     * @param options The options for exporting
+     * @param query The query to export the results of
+     * @param f The file
+     */
+    public static void exportQueryYaml(Firestore firestore, Options options, Query query, File f) {
+        export(transformQueryToNodes(firestore, options, JSON_MAPPER, query), YAML_MAPPER, f);
+    }
 
-        /**
-         * Disable strict array ordering.
-         * @see #withStrictArrayOrdering()
-         * @return The new options
+    /**
+     * Export the documents returned by a query as YAML
+     * @see #exportQueryJson(Firestore, Options, Query, OutputStream)
+     * @param firestore The firestore instance to read from
+     * @param options The options for exporting
+     * @param query The query to export the results of
+     * @param d The data output
+     */
+    public static void exportQueryYaml(Firestore firestore, Options options, Query query, DataOutput d) {
+        export(transformQueryToNodes(firestore, options, JSON_MAPPER, query), YAML_MAPPER, d);
+    }
+
+    /**
+     * Export a document/collection tree to a JSON file, keeping it up to date on subsequent calls. Next to the file,
+     * a manifest with the update time of each exported document is kept (the name of the file with the suffix
+     * ".manifest"). When both exist, only the documents which changed since the previous export are retrieved; the
+     * previous export is patched with them and documents which no longer exist are removed. The tree is still listed
+     * completely, but the documents themselves are only retrieved when changed. Otherwise, the complete tree is
+     * exported.
+     * @see #exportRecursiveJson(Firestore, Options, String, OutputStream)
+     * @param firestore The firestore instance to read from
+     * @param options The options for exporting
+     * @param path The path in the document/collection tree to export
+     * @param f The file
+     */
+    public static void exportIncrementalJson(Firestore firestore, Options options, String path, File f) {
+        exportIncremental(firestore, options, path, JSON_MAPPER, f);
+    }
+
+    /**
+     * Export a document/collection tree to a YAML file, keeping it up to date on subsequent calls
+     * @see #exportIncrementalJson(Firestore, Options, String, File)
+     * @param firestore The firestore instance to read from
+     * @param options The options for exporting
+     * @param path The path in the document/collection tree to export
+     * @param f The file
+     */
+    public static void exportIncrementalYaml(Firestore firestore, Options options, String path, File f) {
+        exportIncremental(firestore, options, path, YAML_MAPPER, f);
+    }
+
+    /**
+     * Export a document/collection tree to a binary snapshot. A snapshot contains the same documents as
+     * {@link #exportRecursiveJson(Firestore, Options, String, File)}, each encoded separately as Smile (binary JSON),
+     * followed by an index of the paths of the documents. It is smaller and faster to write and read than JSON, and a
+     * single document can be read without reading the rest of the file. The export is always streamed: only a page of
+     * documents per level of the tree, and the index, are kept in memory.
+     * @see #assertFirestoreSnapshot(Firestore, Options, File)
+     * @see DiffSource#snapshot(File)
+     * @param firestore The firestore instance to read from
+     * @param options The options for exporting
+     * @param path The path of the document to start the export from
+     * @param f The file
+     */
+    public static void exportSnapshot(Firestore firestore, Options options, String path, File f) {
+        try (SnapshotWriter writer = new SnapshotWriter(f)) {
+            new FirestoreExporter(firestore, options, JSON_MAPPER).exportTree(path, writer);
+            // Only a complete export gets an index; a failed export leaves a file the reader rejects
+            writer.finish();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Export a document/collection tree to a directory of JSON shards. Each top-level collection of the tree is
+     * exported to its own shard, or to several shards with {@link Options#withShardSize(int)}, and the fields of the
+     * document at the path itself to a separate shard. The shards are written in parallel according to
+     * {@link Options#withExportParallelism(int)}. Each shard has the same layout as
+     * {@link #exportRecursiveJson(Firestore, Options, String, File)}, limited to its documents. Once all shards are
+     * written, a manifest named {@code manifest.json} lists the shards with their number of documents.
+     * @see #assertFirestoreManifest(Firestore, Options, File)
+     * @param firestore The firestore instance to read from
+     * @param options The options for exporting
+     * @param path The path of the document to start the export from, or an empty string for the complete database
+     * @param directory The directory for the shards and the manifest
+     */
+    public static void exportShardedJson(Firestore firestore, Options options, String path, File directory) {
+        exportSharded(firestore, options, path, JSON_MAPPER, directory);
+    }
+
+    /**
+     * Export a document/collection tree to a directory of YAML shards
+     * @see #exportShardedJson(Firestore, Options, String, File)
+     * @param firestore The firestore instance to read from
+     * @param options The options for exporting
+     * @param path The path of the document to start the export from, or an empty string for the complete database
+     * @param directory The directory for the shards and the manifest
+     */
+    public static void exportShardedYaml(Firestore firestore, Options options, String path, File directory) {
+        exportSharded(firestore, options, path, YAML_MAPPER, directory);
+    }
+
+    /**
+     * Compare two states of a tree of documents, e.g. a tree in Firestore against a previous export. The differences
+     * are passed to the patch consumer as they are found: added and removed documents, and added, removed and changed
+     * fields of the documents which exist in both. Documents are compared by a fingerprint first, so only the
+     * documents which changed are compared field by field, and unchanged documents are not kept in memory.
+     * @param options The options, the zone is used for date/time texts without zone information
+     * @param from The old state
+     * @param to The new state
+     * @param patch The consumer for the differences
+     */
+    public static void diff(Options options, DiffSource from, DiffSource to, Consumer<Difference> patch) {
+        try {
+            new DocumentDiffer(options, patch).diff(from, to);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Compare two states of a tree of documents, collecting the differences
+     * @see #diff(Options, DiffSource, DiffSource, Consumer)
+     * @param options The options, the zone is used for date/time texts without zone information
+     * @param from The old state
+     * @param to The new state
+     * @return The differences, in the order in which they were found
+     */
+    public static List<Difference> diff(Options options, DiffSource from, DiffSource to) {
+        List<Difference> differences = new ArrayList<>();
+        diff(options, from, to, differences::add);
+        return differences;
+    }
+
+    /**
+     * Load the contents of the JSON provided into the Firestore database. The reference data uses the same format as
+     * the assertFirestore*() methods, so the same file can be used to set up and validate a test. Documents are
+     * written using a BulkWriter, see {@link Options#withWriteRate(int, int)} to configure its throughput. Existing
+     * documents are overwritten; documents which are skipped or do not define any fields are not written.
+     * @param firestore The firestore instance to write to
+     * @param options The options for loading
+     * @param json The JSON reference data as String
+     */
+    public static void loadJson(Firestore firestore, Options options, String json) {
+        load(firestore, JSON_MAPPER, options, json);
+    }
+
+    /**
+     * Load the JSON reference data into the database
+     * @see #loadJson(Firestore, Options, String)
+     * @param firestore The firestore instance to write to
+     * @param options The options for loading
+     * @param json The JSON reference data as File
+     */
+    public static void loadJson(Firestore firestore, Options options, File json) {
+        load(firestore, JSON_MAPPER, options, json);
+    }
+
+    /**
+     * Load the JSON reference data into the database
+     * @see #loadJson(Firestore, Options, String)
+     * @param firestore The firestore instance to write to
+     * @param options The options for loading
+     * @param json The JSON reference data as URL
+     */
+    public static void loadJson(Firestore firestore, Options options, URL json) {
+        load(firestore, JSON_MAPPER, options, json);
+    }
+
+    /**
+     * Load the JSON reference data into the database
+     * @see #loadJson(Firestore, Options, String)
+     * @param firestore The firestore instance to write to
+     * @param options The options for loading
+     * @param json The JSON reference data as Reader
+     */
+    public static void loadJson(Firestore firestore, Options options, Reader json) {
+        load(firestore, JSON_MAPPER, options, json);
+    }
+
+    /**
+     * Load the JSON reference data into the database
+     * @see #loadJson(Firestore, Options, String)
+     * @param firestore The firestore instance to write to
+     * @param options The options for loading
+     * @param json The JSON reference data as InputStream
+     */
+    public static void loadJson(Firestore firestore, Options options, InputStream json) {
+        load(firestore, JSON_MAPPER, options, json);
+    }
+
+    /**
+     * Load the YAML reference data into the database
+     * @see #loadJson(Firestore, Options, String)
+     * @param firestore The firestore instance to write to
+     * @param options The options for loading
+     * @param yaml The YAML reference data as String
+     */
+    public static void loadYaml(Firestore firestore, Options options, String yaml) {
+        load(firestore, YAML_MAPPER, options, yaml);
+    }
+
+    /**
+     * Load the YAML reference data into the database
+     * @see #loadJson(Firestore, Options, String)
+     * @param firestore The firestore instance to write to
+     * @param options The options for loading
+     * @param yaml The YAML reference data as File
+     */
+    public static void loadYaml(Firestore firestore, Options options, File yaml) {
+        load(firestore, YAML_MAPPER, options, yaml);
+    }
+
+    /**
+     * Load the YAML reference data into the database
+     * @see #loadJson(Firestore, Options, String)
+     * @param firestore The firestore instance to write to
+     * @param options The options for loading
+     * @param yaml The YAML reference data as URL
+     */
+    public static void loadYaml(Firestore firestore, Options options, URL yaml) {
+        load(firestore, YAML_MAPPER, options, yaml);
+    }
+
+    /**
+     * Load the YAML reference data into the database
+     * @see #loadJson(Firestore, Options, String)
+     * @param firestore The firestore instance to write to
+     * @param options The options for loading
+     * @param yaml The YAML reference data as Reader
+     */
+    public static void loadYaml(Firestore firestore, Options options, Reader yaml) {
+        load(firestore, YAML_MAPPER, options, yaml);
+    }
+
+    /**
+     * Load the YAML reference data into the database
+     * @see #loadJson(Firestore, Options, String)
+     * @param firestore The firestore instance to write to
+     * @param options The options for loading
+     * @param yaml The YAML reference data as InputStream
+     */
+    public static void loadYaml(Firestore firestore, Options options, InputStream yaml) {
+        load(firestore, YAML_MAPPER, options, yaml);
+    }
+
+    /**
+     * Delete all collections at the root of the JSON provided from the Firestore database, including all documents
+     * and sub collections in them. This is the counterpart of {@link #loadJson(Firestore, Options, String)} to reset
+     * the database between tests. The documents are deleted using a BulkWriter, the listing of documents and
+     * collections is done in parallel according to {@link Options#withExportParallelism(int)}.
+     * @param firestore The firestore instance to delete from
+     * @param options The options for deleting
+     * @param json The JSON reference data as String
+     */
+    public static void clearJson(Firestore firestore, Options options, String json) {
+        clear(firestore, JSON_MAPPER, options, json);
+    }
+
+    /**
+     * Delete the collections of the JSON reference data from the database
+     * @see #clearJson(Firestore, Options, String)
+     * @param firestore The firestore instance to delete from
+     * @param options The options for deleting
+     * @param json The JSON reference data as File
+     */
+    public static void clearJson(Firestore firestore, Options options, File json) {
+        clear(firestore, JSON_MAPPER, options, json);
+    }
+
+    /**
+     * Delete the collections of the JSON reference data from the database
+     * @see #clearJson(Firestore, Options, String)
+     * @param firestore The firestore instance to delete from
+     * @param options The options for deleting
+     * @param json The JSON reference data as URL
+     */
+    public static void clearJson(Firestore firestore, Options options, URL json) {
+        clear(firestore, JSON_MAPPER, options, json);
+    }
+
+    /**
+     * Delete the collections of the JSON reference data from the database
+     * @see #clearJson(Firestore, Options, String)
+     * @param firestore The firestore instance to delete from
+     * @param options The options for deleting
+     * @param json The JSON reference data as Reader
+     */
+    public static void clearJson(Firestore firestore, Options options, Reader json) {
+        clear(firestore, JSON_MAPPER, options, json);
+    }
+
+    /**
+     * Delete the collections of the JSON reference data from the database
+     * @see #clearJson(Firestore, Options, String)
+     * @param firestore The firestore instance to delete from
+     * @param options The options for deleting
+     * @param json The JSON reference data as InputStream
+     */
+    public static void clearJson(Firestore firestore, Options options, InputStream json) {
+        clear(firestore, JSON_MAPPER, options, json);
+    }
+
+    /**
+     * Delete the collections of the YAML reference data from the database
+     * @see #clearJson(Firestore, Options, String)
+     * @param firestore The firestore instance to delete from
+     * @param options The options for deleting
+     * @param yaml The YAML reference data as String
+     */
+    public static void clearYaml(Firestore firestore, Options options, String yaml) {
+        clear(firestore, YAML_MAPPER, options, yaml);
+    }
+
+    /**
+     * Delete the collections of the YAML reference data from the database
+     * @see #clearJson(Firestore, Options, String)
+     * @param firestore The firestore instance to delete from
+     * @param options The options for deleting
+     * @param yaml The YAML reference data as File
+     */
+    public static void clearYaml(Firestore firestore, Options options, File yaml) {
+        clear(firestore, YAML_MAPPER, options, yaml);
+    }
+
+    /**
+     * Delete the collections of the YAML reference data from the database
+     * @see #clearJson(Firestore, Options, String)
+     * @param firestore The firestore instance to delete from
+     * @param options The options for deleting
+     * @param yaml The YAML reference data as URL
+     */
+    public static void clearYaml(Firestore firestore, Options options, URL yaml) {
+        clear(firestore, YAML_MAPPER, options, yaml);
+    }
+
+    /**
+     * Delete the collections of the YAML reference data from the database
+     * @see #clearJson(Firestore, Options, String)
+     * @param firestore The firestore instance to delete from
+     * @param options The options for deleting
+     * @param yaml The YAML reference data as Reader
+     */
+    public static void clearYaml(Firestore firestore, Options options, Reader yaml) {
+        clear(firestore, YAML_MAPPER, options, yaml);
+    }
+
+    /**
+     * Delete the collections of the YAML reference data from the database
+     * @see #clearJson(Firestore, Options, String)
+     * @param firestore The firestore instance to delete from
+     * @param options The options for deleting
+     * @param yaml The YAML reference data as InputStream
+     */
+    public static void clearYaml(Firestore firestore, Options options, InputStream yaml) {
+        clear(firestore, YAML_MAPPER, options, yaml);
+    }
+
+    /**
+     * Delete a document or collection from the Firestore database, including all documents and collections below it.
+     * @see #clearJson(Firestore, Options, String)
+     * @param firestore The firestore instance to delete from
+     * @param options The options for deleting
+     * @param path The path of the document or collection to delete
+     */
+    public static void clearTree(Firestore firestore, Options options, String path) {
+        new FirestoreCleaner(firestore, options).clearTree(path);
+    }
+
+    /**
+     * Remove all parsed reference files from the cache.
+     * @see Options#withReferenceCache()
+     */
+    public static void clearReferenceCache() {
+        REFERENCE_CACHE.clear();
+    }
+
+    /**
+     * Return the default options
+     * @return the options
+     */
+    public static Options options() {
+        return new Options();
+    }
+
+    /**
+     * Options to configure the behaviour of the testing setup.
+     */
+    public static class Options {
+        private ZoneId zoneId;
+        private boolean strictArrayOrdering;
+        private boolean countedLaxArrayOrdering;
+        private int readBatchSize;
+        private int exportParallelism;
+        private boolean streamingExport;
+        private boolean streamingValidation;
+        private boolean collectAllFailures;
+        private boolean writeThrottling;
+        private int writeInitialOpsPerSecond;
+        private int writeMaxOpsPerSecond;
+        private boolean referenceCache;
+        private Executor executor;
+        private int pageSize;
+        private ProgressListener progressListener;
+        private boolean fieldMaskedReads;
+        private File fingerprintManifest;
+        private int shardSize;
+        private int maxConcurrentReads;
+        private int retryMaxAttempts;
+        private Duration retryInitialBackoff;
+        private Duration retryMaxBackoff;
+        private Duration callDeadline;
+
+        /**
+         * Default constructor, sets default values for options
+         */
+        private Options() {
+            zoneId = ZoneId.of("UTC");
+            strictArrayOrdering = true;
+            countedLaxArrayOrdering = false;
+            readBatchSize = 0;
+            exportParallelism = 1;
+            streamingExport = false;
+            streamingValidation = false;
+            collectAllFailures = false;
+            writeThrottling = true;
+            writeInitialOpsPerSecond = 0;
+            writeMaxOpsPerSecond = 0;
+            referenceCache = false;
+            executor = MoreExecutors.directExecutor();
+            pageSize = 300;
+            progressListener = null;
+            fieldMaskedReads = false;
+            fingerprintManifest = null;
+            shardSize = 0;
+            maxConcurrentReads = 100;
+            retryMaxAttempts = 1;
+            retryInitialBackoff = DEFAULT_RETRY_INITIAL_BACKOFF;
+            retryMaxBackoff = DEFAULT_RETRY_MAX_BACKOFF;
+            callDeadline = null;
+        }
+
+        /**
+         * Copy constructor. Used in the with*() methods, which update the copy before returning it.
+         * @param other The options to copy
+         */
+        private Options(Options other) {
+            this.zoneId = other.zoneId;
+            this.strictArrayOrdering = other.strictArrayOrdering;
+            this.countedLaxArrayOrdering = other.countedLaxArrayOrdering;
+            this.readBatchSize = other.readBatchSize;
+            this.exportParallelism = other.exportParallelism;
+            this.streamingExport = other.streamingExport;
+            this.streamingValidation = other.streamingValidation;
+            this.collectAllFailures = other.collectAllFailures;
+            this.writeThrottling = other.writeThrottling;
+            this.writeInitialOpsPerSecond = other.writeInitialOpsPerSecond;
+            this.writeMaxOpsPerSecond = other.writeMaxOpsPerSecond;
+            this.referenceCache = other.referenceCache;
+            this.executor = other.executor;
+            this.pageSize = other.pageSize;
+            this.progressListener = other.progressListener;
+            this.fieldMaskedReads = other.fieldMaskedReads;
+            this.fingerprintManifest = other.fingerprintManifest;
+            this.shardSize = other.shardSize;
+            this.maxConcurrentReads = other.maxConcurrentReads;
+            this.retryMaxAttempts = other.retryMaxAttempts;
+            this.retryInitialBackoff = other.retryInitialBackoff;
+            this.retryMaxBackoff = other.retryMaxBackoff;
+            this.callDeadline = other.callDeadline;
+        }
+
+        /**
+         * Configure the zoneId to use when comparing timestamps
+         * @param zoneId The name of the zone Id
+         * @return The new options
+         */
+        public Options withZoneId(String zoneId) {
+            return withZoneId(ZoneId.of(zoneId));
+        }
+
+        /**
+         * Configure the zoneId to use when comparing timestamps
+         * @param zoneId The zone Id
+         * @return The new options
+         */
+        public Options withZoneId(ZoneId zoneId) {
+            Options options = new Options(this);
+            options.zoneId = zoneId;
+            return options;
+        }
+
+        /**
+         * <p>
+         *      Enable strict array ordering. With strict array ordering enabled, when checking an array, the elements
+         *      are expected to be in the exact same order as in the reference file.
+         * </p>
+         * <p>
+         *     With lax array ordering, all elements in the reference file are expected to be present in the document
+         *     regardless of their order. Note that this also affects the checking of duplicates; in case elements
+         *     occur more than once in the document and reference array, lax checking will only validate that each
+         *     of the elements is present in both arrays, regardless of the number of times they are present in the array.
+         *     Use {@link #withCountedLaxArrayOrdering()} to also validate the number of occurrences.
+         * </p>
+         * @return The new options.
+         */
+        public Options withStrictArrayOrdering() {
+            Options options = new Options(this);
+            options.strictArrayOrdering = true;
+            return options;
+        }
+
+        /**
+         * Disable strict array ordering.
+         * @see #withStrictArrayOrdering()
+         * @return The new options
+         */
+        public Options withLaxArrayOrdering() {
+            Options options = new Options(this);
+            options.strictArrayOrdering = false;
+            options.countedLaxArrayOrdering = false;
+            return options;
+        }
+
+        /**
+         * Disable strict array ordering, but validate that each element occurs the same number of times in the
+         * document as in the reference array. The arrays are then compared as multisets.
+         * @see #withStrictArrayOrdering()
+         * @return The new options
+         */
+        public Options withCountedLaxArrayOrdering() {
+            Options options = new Options(this);
+            options.strictArrayOrdering = false;
+            options.countedLaxArrayOrdering = true;
+            return options;
+        }
+
+        /**
+         * <p>
+         *     Enable batched reads. Instead of retrieving each document in the reference file with a separate call,
+         *     all documents to validate are gathered first and then retrieved in chunks of at most
+         *     <code>batchSize</code> documents per call.
+         * </p>
+         * <p>
+         *     This greatly reduces the number of round trips for large reference files. Documents which are skipped or
+         *     which do not define any fields are not retrieved at all.
+         * </p>
+         * @param batchSize The maximum number of documents to retrieve in a single call
+         * @return The new options
+         */
+        public Options withBatchedReads(int batchSize) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("Batch size should be at least 1, got " + batchSize);
+            }
+            Options options = new Options(this);
+            options.readBatchSize = batchSize;
+            return options;
+        }
+
+        /**
+         * Disable batched reads, each document is retrieved with a separate call to <code>Firestore.getAll()</code>
+         * with a single document.
+         * @see #withBatchedReads(int)
+         * @return The new options
+         */
+        public Options withoutBatchedReads() {
+            Options options = new Options(this);
+            options.readBatchSize = 0;
+            return options;
+        }
+
+        /**
+         * <p>
+         *     Configure the number of worker threads used when exporting or clearing a tree of documents. With a parallelism
+         *     larger than 1, retrieving documents and listing collections and documents is spread over a pool of
+         *     this size, which also limits the number of calls to Firestore in flight.
+         * </p>
+         * <p>
+         *     The exported data has the same layout as with a sequential export. The default is 1, exporting the
+         *     tree on the calling thread.
+         * </p>
+         * <p>
+         *     For a sharded export, this is the number of shards written at the same time, and the number of shards
+         *     validated at the same time when validating against the manifest.
+         * </p>
+         * @param parallelism The number of worker threads
+         * @return The new options
+         */
+        public Options withExportParallelism(int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("Parallelism should be at least 1, got " + parallelism);
+            }
+            Options options = new Options(this);
+            options.exportParallelism = parallelism;
+            return options;
+        }
+
+        /**
+         * <p>
+         *     Enable streaming exports. With streaming enabled, the export*Recursive() methods write each document
+         *     to the output as soon as it has been retrieved, instead of building the complete tree in memory
+         *     first. Memory usage then depends on the depth of the tree rather than the number of documents.
+         * </p>
+         * <p>
+         *     The output is identical to a non-streaming export. As the output has to be written in order, a
+         *     streaming export is always performed on the calling thread; the export parallelism is not used.
+         * </p>
+         * @return The new options
+         */
+        public Options withStreamingExport() {
+            Options options = new Options(this);
+            options.streamingExport = true;
+            return options;
+        }
+
+        /**
+         * Disable streaming exports.
+         * @see #withStreamingExport()
+         * @return The new options
+         */
+        public Options withoutStreamingExport() {
+            Options options = new Options(this);
+            options.streamingExport = false;
+            return options;
+        }
+
+        /**
+         * <p>
+         *     Enable streaming validation. With streaming enabled, the reference data is not parsed into a tree up
+         *     front. Instead, each document is validated as soon as it has been parsed, while the remainder of the
+         *     reference data is read. Only the documents on the current path and the documents being validated are
+         *     kept in memory.
+         * </p>
+         * <p>
+         *     Streaming validation can be combined with batched reads, in which case documents are retrieved in
+         *     batches of the configured size as they are parsed.
+         * </p>
+         * @return The new options
+         */
+        public Options withStreamingValidation() {
+            Options options = new Options(this);
+            options.streamingValidation = true;
+            return options;
+        }
+
+        /**
+         * Disable streaming validation.
+         * @see #withStreamingValidation()
+         * @return The new options
+         */
+        public Options withoutStreamingValidation() {
+            Options options = new Options(this);
+            options.streamingValidation = false;
+            return options;
+        }
+
+        /**
+         * <p>
+         *     Continue validating after a mismatch is found. All mismatches are collected and reported at once
+         *     using a {@link FirestoreValidationError}, which contains an assertion error per mismatch. The
+         *     mismatches are also available in a structured form using {@link FirestoreValidationError#getResult()}.
+         * </p>
+         * <p>
+         *     By default, the validation stops at the first mismatch.
+         * </p>
+         * @return The new options
+         */
+        public Options withCollectAllFailures() {
+            Options options = new Options(this);
+            options.collectAllFailures = true;
+            return options;
+        }
+
+        /**
+         * Stop validating at the first mismatch, which is reported as an assertion error.
+         * @see #withCollectAllFailures()
+         * @return The new options
+         */
+        public Options withFailFast() {
+            Options options = new Options(this);
+            options.collectAllFailures = false;
+            return options;
+        }
+
+        /**
+         * <p>
+         *     Configure the throughput when loading reference data. Documents are written by a BulkWriter, which
+         *     groups the writes into batches and sends multiple batches in parallel. It starts at
+         *     <code>initialOpsPerSecond</code> writes per second and gradually increases the rate up to
+         *     <code>maxOpsPerSecond</code>, which caps the load on the database.
+         * </p>
+         * <p>
+         *     By default, the rates of the BulkWriter are used (500 initially, up to 10000 writes per second).
+         * </p>
+         * @param initialOpsPerSecond The number of writes per second to start with
+         * @param maxOpsPerSecond The maximum number of writes per second
+         * @return The new options
+         */
+        public Options withWriteRate(int initialOpsPerSecond, int maxOpsPerSecond) {
+            if (initialOpsPerSecond < 1 || maxOpsPerSecond < initialOpsPerSecond) {
+                throw new IllegalArgumentException("Invalid write rate " + initialOpsPerSecond + " - " + maxOpsPerSecond);
+            }
+            Options options = new Options(this);
+            options.writeThrottling = true;
+            options.writeInitialOpsPerSecond = initialOpsPerSecond;
+            options.writeMaxOpsPerSecond = maxOpsPerSecond;
+            return options;
+        }
+
+        /**
+         * Disable throttling when loading reference data, all batches are sent as fast as possible. Mainly useful
+         * when loading into an emulator.
+         * @see #withWriteRate(int, int)
+         * @return The new options
+         */
+        public Options withoutWriteThrottling() {
+            Options options = new Options(this);
+            options.writeThrottling = false;
+            options.writeInitialOpsPerSecond = 0;
+            options.writeMaxOpsPerSecond = 0;
+            return options;
+        }
+
+        /**
+         * <p>
+         *     Enable the reference cache. Reference data passed as String, File or URL is parsed once and kept in a
+         *     cache shared by all assertions, so repeated assertions against the same reference skip parsing.
+         *     Strings and files are recognised by a digest of their contents, so a changed file is always parsed
+         *     again. The cache holds the compiled form of the 64 most recently used references for the life of the
+         *     JVM; use {@link FirestoreUnit#clearReferenceCache()} to empty it.
+         * </p>
+         * <p>
+         *     The cache is disabled by default. It is not used for Readers and InputStreams, nor with streaming
+         *     validation.
+         * </p>
+         * @return The new options
+         */
+        public Options withReferenceCache() {
+            Options options = new Options(this);
+            options.referenceCache = true;
+            return options;
+        }
+
+        /**
+         * Disable the reference cache, the reference data is parsed on every assertion. This is the default.
+         * @see #withReferenceCache()
+         * @return The new options
+         */
+        public Options withoutReferenceCache() {
+            Options options = new Options(this);
+            options.referenceCache = false;
+            return options;
+        }
+
+        /**
+         * <p>
+         *     Configure the executor on which the retrieved documents are compared with the reference data. By
+         *     default, the comparison runs directly on the thread completing the call to Firestore, which is
+         *     usually a transport thread of the client. For large reference files, use a separate executor to keep
+         *     these threads available for network handling.
+         * </p>
+         * <p>
+         *     The executor is not shut down by the library.
+         * </p>
+         * @param executor The executor to use
+         * @return The new options
+         */
+        public Options withExecutor(Executor executor) {
+            if (executor == null) {
+                throw new IllegalArgumentException("Executor should not be null");
+            }
+            Options options = new Options(this);
+            options.executor = executor;
+            return options;
+        }
+
+        /**
+         * <p>
+         *     Configure the number of documents handled as a unit when listing the documents of a collection during an
+         *     export or clear of a tree. With a parallelism larger than 1, this is also the capacity of the work queue
+         *     of the pool; once the queue is full, listing pauses until the pool catches up. A streaming export
+         *     retrieves the documents of each page with a single call.
+         * </p>
+         * <p>
+         *     The default is 300.
+         * </p>
+         * @param pageSize The number of documents per page
+         * @return The new options
          */
-        public Options withLaxArrayOrdering() {
-            return new Options(zoneId, false);
+        public Options withPageSize(int pageSize) {
+            if (pageSize < 1) {
+                throw new IllegalArgumentException("Page size should be at least 1, got " + pageSize);
+            }
+            Options options = new Options(this);
+            options.pageSize = pageSize;
+            return options;
+        }
+
+        /**
+         * Configure a listener which is notified of each document handled while exporting or clearing a tree.
+         * @param progressListener The listener, or null to remove it
+         * @return The new options
+         */
+        public Options withProgressListener(ProgressListener progressListener) {
+            Options options = new Options(this);
+            options.progressListener = progressListener;
+            return options;
+        }
+
+        /**
+         * <p>
+         *     Enable field masked reads. When validating, only the fields defined in the reference data are
+         *     retrieved from Firestore, using a field mask. For maps, only the expected fields of the map are
+         *     retrieved. This reduces the amount of data transferred when large documents are validated against a
+         *     few expected fields.
+         * </p>
+         * <p>
+         *     With a field mask, an expected map reports a missing field instead of a type mismatch when the field in
+         *     the document is not a map, as only the expected fields within the map are retrieved. Field masked reads
+         *     are disabled by default.
+         * </p>
+         * @return The new options
+         */
+        public Options withFieldMaskedReads() {
+            Options options = new Options(this);
+            options.fieldMaskedReads = true;
+            return options;
+        }
+
+        /**
+         * Disable field masked reads, the complete documents are retrieved. This is the default.
+         * @see #withFieldMaskedReads()
+         * @return The new options
+         */
+        public Options withoutFieldMaskedReads() {
+            Options options = new Options(this);
+            options.fieldMaskedReads = false;
+            return options;
+        }
+
+        /**
+         * <p>
+         *     Keep a fingerprint manifest in the given file, to skip documents which are known to be valid. For each
+         *     document which is valid, the manifest records a fingerprint of the expected fields (and of the options
+         *     which affect the comparison) together with the update time of the document in Firestore.
+         * </p>
+         * <p>
+         *     When validating again, documents with the same fingerprint in the manifest are first retrieved without
+         *     any fields, which only returns their update time. Documents which were not updated since are skipped;
+         *     all others are retrieved and compared as usual. The manifest is written when the validation completes.
+         *     Concurrent validations should use different manifest files.
+         * </p>
+         * @param file The manifest file; when it does not exist or cannot be read, all documents are validated
+         * @return The new options
+         */
+        public Options withFingerprintManifest(File file) {
+            if (file == null) {
+                throw new IllegalArgumentException("Fingerprint manifest should not be null");
+            }
+            Options options = new Options(this);
+            options.fingerprintManifest = file;
+            return options;
+        }
+
+        /**
+         * <p>
+         *     Configure the maximum number of documents per shard of a sharded export. The documents of each top-level
+         *     collection are split over as many shards as needed; the documents of a shard are kept in memory until
+         *     it is written.
+         * </p>
+         * <p>
+         *     By default, a sharded export writes a single shard per top-level collection, which is streamed to its
+         *     file.
+         * </p>
+         * @param documents The maximum number of documents per shard
+         * @return The new options
+         */
+        public Options withShardSize(int documents) {
+            if (documents < 1) {
+                throw new IllegalArgumentException("Shard size should be at least 1, got " + documents);
+            }
+            Options options = new Options(this);
+            options.shardSize = documents;
+            return options;
+        }
+
+        /**
+         * <p>
+         *     Configure the maximum number of reads a validation has in flight. A read retrieves a single document,
+         *     or a batch of documents with {@link #withBatchedReads(int)}. Reads beyond the limit are queued and
+         *     started as earlier reads complete, without blocking the calling thread.
+         * </p>
+         * <p>
+         *     The limit adapts to the load of Firestore: when a read is rejected with RESOURCE_EXHAUSTED, the limit
+         *     is halved and the read is retried after a short delay. As reads succeed, the limit is raised again
+         *     step by step, up to the configured maximum. The default is 100.
+         * </p>
+         * @param reads The maximum number of reads in flight
+         * @return The new options
+         */
+        public Options withMaxConcurrentReads(int reads) {
+            if (reads < 1) {
+                throw new IllegalArgumentException("Concurrent reads should be at least 1, got " + reads);
+            }
+            Options options = new Options(this);
+            options.maxConcurrentReads = reads;
+            return options;
+        }
+
+        /**
+         * Retry calls to Firestore which fail with a transient error, with a backoff starting at 100 milliseconds
+         * up to 5 seconds.
+         * @see #withRetries(int, Duration, Duration)
+         * @param maxAttempts The maximum number of attempts per call, including the first one
+         * @return The new options
+         */
+        public Options withRetries(int maxAttempts) {
+            return withRetries(maxAttempts, DEFAULT_RETRY_INITIAL_BACKOFF, DEFAULT_RETRY_MAX_BACKOFF);
+        }
+
+        /**
+         * <p>
+         *     Retry calls to Firestore which fail with a transient error (UNAVAILABLE, DEADLINE_EXCEEDED or
+         *     ABORTED), or which do not complete within the deadline of {@link #withCallDeadline(Duration)}. This
+         *     applies to retrieving documents and to listing documents and collections, when validating and when
+         *     exporting. An interrupted listing is started again, skipping the documents or collections which were
+         *     already returned.
+         * </p>
+         * <p>
+         *     The backoff between attempts doubles for each attempt, from <code>initialBackoff</code> up to
+         *     <code>maxBackoff</code>, with a random jitter of up to half of it. The number of retries of a validation
+         *     is reported by {@link ValidationResult#getRetries()}. By default, calls are not retried.
+         * </p>
+         * @param maxAttempts The maximum number of attempts per call, including the first one
+         * @param initialBackoff The backoff after the first attempt
+         * @param maxBackoff The maximum backoff
+         * @return The new options
+         */
+        public Options withRetries(int maxAttempts, Duration initialBackoff, Duration maxBackoff) {
+            if (maxAttempts < 1) {
+                throw new IllegalArgumentException("Attempts should be at least 1, got " + maxAttempts);
+            }
+            if (initialBackoff == null || maxBackoff == null) {
+                throw new IllegalArgumentException("Backoff should not be null");
+            }
+            if (initialBackoff.isNegative() || maxBackoff.compareTo(initialBackoff) < 0) {
+                throw new IllegalArgumentException("Invalid backoff " + initialBackoff + " - " + maxBackoff);
+            }
+            Options options = new Options(this);
+            options.retryMaxAttempts = maxAttempts;
+            options.retryInitialBackoff = initialBackoff;
+            options.retryMaxBackoff = maxBackoff;
+            return options;
+        }
+
+        /**
+         * Disable retries, a failed call to Firestore fails the validation or export.
+         * @see #withRetries(int, Duration, Duration)
+         * @return The new options
+         */
+        public Options withoutRetries() {
+            Options options = new Options(this);
+            options.retryMaxAttempts = 1;
+            return options;
+        }
+
+        /**
+         * Configure the deadline for a single call retrieving documents. A call which did not complete within the
+         * deadline is cancelled, and retried when {@link #withRetries(int, Duration, Duration)} allows it. By
+         * default, there is no deadline besides the one of the Firestore client.
+         * @param deadline The deadline per call
+         * @return The new options
+         */
+        public Options withCallDeadline(Duration deadline) {
+            if (deadline == null || deadline.isNegative() || deadline.isZero()) {
+                throw new IllegalArgumentException("Deadline should be positive, got " + deadline);
+            }
+            Options options = new Options(this);
+            options.callDeadline = deadline;
+            return options;
+        }
+
+        /**
+         * Remove the deadline for a single call.
+         * @see #withCallDeadline(Duration)
+         * @return The new options
+         */
+        public Options withoutCallDeadline() {
+            Options options = new Options(this);
+            options.callDeadline = null;
+            return options;
         }
 
         ZoneId getZoneId() {
@@ -511,19 +1850,122 @@ public class FirestoreUnit {
         boolean isStrictArrayOrdering() {
             return strictArrayOrdering;
         }
+
+        boolean isCountedLaxArrayOrdering() {
+            return countedLaxArrayOrdering;
+        }
+
+        boolean isBatchedReads() {
+            return readBatchSize > 0;
+        }
+
+        int getReadBatchSize() {
+            return readBatchSize;
+        }
+
+        int getExportParallelism() {
+            return exportParallelism;
+        }
+
+        boolean isStreamingExport() {
+            return streamingExport;
+        }
+
+        boolean isStreamingValidation() {
+            return streamingValidation;
+        }
+
+        boolean isCollectAllFailures() {
+            return collectAllFailures;
+        }
+
+        boolean isReferenceCache() {
+            return referenceCache;
+        }
+
+        Executor getExecutor() {
+            return executor;
+        }
+
+        boolean isFieldMaskedReads() {
+            return fieldMaskedReads;
+        }
+
+        File getFingerprintManifest() {
+            return fingerprintManifest;
+        }
+
+        int getShardSize() {
+            return shardSize;
+        }
+
+        int getMaxConcurrentReads() {
+            return maxConcurrentReads;
+        }
+
+        int getRetryMaxAttempts() {
+            return retryMaxAttempts;
+        }
+
+        Duration getRetryInitialBackoff() {
+            return retryInitialBackoff;
+        }
+
+        Duration getRetryMaxBackoff() {
+            return retryMaxBackoff;
+        }
+
+        Duration getCallDeadline() {
+            return callDeadline;
+        }
+
+        int getPageSize() {
+            return pageSize;
+        }
+
+        ProgressListener getProgressListener() {
+            return progressListener;
+        }
+
+        BulkWriterOptions getBulkWriterOptions() {
+            BulkWriterOptions.Builder builder = BulkWriterOptions.builder();
+            if (!writeThrottling) {
+                builder.setThrottlingEnabled(false);
+            } else if (writeInitialOpsPerSecond > 0) {
+                builder.setInitialOpsPerSecond(writeInitialOpsPerSecond);
+                builder.setMaxOpsPerSecond(writeMaxOpsPerSecond);
+            }
+            return builder.build();
+        }
     }
 
     private static void assertFirestore(Firestore firestore, ObjectMapper mapper, Options options, String contents) {
         try {
-            FirestoreUnit.assertFirestore(firestore, options, mapper.readTree(contents));
-        } catch (JsonProcessingException e) {
+            if (options.isStreamingValidation()) {
+                try (JsonParser parser = mapper.createParser(contents)) {
+                    FirestoreUnit.assertFirestore(firestore, options, parser);
+                }
+            } else if (options.isReferenceCache()) {
+                FirestoreUnit.assertFirestore(firestore, options, REFERENCE_CACHE.plan(mapper, options.getZoneId(), contents));
+            } else {
+                FirestoreUnit.assertFirestore(firestore, options, ValidationPlan.compile(mapper.readTree(contents), options.getZoneId()));
+            }
+        } catch (IOException e) {
             fail(e);
         }
     }
 
     private static void assertFirestore(Firestore firestore, ObjectMapper mapper, Options options, File contents) {
         try {
-            FirestoreUnit.assertFirestore(firestore, options, mapper.readTree(contents));
+            if (options.isStreamingValidation()) {
+                try (JsonParser parser = mapper.createParser(contents)) {
+                    FirestoreUnit.assertFirestore(firestore, options, parser);
+                }
+            } else if (options.isReferenceCache()) {
+                FirestoreUnit.assertFirestore(firestore, options, REFERENCE_CACHE.plan(mapper, options.getZoneId(), contents));
+            } else {
+                FirestoreUnit.assertFirestore(firestore, options, ValidationPlan.compile(mapper.readTree(contents), options.getZoneId()));
+            }
         } catch (IOException e) {
             fail(e);
         }
@@ -531,7 +1973,15 @@ public class FirestoreUnit {
 
     private static void assertFirestore(Firestore firestore, ObjectMapper mapper, Options options, URL contents) {
         try {
-            FirestoreUnit.assertFirestore(firestore, options, mapper.readTree(contents));
+            if (options.isStreamingValidation()) {
+                try (JsonParser parser = mapper.createParser(contents)) {
+                    FirestoreUnit.assertFirestore(firestore, options, parser);
+                }
+            } else if (options.isReferenceCache()) {
+                FirestoreUnit.assertFirestore(firestore, options, REFERENCE_CACHE.plan(mapper, options.getZoneId(), contents));
+            } else {
+                FirestoreUnit.assertFirestore(firestore, options, ValidationPlan.compile(mapper.readTree(contents), options.getZoneId()));
+            }
         } catch (IOException e) {
             fail(e);
         }
@@ -539,7 +1989,13 @@ public class FirestoreUnit {
 
     private static void assertFirestore(Firestore firestore, ObjectMapper mapper, Options options, Reader contents) {
         try {
-            FirestoreUnit.assertFirestore(firestore, options, mapper.readTree(contents));
+            if (options.isStreamingValidation()) {
+                try (JsonParser parser = mapper.createParser(contents)) {
+                    FirestoreUnit.assertFirestore(firestore, options, parser);
+                }
+            } else {
+                FirestoreUnit.assertFirestore(firestore, options, ValidationPlan.compile(mapper.readTree(contents), options.getZoneId()));
+            }
         } catch (IOException e) {
             fail(e);
         }
@@ -547,15 +2003,246 @@ public class FirestoreUnit {
 
     private static void assertFirestore(Firestore firestore, ObjectMapper mapper, Options options, InputStream contents) {
         try {
-            FirestoreUnit.assertFirestore(firestore, options, mapper.readTree(contents));
+            if (options.isStreamingValidation()) {
+                try (JsonParser parser = mapper.createParser(contents)) {
+                    FirestoreUnit.assertFirestore(firestore, options, parser);
+                }
+            } else {
+                FirestoreUnit.assertFirestore(firestore, options, ValidationPlan.compile(mapper.readTree(contents), options.getZoneId()));
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private static void assertFirestoreSnapshot(Firestore firestore, Options options, File snapshot, Predicate<String> paths) {
+        List<ValidationPlan.DocumentPlan> documents = new ArrayList<>();
+        try (SnapshotReader reader = SnapshotReader.open(snapshot)) {
+            reader.documents(paths, (path, fields) -> {
+                documents.add(ValidationPlan.compileDocument(path, fields, options.getZoneId()));
+                return true;
+            });
         } catch (IOException e) {
             fail(e);
         }
+        assertFirestore(firestore, options, ValidationPlan.of(documents));
     }
 
-    private static void assertFirestore(Firestore firestore, Options options, JsonNode tree) {
-        FirestoreTester tester = new FirestoreTester(firestore, options, tree);
-        tester.validate();
+    private static void assertFirestore(Firestore firestore, Options options, ValidationPlan plan) {
+        FirestoreTester tester = new FirestoreTester(firestore, options);
+        try {
+            assertValid(options, tester.validate(plan));
+        } catch (InterruptedException e) {
+            fail(e);
+        } catch (ExecutionException e) {
+            fail(e.getCause());
+        }
+    }
+
+    private static void assertFirestore(Firestore firestore, Options options, JsonParser parser) throws IOException {
+        FirestoreTester tester = new FirestoreTester(firestore, options);
+        try {
+            assertValid(options, tester.validate(parser));
+        } catch (InterruptedException e) {
+            fail(e);
+        } catch (ExecutionException e) {
+            fail(e.getCause());
+        }
+    }
+
+    private static CompletableFuture<ValidationResult> assertFirestoreAsync(Firestore firestore, ObjectMapper mapper, Options options, String contents) {
+        FirestoreTester tester = new FirestoreTester(firestore, options);
+        try {
+            if (options.isStreamingValidation()) {
+                try (JsonParser parser = mapper.createParser(contents)) {
+                    return assertValidAsync(options, tester.validateAsync(parser));
+                }
+            }
+            ValidationPlan plan = options.isReferenceCache()
+                    ? REFERENCE_CACHE.plan(mapper, options.getZoneId(), contents)
+                    : ValidationPlan.compile(mapper.readTree(contents), options.getZoneId());
+            return assertValidAsync(options, tester.validateAsync(plan));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(AssertionFailureBuilder.assertionFailure().cause(e).build());
+        }
+    }
+
+    private static CompletableFuture<ValidationResult> assertFirestoreAsync(Firestore firestore, ObjectMapper mapper, Options options, File contents) {
+        FirestoreTester tester = new FirestoreTester(firestore, options);
+        try {
+            if (options.isStreamingValidation()) {
+                try (JsonParser parser = mapper.createParser(contents)) {
+                    return assertValidAsync(options, tester.validateAsync(parser));
+                }
+            }
+            ValidationPlan plan = options.isReferenceCache()
+                    ? REFERENCE_CACHE.plan(mapper, options.getZoneId(), contents)
+                    : ValidationPlan.compile(mapper.readTree(contents), options.getZoneId());
+            return assertValidAsync(options, tester.validateAsync(plan));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(AssertionFailureBuilder.assertionFailure().cause(e).build());
+        }
+    }
+
+    private static CompletableFuture<ValidationResult> assertFirestoreAsync(Firestore firestore, ObjectMapper mapper, Options options, URL contents) {
+        FirestoreTester tester = new FirestoreTester(firestore, options);
+        try {
+            if (options.isStreamingValidation()) {
+                try (JsonParser parser = mapper.createParser(contents)) {
+                    return assertValidAsync(options, tester.validateAsync(parser));
+                }
+            }
+            ValidationPlan plan = options.isReferenceCache()
+                    ? REFERENCE_CACHE.plan(mapper, options.getZoneId(), contents)
+                    : ValidationPlan.compile(mapper.readTree(contents), options.getZoneId());
+            return assertValidAsync(options, tester.validateAsync(plan));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(AssertionFailureBuilder.assertionFailure().cause(e).build());
+        }
+    }
+
+    private static CompletableFuture<ValidationResult> assertFirestoreAsync(Firestore firestore, ObjectMapper mapper, Options options, Reader contents) {
+        FirestoreTester tester = new FirestoreTester(firestore, options);
+        try {
+            if (options.isStreamingValidation()) {
+                try (JsonParser parser = mapper.createParser(contents)) {
+                    return assertValidAsync(options, tester.validateAsync(parser));
+                }
+            }
+            ValidationPlan plan = ValidationPlan.compile(mapper.readTree(contents), options.getZoneId());
+            return assertValidAsync(options, tester.validateAsync(plan));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(AssertionFailureBuilder.assertionFailure().cause(e).build());
+        }
+    }
+
+    private static CompletableFuture<ValidationResult> assertFirestoreAsync(Firestore firestore, ObjectMapper mapper, Options options, InputStream contents) {
+        FirestoreTester tester = new FirestoreTester(firestore, options);
+        try {
+            if (options.isStreamingValidation()) {
+                try (JsonParser parser = mapper.createParser(contents)) {
+                    return assertValidAsync(options, tester.validateAsync(parser));
+                }
+            }
+            ValidationPlan plan = ValidationPlan.compile(mapper.readTree(contents), options.getZoneId());
+            return assertValidAsync(options, tester.validateAsync(plan));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(AssertionFailureBuilder.assertionFailure().cause(e).build());
+        }
+    }
+
+    private static CompletableFuture<ValidationResult> assertValidAsync(Options options,
+                                                                        CompletableFuture<ValidationResult> validation) {
+        return validation.thenApply(result -> {
+            assertValid(options, result);
+            return result;
+        });
+    }
+
+    /**
+     * The assertion error for the mismatches of a single shard of a sharded export
+     */
+    private static AssertionError shardFailure(Options options, String shard, ValidationResult result) {
+        if (options.isCollectAllFailures()) {
+            return new FirestoreValidationError("The Firestore contents do not match shard " + shard, result);
+        }
+        AssertionFailedError mismatch = result.getMismatches().get(0).toAssertionError();
+        return new AssertionFailedError("Shard " + shard + ": " + mismatch.getMessage(), mismatch);
+    }
+
+    /**
+     * Raise the assertion error(s) for the mismatches found. Apart from the errors per shard of a sharded export, this
+     * is the only place where the result of a validation is turned into assertion errors.
+     */
+    private static void assertValid(Options options, ValidationResult result) {
+        if (result.isValid()) {
+            return;
+        }
+
+        if (options.isCollectAllFailures()) {
+            throw new FirestoreValidationError(result);
+        }
+        throw result.getMismatches().get(0).toAssertionError();
+    }
+
+    private static void load(Firestore firestore, ObjectMapper mapper, Options options, String contents) {
+        try (JsonParser parser = mapper.createParser(contents)) {
+            new FirestoreLoader(firestore, options).load(parser);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void load(Firestore firestore, ObjectMapper mapper, Options options, File contents) {
+        try (JsonParser parser = mapper.createParser(contents)) {
+            new FirestoreLoader(firestore, options).load(parser);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void load(Firestore firestore, ObjectMapper mapper, Options options, URL contents) {
+        try (JsonParser parser = mapper.createParser(contents)) {
+            new FirestoreLoader(firestore, options).load(parser);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void load(Firestore firestore, ObjectMapper mapper, Options options, Reader contents) {
+        try (JsonParser parser = mapper.createParser(contents)) {
+            new FirestoreLoader(firestore, options).load(parser);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void load(Firestore firestore, ObjectMapper mapper, Options options, InputStream contents) {
+        try (JsonParser parser = mapper.createParser(contents)) {
+            new FirestoreLoader(firestore, options).load(parser);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void clear(Firestore firestore, ObjectMapper mapper, Options options, String contents) {
+        try (JsonParser parser = mapper.createParser(contents)) {
+            new FirestoreCleaner(firestore, options).clear(parser);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void clear(Firestore firestore, ObjectMapper mapper, Options options, File contents) {
+        try (JsonParser parser = mapper.createParser(contents)) {
+            new FirestoreCleaner(firestore, options).clear(parser);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void clear(Firestore firestore, ObjectMapper mapper, Options options, URL contents) {
+        try (JsonParser parser = mapper.createParser(contents)) {
+            new FirestoreCleaner(firestore, options).clear(parser);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void clear(Firestore firestore, ObjectMapper mapper, Options options, Reader contents) {
+        try (JsonParser parser = mapper.createParser(contents)) {
+            new FirestoreCleaner(firestore, options).clear(parser);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void clear(Firestore firestore, ObjectMapper mapper, Options options, InputStream contents) {
+        try (JsonParser parser = mapper.createParser(contents)) {
+            new FirestoreCleaner(firestore, options).clear(parser);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     private static void export(Supplier<ObjectNode> nodeSupplier, ObjectMapper mapper, OutputStream os) {
@@ -590,6 +2277,75 @@ public class FirestoreUnit {
         }
     }
 
+    private static void exportRecursive(Firestore firestore, Options options, String path, ObjectMapper mapper, OutputStream os) {
+        if (options.isStreamingExport()) {
+            try (JsonGenerator generator = mapper.createGenerator(os, JsonEncoding.UTF8)) {
+                exportStreaming(firestore, options, path, generator);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            export(transformToNodesRecursive(firestore, options, JSON_MAPPER, path), mapper, os);
+        }
+    }
+
+    private static void exportRecursive(Firestore firestore, Options options, String path, ObjectMapper mapper, Writer w) {
+        if (options.isStreamingExport()) {
+            try (JsonGenerator generator = mapper.createGenerator(w)) {
+                exportStreaming(firestore, options, path, generator);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            export(transformToNodesRecursive(firestore, options, JSON_MAPPER, path), mapper, w);
+        }
+    }
+
+    private static void exportRecursive(Firestore firestore, Options options, String path, ObjectMapper mapper, File f) {
+        if (options.isStreamingExport()) {
+            try (JsonGenerator generator = mapper.createGenerator(f, JsonEncoding.UTF8)) {
+                exportStreaming(firestore, options, path, generator);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            export(transformToNodesRecursive(firestore, options, JSON_MAPPER, path), mapper, f);
+        }
+    }
+
+    private static void exportRecursive(Firestore firestore, Options options, String path, ObjectMapper mapper, DataOutput d) {
+        if (options.isStreamingExport()) {
+            try (JsonGenerator generator = mapper.createGenerator(d)) {
+                exportStreaming(firestore, options, path, generator);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            export(transformToNodesRecursive(firestore, options, JSON_MAPPER, path), mapper, d);
+        }
+    }
+
+    private static void exportIncremental(Firestore firestore, Options options, String path, ObjectMapper mapper, File f) {
+        try {
+            new IncrementalExporter(firestore, options, mapper).export(path, f);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void exportSharded(Firestore firestore, Options options, String path, ObjectMapper mapper, File directory) {
+        try {
+            new ShardedExporter(firestore, options, mapper).export(path, directory);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void exportStreaming(Firestore firestore, Options options, String path, JsonGenerator generator) throws IOException {
+        FirestoreExporter exporter = new FirestoreExporter(firestore, options, JSON_MAPPER);
+        exporter.exportTree(path, generator);
+    }
+
     private static Supplier<ObjectNode> transformToNodes(Firestore firestore, Options options, ObjectMapper mapper, String path) {
         return () -> {
             FirestoreExporter exporter = new FirestoreExporter(firestore, options, mapper);
@@ -597,6 +2353,13 @@ public class FirestoreUnit {
         };
     }
 
+    private static Supplier<ObjectNode> transformQueryToNodes(Firestore firestore, Options options, ObjectMapper mapper, Query query) {
+        return () -> {
+            FirestoreExporter exporter = new FirestoreExporter(firestore, options, mapper);
+            return exporter.exportQuery(query);
+        };
+    }
+
     private static Supplier<ObjectNode> transformToNodesRecursive(Firestore firestore, Options options, ObjectMapper mapper, String path) {
         return () -> {
             FirestoreExporter exporter = new FirestoreExporter(firestore, options, mapper);
@@ -0,0 +1,31 @@
+package nl.group9.firestore.unit;
+
+import org.opentest4j.MultipleFailuresError;
+
+/**
+ * Thrown when all mismatches are collected during validation and at least one was found. Each mismatch is reported
+ * as a separate failure; the complete result is available through {@link #getResult()}.
+ */
+public class FirestoreValidationError extends MultipleFailuresError {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient ValidationResult result;
+
+    FirestoreValidationError(ValidationResult result) {
+        this("The Firestore contents do not match the reference data", result);
+    }
+
+    FirestoreValidationError(String heading, ValidationResult result) {
+        super(heading, result.getMismatches().stream().map(Mismatch::toAssertionError).toList());
+        this.result = result;
+    }
+
+    /**
+     * The result of the validation
+     * @return The result, including all mismatches
+     */
+    public ValidationResult getResult() {
+        return result;
+    }
+}
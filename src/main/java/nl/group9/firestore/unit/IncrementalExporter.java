@@ -0,0 +1,251 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldMask;
+import com.google.cloud.firestore.Firestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import static nl.group9.firestore.unit.FirestoreTester.COLLECTION_PREFIX;
+
+/**
+ * Internal class to keep an exported document tree up to date. Next to the export, a manifest with the update time of
+ * each exported document is kept. On the next export, the tree is walked to find the current documents, and only the
+ * update times are retrieved using an empty field mask. Documents which changed since the previous export are
+ * retrieved completely and patched into the previous export; documents and collections which no longer exist are
+ * removed from it. Without a (readable) previous export and manifest, all documents are exported.
+ * <p>
+ * New documents and collections are added after the existing ones, so the order of the output may differ from a
+ * complete export. The contents are the same.
+ * </p>
+ */
+class IncrementalExporter {
+
+    private static final ObjectMapper MANIFEST_MAPPER = new ObjectMapper();
+    private static final String MANIFEST_SUFFIX = ".manifest";
+
+    private final Firestore firestore;
+    private final FirestoreUnit.Options options;
+    private final ObjectMapper mapper;
+    private final FirestoreExporter exporter;
+    private final Retrier retrier;
+
+    /**
+     * The previous state of the export
+     * @param path The path of the exported document
+     * @param documents The update time per path of each exported document
+     */
+    private record Manifest(String path, Map<String, Timestamp> documents) {}
+
+    IncrementalExporter(Firestore firestore, FirestoreUnit.Options options, ObjectMapper mapper) {
+        this.firestore = firestore;
+        this.options = options;
+        this.mapper = mapper;
+        this.exporter = new FirestoreExporter(firestore, options, mapper);
+        this.retrier = new Retrier(options);
+    }
+
+    /**
+     * Export a document tree, patching the previous export in the file when present
+     * @param path The path of the document to start the export from
+     * @param output The file to export to; the manifest is kept in a file with the same name and suffix ".manifest"
+     * @throws IOException When reading or writing the files fails
+     */
+    void export(String path, File output) throws IOException {
+        File manifestFile = new File(output.getPath() + MANIFEST_SUFFIX);
+        ObjectNode root = null;
+        Map<String, Timestamp> previous = Map.of();
+        if (output.isFile() && manifestFile.isFile()) {
+            try {
+                Manifest manifest = readManifest(manifestFile);
+                if (manifest.path().equals(path) && mapper.readTree(output) instanceof ObjectNode tree) {
+                    root = tree;
+                    previous = manifest.documents();
+                }
+            } catch (JsonProcessingException | DateTimeParseException e) {
+                // Unreadable export or manifest, export all documents
+            }
+        }
+        if (root == null) {
+            root = mapper.createObjectNode();
+        }
+
+        Map<String, ObjectNode> documents = new ConcurrentHashMap<>();
+        Set<String> collections = ConcurrentHashMap.newKeySet();
+        ObjectNode documentNode = exporter.nodesForPath(root, path);
+        walk(path, documentNode, documents, collections);
+        prune(documentNode, path, documents, collections);
+        Map<String, Timestamp> current = patch(documents, previous);
+
+        mapper.writeValue(output, root);
+        writeManifest(manifestFile, new Manifest(path, current));
+    }
+
+    /**
+     * Find all documents and collections of the tree. The nodes of new documents and collections are added to the
+     * tree, existing nodes are reused.
+     */
+    private void walk(String path, ObjectNode node, Map<String, ObjectNode> documents, Set<String> collections) {
+        new DocumentTreeWalker<>(new DocumentTreeWalker.Visitor<ObjectNode>() {
+            @Override
+            public void visitDocument(DocumentReference document, ObjectNode documentNode) {
+                documents.put(document.getPath(), documentNode);
+            }
+
+            @Override
+            public ObjectNode enterCollection(ObjectNode parent, CollectionReference collection) {
+                collections.add(collection.getPath());
+                return parent.withObject(COLLECTION_PREFIX + collection.getId());
+            }
+
+            @Override
+            public ObjectNode enterDocument(ObjectNode parent, DocumentReference document) {
+                return parent.withObject(document.getId());
+            }
+        }, options).walkDocument(firestore.document(path), node);
+    }
+
+    /**
+     * Remove the nodes of documents and collections which were not found while walking the tree
+     */
+    private void prune(ObjectNode documentNode, String documentPath, Map<String, ObjectNode> documents, Set<String> collections) {
+        for (Iterator<Map.Entry<String, JsonNode>> it = documentNode.fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> entry = it.next();
+            String name = entry.getKey();
+            if (!name.startsWith(COLLECTION_PREFIX) || !(entry.getValue() instanceof ObjectNode collectionNode)) {
+                continue;
+            }
+
+            String collectionPath = documentPath + "/" + name.substring(COLLECTION_PREFIX.length());
+            if (!collections.contains(collectionPath)) {
+                it.remove();
+                continue;
+            }
+
+            for (Iterator<Map.Entry<String, JsonNode>> docs = collectionNode.fields(); docs.hasNext(); ) {
+                Map.Entry<String, JsonNode> document = docs.next();
+                String path = collectionPath + "/" + document.getKey();
+                if (documents.containsKey(path)) {
+                    prune(documents.get(path), path, documents, collections);
+                } else {
+                    docs.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieve the update times of the documents page by page, and export the documents which changed. Without a
+     * previous export, the documents are retrieved completely at once.
+     * @return The update times of the documents which exist
+     */
+    private Map<String, Timestamp> patch(Map<String, ObjectNode> documents, Map<String, Timestamp> previous) {
+        Map<String, Timestamp> current = new TreeMap<>();
+        List<DocumentReference> references = new ArrayList<>(documents.size());
+        documents.keySet().forEach(path -> references.add(firestore.document(path)));
+
+        int pageSize = options.getPageSize();
+        for (int start = 0; start < references.size(); start += pageSize) {
+            List<DocumentReference> page = references.subList(start, Math.min(start + pageSize, references.size()));
+            if (previous.isEmpty()) {
+                patch(getAll(page, null), documents, current);
+                continue;
+            }
+
+            List<DocumentReference> changed = new ArrayList<>();
+            for (DocumentSnapshot snapshot : getAll(page, FieldMask.of())) {
+                String path = snapshot.getReference().getPath();
+                Timestamp updateTime = snapshot.getUpdateTime();
+                if (updateTime == null) {
+                    if (previous.containsKey(path)) {
+                        // Deleted, but still has collections
+                        replaceFields(documents.get(path), snapshot);
+                    }
+                } else if (updateTime.equals(previous.get(path))) {
+                    current.put(path, updateTime);
+                } else {
+                    changed.add(snapshot.getReference());
+                }
+            }
+            if (!changed.isEmpty()) {
+                patch(getAll(changed, null), documents, current);
+            }
+        }
+        return current;
+    }
+
+    private void patch(List<DocumentSnapshot> snapshots, Map<String, ObjectNode> documents, Map<String, Timestamp> current) {
+        for (DocumentSnapshot snapshot : snapshots) {
+            String path = snapshot.getReference().getPath();
+            replaceFields(documents.get(path), snapshot);
+            if (snapshot.exists()) {
+                current.put(path, snapshot.getUpdateTime());
+            }
+        }
+    }
+
+    /**
+     * Replace the fields of a document node, keeping its collections after the fields like a complete export does
+     */
+    private void replaceFields(ObjectNode node, DocumentSnapshot snapshot) {
+        ObjectNode collections = node.objectNode();
+        for (Iterator<Map.Entry<String, JsonNode>> it = node.fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> entry = it.next();
+            if (entry.getKey().startsWith(COLLECTION_PREFIX)) {
+                collections.set(entry.getKey(), entry.getValue());
+            }
+        }
+
+        node.removeAll();
+        exporter.exportSnapshot(snapshot, node);
+        node.setAll(collections);
+    }
+
+    private List<DocumentSnapshot> getAll(List<DocumentReference> documents, FieldMask fieldMask) {
+        DocumentReference[] references = documents.toArray(new DocumentReference[0]);
+        try {
+            // Firestore.getAll() returns the snapshots in the order of the requested references
+            return retrier.get(() -> fieldMask == null
+                    ? firestore.getAll(references)
+                    : firestore.getAll(references, fieldMask));
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Manifest readManifest(File file) throws IOException {
+        JsonNode tree = MANIFEST_MAPPER.readTree(file);
+        Map<String, Timestamp> documents = new HashMap<>();
+        for (Iterator<Map.Entry<String, JsonNode>> it = tree.path("documents").fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> entry = it.next();
+            documents.put(entry.getKey(), Timestamp.parseTimestamp(entry.getValue().asText()));
+        }
+        return new Manifest(tree.path("path").asText(), documents);
+    }
+
+    private void writeManifest(File file, Manifest manifest) throws IOException {
+        ObjectNode tree = MANIFEST_MAPPER.createObjectNode();
+        tree.put("path", manifest.path());
+        ObjectNode documents = tree.putObject("documents");
+        manifest.documents().forEach((path, updateTime) -> documents.put(path, updateTime.toString()));
+        MANIFEST_MAPPER.writeValue(file, tree);
+    }
+}
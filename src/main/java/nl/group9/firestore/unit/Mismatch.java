@@ -0,0 +1,72 @@
+package nl.group9.firestore.unit;
+
+import org.junit.jupiter.api.AssertionFailureBuilder;
+import org.opentest4j.AssertionFailedError;
+
+/**
+ * A single difference between the reference data and the contents of the Firestore database.
+ * @param path The path of the document or field where the difference was found
+ * @param kind The kind of difference
+ * @param message The description of the difference
+ * @param expected The expected value, as used in the assertion message
+ * @param actual The actual value, as used in the assertion message
+ */
+public record Mismatch(String path, Kind kind, String message, Object expected, Object actual) {
+
+    /**
+     * The kinds of differences which can be found during validation
+     */
+    public enum Kind {
+        /**
+         * The document does not exist. Expected and actual indicate the existence of the document.
+         */
+        MISSING_DOCUMENT,
+        /**
+         * The field does not exist in the document or map. Expected and actual indicate the existence of the field.
+         */
+        MISSING_FIELD,
+        /**
+         * The field has a different type. Expected is the expected type, actual is the type found (or null).
+         */
+        INVALID_TYPE,
+        /**
+         * The field has a different value.
+         */
+        INVALID_VALUE,
+        /**
+         * The array field has a different number of elements. Expected and actual are the sizes of the arrays.
+         */
+        ARRAY_SIZE,
+        /**
+         * An element of the reference array was not found in the array in the document. Expected is the element
+         * from the reference array, actual is the array in the document.
+         */
+        ARRAY_ELEMENT_NOT_FOUND,
+        /**
+         * The reference data contains a value which cannot be validated.
+         */
+        UNSUPPORTED
+    }
+
+    /**
+     * Convert the mismatch to the assertion error which is thrown when the validation stops at the first mismatch.
+     * @return The assertion error
+     */
+    public AssertionFailedError toAssertionError() {
+        AssertionFailureBuilder builder = AssertionFailureBuilder.assertionFailure().message(message);
+
+        switch (kind) {
+            case ARRAY_ELEMENT_NOT_FOUND, UNSUPPORTED -> {
+                return builder.build();
+            }
+            case INVALID_TYPE -> builder.reason(actual == null ? "Unexpected null value" : "Unexpected type");
+            default -> {
+                // Values only
+            }
+        }
+
+        return builder.expected(expected)
+                .actual(actual)
+                .build();
+    }
+}
@@ -0,0 +1,17 @@
+package nl.group9.firestore.unit;
+
+/**
+ * Listener for the progress of an export or a clear operation on a tree of documents.
+ * @see FirestoreUnit.Options#withProgressListener(ProgressListener)
+ */
+@FunctionalInterface
+public interface ProgressListener {
+
+    /**
+     * Called after a document of the tree has been handled. With an export parallelism larger than 1, this method is
+     * called concurrently from the worker threads, so implementations must be thread-safe.
+     * @param path The path of the document
+     * @param documentsVisited The number of documents handled so far, including this one
+     */
+    void documentVisited(String path, long documentsVisited);
+}
@@ -0,0 +1,229 @@
+package nl.group9.firestore.unit;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Internal limiter for the reads of a validation. Reads are started in the order in which they are submitted, with at
+ * most the current limit in flight; the others wait in a queue, without blocking the thread which submitted them.
+ * <p>
+ * The limit adapts to the load of Firestore (additive increase, multiplicative decrease). When a read fails with
+ * RESOURCE_EXHAUSTED, the limit is halved and the read is queued again after a backoff delay with jitter. Each time as
+ * many reads as the current limit completed, the limit is raised by one, up to the configured maximum.
+ * </p>
+ */
+class ReadLimiter {
+
+    static final int MAX_THROTTLED_ATTEMPTS = 10;
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 10_000;
+
+    private final int maxLimit;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Deque<Read<?>> queue = new ArrayDeque<>();
+    private int limit;
+    private int inFlight;
+    private int completed;
+    private long throttled;
+    private boolean draining;
+    private RuntimeException cancelled;
+
+    ReadLimiter(int maxLimit) {
+        this(maxLimit, INITIAL_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS);
+    }
+
+    ReadLimiter(int maxLimit, long initialBackoffMillis, long maxBackoffMillis) {
+        this.maxLimit = maxLimit;
+        this.limit = maxLimit;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Start a read as soon as the limit allows it
+     * @param call Starts the read; called again when the read is throttled
+     * @return The result of the read
+     * @param <T> The type of the result
+     */
+    <T> ApiFuture<T> read(Supplier<ApiFuture<T>> call) {
+        Read<T> read = new Read<>(call);
+        synchronized (this) {
+            if (cancelled != null) {
+                return ApiFutures.immediateFailedFuture(cancelled);
+            }
+            queue.addLast(read);
+        }
+        drain();
+        return read.result;
+    }
+
+    /**
+     * Fail the reads which were not started yet, including throttled reads waiting to be queued again, and any read
+     * submitted later. Reads in flight are not affected.
+     * @param reason The failure of the cancelled reads
+     */
+    void cancel(RuntimeException reason) {
+        List<Read<?>> pending;
+        synchronized (this) {
+            if (cancelled != null) {
+                return;
+            }
+            cancelled = reason;
+            pending = new ArrayList<>(queue);
+            queue.clear();
+        }
+        pending.forEach(read -> read.result.setException(reason));
+    }
+
+    /**
+     * @return The current limit
+     */
+    synchronized int limit() {
+        return limit;
+    }
+
+    /**
+     * @return The number of reads which were throttled and queued again
+     */
+    synchronized long throttled() {
+        return throttled;
+    }
+
+    /**
+     * Start queued reads while the limit allows it. The reads are started outside the lock, as a read may complete
+     * (and call back into the limiter) before its call returns. Only one thread drains at a time; a call while
+     * another thread (or an outer call on the same thread) is draining returns at once, as that drain continues until
+     * no more reads can be started.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+
+        while (true) {
+            Read<?> read;
+            synchronized (this) {
+                if (inFlight >= limit || queue.isEmpty()) {
+                    draining = false;
+                    return;
+                }
+                read = queue.pollFirst();
+                inFlight++;
+            }
+            read.start();
+        }
+    }
+
+    private synchronized void succeeded() {
+        inFlight--;
+        if (++completed >= limit && limit < maxLimit) {
+            limit++;
+            completed = 0;
+        }
+    }
+
+    private synchronized void failed() {
+        inFlight--;
+    }
+
+    private synchronized void throttled() {
+        inFlight--;
+        throttled++;
+        limit = Math.max(1, limit / 2);
+        completed = 0;
+    }
+
+    private void requeue(Read<?> read) {
+        RuntimeException reason;
+        synchronized (this) {
+            reason = cancelled;
+            if (reason == null) {
+                // Queued ahead of reads which were not started yet, to keep the order of submission
+                queue.addFirst(read);
+                return;
+            }
+        }
+        read.result.setException(reason);
+    }
+
+    static boolean isResourceExhausted(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ApiException e && e.getStatusCode().getCode() == StatusCode.Code.RESOURCE_EXHAUSTED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long backoffMillis(int attempt) {
+        long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 16));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * A read with the future for its result, which is only completed once the read did not get throttled
+     */
+    private class Read<T> {
+        private final Supplier<ApiFuture<T>> call;
+        private final SettableApiFuture<T> result = SettableApiFuture.create();
+        private int attempt;
+
+        Read(Supplier<ApiFuture<T>> call) {
+            this.call = call;
+        }
+
+        void start() {
+            ApiFuture<T> future;
+            try {
+                future = call.get();
+            } catch (RuntimeException e) {
+                failed();
+                drain();
+                result.setException(e);
+                return;
+            }
+
+            ApiFutures.addCallback(future, new ApiFutureCallback<T>() {
+                @Override
+                public void onFailure(Throwable t) {
+                    if (isResourceExhausted(t) && ++attempt < MAX_THROTTLED_ATTEMPTS) {
+                        throttled();
+                        Retrier.SCHEDULER.schedule(() -> {
+                            requeue(Read.this);
+                            drain();
+                        }, backoffMillis(attempt), TimeUnit.MILLISECONDS);
+                        drain();
+                    } else {
+                        failed();
+                        drain();
+                        result.setException(t);
+                    }
+                }
+
+                @Override
+                public void onSuccess(T value) {
+                    succeeded();
+                    drain();
+                    result.set(value);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+    }
+}
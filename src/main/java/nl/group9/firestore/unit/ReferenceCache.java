@@ -0,0 +1,122 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneId;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Internal cache of compiled reference files, so repeated assertions against the same file skip parsing and
+ * compiling. Strings and files are keyed on a SHA-256 digest of their contents, so a changed file is always parsed
+ * again, however quickly it was rewritten, and no reference contents are kept besides the compiled plan. Resources
+ * inside an archive are keyed on their URL. The cache holds a bounded number of entries and evicts the least recently
+ * used one.
+ */
+class ReferenceCache {
+
+    private final Map<Key, ValidationPlan> entries;
+
+    /**
+     * Source of a reference file which can be parsed
+     */
+    @FunctionalInterface
+    private interface Parser {
+        JsonNode parse() throws IOException;
+    }
+
+    /**
+     * Identity of a compiled reference file
+     * @param mapper The mapper used for parsing, which determines the format
+     * @param zoneId The zone the plan was compiled for
+     * @param source The digest of the contents, or the URL of a resource inside an archive
+     */
+    private record Key(ObjectMapper mapper, ZoneId zoneId, String source) {}
+
+    ReferenceCache(int maxSize) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, ValidationPlan> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Return the plan for reference contents given as string
+     */
+    ValidationPlan plan(ObjectMapper mapper, ZoneId zoneId, String contents) throws IOException {
+        return plan(new Key(mapper, zoneId, digest(contents.getBytes(StandardCharsets.UTF_8))), () -> mapper.readTree(contents));
+    }
+
+    /**
+     * Return the plan for a reference file. The file is read completely to compute the digest; it is only parsed
+     * when its contents are not in the cache.
+     */
+    ValidationPlan plan(ObjectMapper mapper, ZoneId zoneId, File file) throws IOException {
+        byte[] contents = Files.readAllBytes(file.toPath());
+        return plan(new Key(mapper, zoneId, digest(contents)), () -> mapper.readTree(contents));
+    }
+
+    /**
+     * Return the plan for a reference URL. File URLs are cached as files, resources inside an archive (e.g. on the
+     * classpath) by their URL. Other URLs are not cached, as they may change without notice.
+     */
+    ValidationPlan plan(ObjectMapper mapper, ZoneId zoneId, URL url) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return plan(mapper, zoneId, Paths.get(url.toURI()).toFile());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                return ValidationPlan.compile(mapper.readTree(url), zoneId);
+            }
+        } else if ("jar".equals(url.getProtocol())) {
+            return plan(new Key(mapper, zoneId, url.toExternalForm()), () -> mapper.readTree(url));
+        }
+        return ValidationPlan.compile(mapper.readTree(url), zoneId);
+    }
+
+    /**
+     * Remove all entries
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    private ValidationPlan plan(Key key, Parser parser) throws IOException {
+        ValidationPlan plan = get(key);
+        if (plan == null) {
+            // Compile without holding the lock; concurrent misses for the same key may both compile
+            plan = ValidationPlan.compile(parser.parse(), key.zoneId());
+            put(key, plan);
+        }
+        return plan;
+    }
+
+    private static String digest(byte[] contents) {
+        try {
+            return "sha256:" + HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(contents));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private synchronized ValidationPlan get(Key key) {
+        return entries.get(key);
+    }
+
+    private synchronized void put(Key key, ValidationPlan plan) {
+        entries.put(key, plan);
+    }
+}
@@ -0,0 +1,253 @@
+package nl.group9.firestore.unit;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Internal helper to retry calls to Firestore which fail with a transient error (UNAVAILABLE, DEADLINE_EXCEEDED or
+ * ABORTED), or which do not complete within the configured deadline. Attempts are spaced by an exponential backoff
+ * with jitter. RESOURCE_EXHAUSTED is not retried here, as the reads of a validation back off on it in the
+ * {@link ReadLimiter}. The retries are counted for the statistics of a validation.
+ */
+class Retrier {
+
+    /**
+     * Timer for deadlines and delayed attempts, shared by all validations and exports
+     */
+    static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "firestore-unit-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Set<StatusCode.Code> RETRYABLE = EnumSet.of(
+            StatusCode.Code.UNAVAILABLE, StatusCode.Code.DEADLINE_EXCEEDED, StatusCode.Code.ABORTED);
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Duration deadline;
+    private final AtomicLong retries = new AtomicLong();
+
+    Retrier(FirestoreUnit.Options options) {
+        this.maxAttempts = options.getRetryMaxAttempts();
+        this.initialBackoffMillis = options.getRetryInitialBackoff().toMillis();
+        this.maxBackoffMillis = options.getRetryMaxBackoff().toMillis();
+        this.deadline = options.getCallDeadline();
+    }
+
+    /**
+     * @return The number of attempts which were retried
+     */
+    long retries() {
+        return retries.get();
+    }
+
+    /**
+     * Perform a call, blocking until it succeeded or failed for the last time
+     * @param call Starts the call; called again for each attempt
+     * @return The result of the call
+     * @param <T> The type of the result
+     * @throws InterruptedException When interrupted while waiting for the call or a backoff
+     * @throws ExecutionException When the last attempt failed or did not complete within the deadline
+     */
+    <T> T get(Supplier<ApiFuture<T>> call) throws InterruptedException, ExecutionException {
+        for (int attempt = 1; ; attempt++) {
+            Throwable failure;
+            ApiFuture<T> future = start(call);
+            try {
+                return deadline == null ? future.get() : future.get(deadline.toNanos(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                failure = timeout();
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            }
+
+            if (attempt >= maxAttempts || !isRetryable(failure)) {
+                throw new ExecutionException(failure);
+            }
+            retries.incrementAndGet();
+            Thread.sleep(backoffMillis(attempt));
+        }
+    }
+
+    /**
+     * Perform a call without blocking. The deadline and the backoff between attempts are handled by a timer.
+     * @param call Starts the call; called again for each attempt
+     * @return The result of the last attempt
+     * @param <T> The type of the result
+     */
+    <T> ApiFuture<T> getAsync(Supplier<ApiFuture<T>> call) {
+        SettableApiFuture<T> result = SettableApiFuture.create();
+        attempt(call, 1, result);
+        return result;
+    }
+
+    /**
+     * Wrap a listing, e.g. listDocuments() or listCollections(). When iterating fails with a transient error, the
+     * listing is started again and the items which were already returned are skipped.
+     * @param listing Starts the listing; called again after each failure
+     * @return The iterable
+     * @param <T> The type of the items
+     */
+    <T> Iterable<T> iterable(Supplier<Iterable<T>> listing) {
+        return () -> new RetryingIterator<>(listing);
+    }
+
+    private <T> void attempt(Supplier<ApiFuture<T>> call, int attempt, SettableApiFuture<T> result) {
+        ApiFuture<T> future = start(call);
+        AtomicBoolean done = new AtomicBoolean();
+        ScheduledFuture<?> timeout = deadline == null ? null : SCHEDULER.schedule(() -> {
+            if (done.compareAndSet(false, true)) {
+                future.cancel(true);
+                failed(call, attempt, result, timeout());
+            }
+        }, deadline.toNanos(), TimeUnit.NANOSECONDS);
+
+        ApiFutures.addCallback(future, new ApiFutureCallback<T>() {
+            @Override
+            public void onFailure(Throwable t) {
+                if (done.compareAndSet(false, true)) {
+                    cancel(timeout);
+                    failed(call, attempt, result, t);
+                }
+            }
+
+            @Override
+            public void onSuccess(T value) {
+                if (done.compareAndSet(false, true)) {
+                    cancel(timeout);
+                    result.set(value);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private <T> void failed(Supplier<ApiFuture<T>> call, int attempt, SettableApiFuture<T> result, Throwable t) {
+        if (attempt >= maxAttempts || !isRetryable(t)) {
+            result.setException(t);
+            return;
+        }
+        retries.incrementAndGet();
+        SCHEDULER.schedule(() -> attempt(call, attempt + 1, result), backoffMillis(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    private static <T> ApiFuture<T> start(Supplier<ApiFuture<T>> call) {
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            return ApiFutures.immediateFailedFuture(e);
+        }
+    }
+
+    private static void cancel(ScheduledFuture<?> timeout) {
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+    }
+
+    private TimeoutException timeout() {
+        return new TimeoutException("Call to Firestore did not complete within " + deadline);
+    }
+
+    static boolean isRetryable(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TimeoutException) {
+                return true;
+            } else if (cause instanceof ApiException e && RETRYABLE.contains(e.getStatusCode().getCode())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Exponential backoff with jitter: a random delay between half and the full backoff of the attempt
+     */
+    private long backoffMillis(int attempt) {
+        long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 16));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * Iterator over a listing which is started again after a transient failure. Listings are ordered by id, so the
+     * items returned before the failure are skipped by count.
+     */
+    private class RetryingIterator<T> implements Iterator<T> {
+        private final Supplier<Iterable<T>> listing;
+        private Iterator<T> iterator;
+        private long returned;
+
+        RetryingIterator(Supplier<Iterable<T>> listing) {
+            this.listing = listing;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return retry(() -> iterator().hasNext());
+        }
+
+        @Override
+        public T next() {
+            T item = retry(() -> iterator().next());
+            returned++;
+            return item;
+        }
+
+        private Iterator<T> iterator() {
+            if (iterator == null) {
+                Iterator<T> restarted = listing.get().iterator();
+                for (long i = 0; i < returned && restarted.hasNext(); i++) {
+                    restarted.next();
+                }
+                iterator = restarted;
+            }
+            return iterator;
+        }
+
+        private <R> R retry(Supplier<R> operation) {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    return operation.get();
+                } catch (RuntimeException e) {
+                    if (attempt >= maxAttempts || !isRetryable(e)) {
+                        throw e;
+                    }
+                    iterator = null;
+                    retries.incrementAndGet();
+                    sleep(backoffMillis(attempt));
+                }
+            }
+        }
+
+        private void sleep(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
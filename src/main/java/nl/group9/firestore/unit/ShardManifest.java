@@ -0,0 +1,105 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static nl.group9.firestore.unit.FirestoreUnit.JSON_MAPPER;
+import static nl.group9.firestore.unit.FirestoreUnit.YAML_MAPPER;
+
+/**
+ * Internal representation of the manifest of a sharded export: the path which was exported, the format of the
+ * shards, and per shard its file (relative to the manifest), the collection it belongs to and the number of
+ * documents in it. The manifest itself is always JSON:
+ * <pre>
+ *     {"path": "", "format": "json", "documents": 3, "shards": [
+ *         {"file": "0001-users.json", "collection": "users", "documents": 3}
+ *     ]}
+ * </pre>
+ */
+final class ShardManifest {
+
+    static final String FILE_NAME = "manifest.json";
+    private static final String JSON = "json";
+    private static final String YAML = "yaml";
+
+    private final String path;
+    private final String format;
+    private final List<Shard> shards;
+
+    /**
+     * A shard of the export
+     * @param file The name of the file, relative to the directory of the manifest
+     * @param collection The path of the top-level collection the documents belong to, or the path of the exported
+     *                   document for the shard holding only that document
+     * @param documents The number of documents in the shard
+     */
+    record Shard(String file, String collection, long documents) {}
+
+    ShardManifest(String path, ObjectMapper mapper, List<Shard> shards) {
+        this(path, mapper == YAML_MAPPER ? YAML : JSON, shards);
+    }
+
+    private ShardManifest(String path, String format, List<Shard> shards) {
+        this.path = path;
+        this.format = format;
+        this.shards = List.copyOf(shards);
+    }
+
+    /**
+     * Read a manifest
+     * @param file The manifest file
+     * @return The manifest
+     * @throws IOException When the file cannot be read or is not a manifest
+     */
+    static ShardManifest read(File file) throws IOException {
+        JsonNode root = JSON_MAPPER.readTree(file);
+        String format = root.path("format").asText(JSON);
+        if (!JSON.equals(format) && !YAML.equals(format)) {
+            throw new IOException("Unknown shard format in manifest " + file + ": " + format);
+        }
+        List<Shard> shards = new ArrayList<>();
+        for (JsonNode shard : root.path("shards")) {
+            shards.add(new Shard(shard.path("file").asText(), shard.path("collection").asText(),
+                    shard.path("documents").asLong()));
+        }
+        return new ShardManifest(root.path("path").asText(), format, shards);
+    }
+
+    /**
+     * Write the manifest
+     * @param file The manifest file
+     * @throws IOException When writing fails
+     */
+    void write(File file) throws IOException {
+        ObjectNode root = JSON_MAPPER.createObjectNode();
+        root.put("path", path);
+        root.put("format", format);
+        root.put("documents", shards.stream().mapToLong(Shard::documents).sum());
+        ArrayNode shardNodes = root.putArray("shards");
+        for (Shard shard : shards) {
+            shardNodes.addObject()
+                    .put("file", shard.file())
+                    .put("collection", shard.collection())
+                    .put("documents", shard.documents());
+        }
+        JSON_MAPPER.writerWithDefaultPrettyPrinter().writeValue(file, root);
+    }
+
+    /**
+     * @return The mapper to read the shards with
+     */
+    ObjectMapper mapper() {
+        return YAML.equals(format) ? YAML_MAPPER : JSON_MAPPER;
+    }
+
+    List<Shard> shards() {
+        return shards;
+    }
+}
@@ -0,0 +1,246 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static nl.group9.firestore.unit.FirestoreUnit.JSON_MAPPER;
+import static nl.group9.firestore.unit.FirestoreUnit.YAML_MAPPER;
+
+/**
+ * Internal class to export a tree of documents to a directory of shards, and to validate the shards listed in a
+ * manifest.
+ * <p>
+ * Each top-level collection of the tree (the collections of the exported document, or the root collections of the
+ * database) is written to its own shards, by a pool of writers of the size of the export parallelism. Without a shard
+ * size, a collection is streamed to a single shard; otherwise its documents are collected and written per shard
+ * size. The fields of the exported document itself are written to a separate shard. Each shard has the layout of a
+ * complete export, so it can be validated or processed on its own. The manifest is written once all shards are.
+ * </p>
+ */
+class ShardedExporter {
+
+    private final Firestore firestore;
+    private final FirestoreUnit.Options options;
+    private final ObjectMapper mapper;
+    private final FirestoreExporter exporter;
+    private final Retrier retrier;
+
+    ShardedExporter(Firestore firestore, FirestoreUnit.Options options, ObjectMapper mapper) {
+        this.firestore = firestore;
+        this.options = options;
+        this.mapper = mapper;
+        this.exporter = new FirestoreExporter(firestore, options, JSON_MAPPER);
+        this.retrier = new Retrier(options);
+    }
+
+    /**
+     * Export a tree to a directory
+     * @param path The path of the document to export, or an empty string for the complete database
+     * @param directory The directory for the shards and the manifest; created when it does not exist
+     * @throws IOException When writing fails
+     */
+    void export(String path, File directory) throws IOException {
+        Files.createDirectories(directory.toPath());
+
+        List<Callable<List<ShardManifest.Shard>>> tasks = new ArrayList<>();
+        Iterable<CollectionReference> collections;
+        if (path.isEmpty()) {
+            collections = retrier.iterable(firestore::listCollections);
+        } else {
+            DocumentReference document = firestore.document(path);
+            tasks.add(() -> exportDocument(document, directory));
+            collections = retrier.iterable(document::listCollections);
+        }
+        int index = 1;
+        for (CollectionReference collection : collections) {
+            String name = String.format("%04d-%s", index++, fileName(collection.getId()));
+            tasks.add(() -> exportCollection(collection, name, directory));
+        }
+
+        List<ShardManifest.Shard> shards = new ArrayList<>();
+        run(tasks, options.getExportParallelism()).forEach(shards::addAll);
+        new ShardManifest(path, mapper, shards).write(new File(directory, ShardManifest.FILE_NAME));
+    }
+
+    /**
+     * Validate each shard listed in a manifest on its own: a shard is parsed, compiled and validated by a separate
+     * task, and the shards are handled concurrently according to the export parallelism. The shards share a single
+     * fingerprint manifest, when configured.
+     * @param firestore The firestore instance to read from
+     * @param manifestFile The manifest of the sharded export
+     * @param options The options for validation
+     * @return The result per shard file, in the order of the manifest
+     * @throws IOException When the manifest or a shard cannot be read
+     */
+    static Map<String, ValidationResult> validate(Firestore firestore, File manifestFile, FirestoreUnit.Options options)
+            throws IOException {
+        ShardManifest manifest = ShardManifest.read(manifestFile);
+        File directory = manifestFile.getAbsoluteFile().getParentFile();
+        File fingerprintFile = options.getFingerprintManifest();
+        FingerprintManifest fingerprints = fingerprintFile == null ? null : FingerprintManifest.load(fingerprintFile);
+
+        List<Callable<ValidationResult>> tasks = new ArrayList<>();
+        for (ShardManifest.Shard shard : manifest.shards()) {
+            tasks.add(() -> {
+                JsonNode tree = manifest.mapper().readTree(new File(directory, shard.file()));
+                ValidationPlan plan = ValidationPlan.compile(tree, options.getZoneId());
+                try {
+                    return new FirestoreTester(firestore, options, fingerprints).validate(plan);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Validating shard " + shard.file() + " failed", e.getCause());
+                }
+            });
+        }
+
+        List<ValidationResult> results = run(tasks, options.getExportParallelism());
+        Map<String, ValidationResult> resultsPerShard = new LinkedHashMap<>();
+        for (int i = 0; i < results.size(); i++) {
+            resultsPerShard.put(manifest.shards().get(i).file(), results.get(i));
+        }
+        return resultsPerShard;
+    }
+
+    private List<ShardManifest.Shard> exportDocument(DocumentReference document, File directory) throws Exception {
+        DocumentSnapshot snapshot = retrier.get(document::get);
+        if (snapshot.getData() == null || snapshot.getData().isEmpty()) {
+            return List.of();
+        }
+
+        ObjectNode root = JSON_MAPPER.createObjectNode();
+        exporter.exportSnapshot(snapshot, exporter.nodesForPath(root, document.getPath()));
+        String file = "0000-" + fileName(document.getId()) + extension();
+        mapper.writeValue(new File(directory, file), root);
+        return List.of(new ShardManifest.Shard(file, document.getPath(), 1));
+    }
+
+    private List<ShardManifest.Shard> exportCollection(CollectionReference collection, String name, File directory)
+            throws IOException {
+        if (options.getShardSize() == 0) {
+            String file = name + extension();
+            long documents;
+            try (JsonGenerator generator = mapper.createGenerator(new File(directory, file), JsonEncoding.UTF8)) {
+                documents = exporter.exportCollection(collection, generator);
+            }
+            return List.of(new ShardManifest.Shard(file, collection.getPath(), documents));
+        }
+
+        ShardCollector collector = new ShardCollector(collection.getPath(), name, directory);
+        exporter.exportCollection(collection, collector);
+        collector.flush();
+        return collector.shards;
+    }
+
+    private String extension() {
+        return mapper == YAML_MAPPER ? ".yaml" : ".json";
+    }
+
+    /**
+     * Collection ids may contain characters which are not allowed in file names
+     */
+    private static String fileName(String id) {
+        return id.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Run tasks on a pool of the given size, or on the calling thread for a parallelism of 1
+     * @return The results, in the order of the tasks
+     */
+    private static <T> List<T> run(List<Callable<T>> tasks, int parallelism) throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        if (parallelism <= 1 || tasks.size() <= 1) {
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (Exception e) {
+                    throw rethrow(e);
+                }
+            }
+            return results;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()));
+        try {
+            for (Future<T> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static IOException rethrow(Throwable t) {
+        if (t instanceof IOException e) {
+            return e;
+        } else if (t instanceof RuntimeException e) {
+            throw e;
+        } else if (t instanceof Error e) {
+            throw e;
+        } else if (t instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+        }
+        throw new RuntimeException(t);
+    }
+
+    /**
+     * Collects the documents of a collection tree, and writes them each time the shard size is reached
+     */
+    private class ShardCollector implements FirestoreExporter.TreeSink {
+        private final String collection;
+        private final String name;
+        private final File directory;
+        private final List<ShardManifest.Shard> shards = new ArrayList<>();
+        private ObjectNode root = JSON_MAPPER.createObjectNode();
+        private long documents;
+
+        ShardCollector(String collection, String name, File directory) {
+            this.collection = collection;
+            this.name = name;
+            this.directory = directory;
+        }
+
+        @Override
+        public void document(DocumentSnapshot snapshot, ObjectNode fields) throws IOException {
+            exporter.nodesForPath(root, snapshot.getReference().getPath()).setAll(fields);
+            if (++documents == options.getShardSize()) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (documents == 0) {
+                return;
+            }
+            String file = String.format("%s-%04d%s", name, shards.size() + 1, extension());
+            mapper.writeValue(new File(directory, file), root);
+            shards.add(new ShardManifest.Shard(file, collection, documents));
+            root = JSON_MAPPER.createObjectNode();
+            documents = 0;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import static nl.group9.firestore.unit.FirestoreUnit.SMILE_MAPPER;
+import static nl.group9.firestore.unit.SnapshotWriter.FOOTER;
+import static nl.group9.firestore.unit.SnapshotWriter.FOOTER_SIZE;
+import static nl.group9.firestore.unit.SnapshotWriter.HEADER;
+
+/**
+ * Internal reader of binary snapshots written by {@link SnapshotWriter}. The file is memory-mapped; only the index is
+ * decoded when opening, the records of the documents are decoded when requested. Files larger than a single mapping
+ * (2 GB) are mapped per record instead. A reader can be used concurrently.
+ */
+final class SnapshotReader implements Closeable {
+
+    private final FileChannel channel;
+    private final ByteBuffer mapped;
+    private final Map<String, Record> index;
+
+    /**
+     * The location of the record of a document
+     * @param offset The offset in the file
+     * @param length The length in bytes
+     */
+    private record Record(long offset, int length) {}
+
+    private SnapshotReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        long size = channel.size();
+        this.mapped = size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+        this.index = Collections.unmodifiableMap(readIndex(size));
+    }
+
+    /**
+     * Open a snapshot
+     * @param file The snapshot file
+     * @return The reader, which should be closed after use
+     * @throws IOException When the file cannot be read or is not a snapshot
+     */
+    static SnapshotReader open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new SnapshotReader(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read a single document using the index
+     * @param path The path of the document
+     * @return The fields of the document, or null when the snapshot does not contain it
+     * @throws IOException When the record cannot be read
+     */
+    ObjectNode document(String path) throws IOException {
+        Record record = index.get(path);
+        return record == null ? null : read(record);
+    }
+
+    /**
+     * Read the documents whose path matches, in the order of the export. Documents without fields are not passed to
+     * the handler, the same as when reading a reference file.
+     * @param paths The filter on the paths, which is applied to the index before reading any record
+     * @param handler The handler for the documents
+     * @throws IOException When a record cannot be read
+     */
+    void documents(Predicate<String> paths, StreamingReferenceReader.DocumentHandler handler) throws IOException {
+        for (Map.Entry<String, Record> entry : index.entrySet()) {
+            if (paths.test(entry.getKey())) {
+                ObjectNode fields = read(entry.getValue());
+                if (!fields.isEmpty() && !handler.document(entry.getKey(), fields)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ObjectNode read(Record record) throws IOException {
+        try (JsonParser parser = SMILE_MAPPER.createParser(new ByteBufferBackedInputStream(region(record.offset(), record.length())))) {
+            return SMILE_MAPPER.readTree(parser);
+        }
+    }
+
+    private Map<String, Record> readIndex(long size) throws IOException {
+        if (size < HEADER.length + FOOTER_SIZE || !matches(region(0, HEADER.length), HEADER)) {
+            throw new IOException("Not a snapshot file");
+        }
+        ByteBuffer footer = region(size - FOOTER_SIZE, FOOTER_SIZE);
+        long indexOffset = footer.getLong();
+        if (!matches(footer, FOOTER) || indexOffset < HEADER.length || indexOffset > size - FOOTER_SIZE) {
+            throw new IOException("Snapshot file is incomplete");
+        }
+
+        Map<String, Record> records = new LinkedHashMap<>();
+        ByteBuffer indexBytes = region(indexOffset, (int) (size - FOOTER_SIZE - indexOffset));
+        try (JsonParser parser = SMILE_MAPPER.createParser(new ByteBufferBackedInputStream(indexBytes))) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Invalid snapshot index");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String path = parser.currentName();
+                parser.nextToken();
+                long[] location = parser.readValueAs(long[].class);
+                records.put(path, new Record(location[0], (int) location[1]));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * A buffer on a region of the file, from the mapping of the whole file when possible
+     */
+    private ByteBuffer region(long offset, int length) throws IOException {
+        if (mapped != null) {
+            return mapped.slice((int) offset, length);
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    private static boolean matches(ByteBuffer buffer, byte[] magic) {
+        byte[] bytes = new byte[magic.length];
+        buffer.get(bytes);
+        return Arrays.equals(bytes, magic);
+    }
+}
@@ -0,0 +1,92 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static nl.group9.firestore.unit.FirestoreUnit.SMILE_MAPPER;
+
+/**
+ * Internal writer of binary snapshots. A snapshot holds the same documents as a JSON export, in a layout which allows
+ * reading a single document without reading the rest of the file:
+ * <ul>
+ *     <li>A header: the magic bytes {@code FUSNAP01}</li>
+ *     <li>A record per document, in the order of the export: the fields of the document encoded as a separate Smile
+ *     document, without sub collections</li>
+ *     <li>The index: a Smile object with for each document path the offset and length of its record</li>
+ *     <li>A footer of 16 bytes: the offset of the index as big-endian long, and the magic bytes {@code FUSNAPIX}</li>
+ * </ul>
+ * The index is kept in memory until the snapshot is finished. A snapshot which is closed without being finished has
+ * no footer, so the reader rejects it as incomplete.
+ */
+final class SnapshotWriter implements Closeable {
+
+    static final byte[] HEADER = "FUSNAP01".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] FOOTER = "FUSNAPIX".getBytes(StandardCharsets.US_ASCII);
+    static final int FOOTER_SIZE = Long.BYTES + 8;
+
+    private final OutputStream out;
+    private final Map<String, long[]> index = new LinkedHashMap<>();
+    private long position;
+
+    SnapshotWriter(File file) throws IOException {
+        this.out = new BufferedOutputStream(new FileOutputStream(file));
+        write(HEADER);
+    }
+
+    /**
+     * Write the record of a document
+     * @param path The path of the document
+     * @param fields The fields of the document
+     * @throws IOException When writing fails
+     */
+    void write(String path, ObjectNode fields) throws IOException {
+        byte[] record = SMILE_MAPPER.writeValueAsBytes(fields);
+        index.put(path, new long[]{position, record.length});
+        write(record);
+    }
+
+    /**
+     * Write the index and the footer. Only call this once all documents have been written.
+     * @throws IOException When writing fails
+     */
+    void finish() throws IOException {
+        long indexOffset = position;
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        try (JsonGenerator generator = SMILE_MAPPER.createGenerator(indexBytes)) {
+            generator.writeStartObject();
+            for (Map.Entry<String, long[]> entry : index.entrySet()) {
+                generator.writeFieldName(entry.getKey());
+                generator.writeArray(entry.getValue(), 0, 2);
+            }
+            generator.writeEndObject();
+        }
+        write(indexBytes.toByteArray());
+        write(ByteBuffer.allocate(FOOTER_SIZE).putLong(indexOffset).put(FOOTER).array());
+    }
+
+    /**
+     * Close the file, without writing the index and the footer
+     * @throws IOException When closing fails
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        out.write(bytes);
+        position += bytes.length;
+    }
+}
@@ -0,0 +1,143 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+
+import static nl.group9.firestore.unit.FirestoreTester.COLLECTION_PREFIX;
+
+/**
+ * Internal class to read a reference file as a stream of tokens. Each document is handed to the handler as soon as its
+ * object has been parsed, so only the fields of the documents on the current path are kept in memory.
+ */
+class StreamingReferenceReader {
+
+    private final JsonNodeFactory nodeFactory;
+
+    /**
+     * Handler for the documents found in the reference file
+     */
+    @FunctionalInterface
+    interface DocumentHandler {
+
+        /**
+         * Handle a single document. Only called for documents which are not skipped and define at least one field.
+         * @param path The path of the document in Firestore
+         * @param fields The fields of the document, without the sub collections
+         * @return true to continue reading, false to stop
+         */
+        boolean document(String path, ObjectNode fields);
+    }
+
+    StreamingReferenceReader() {
+        this.nodeFactory = JsonNodeFactory.instance;
+    }
+
+    /**
+     * Read all documents from the parser
+     * @param parser The parser, positioned before the root object
+     * @param handler The handler for the documents
+     * @throws IOException When the reference cannot be parsed
+     */
+    void read(JsonParser parser, DocumentHandler handler) throws IOException {
+        parser.nextToken();
+        readCollections(parser, "", handler);
+    }
+
+    /**
+     * Read the collections of the root node. Other fields on the root are ignored.
+     */
+    private boolean readCollections(JsonParser parser,
+                                    String parentPath,
+                                    DocumentHandler handler) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return true;
+        }
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            parser.nextToken();
+
+            if (isCollectionFieldName(name)) {
+                String collectionPath = childPath(parentPath, name.substring(COLLECTION_PREFIX.length()));
+                if (!readCollection(parser, collectionPath, handler)) {
+                    return false;
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return true;
+    }
+
+    private boolean readCollection(JsonParser parser,
+                                   String collectionPath,
+                                   DocumentHandler handler) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return true;
+        }
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String documentName = parser.currentName();
+            parser.nextToken();
+
+            boolean skipCurrent = false;
+            if (isCollectionFieldName(documentName)) {
+                documentName = documentName.substring(COLLECTION_PREFIX.length());
+                skipCurrent = true;
+            }
+
+            if (!readDocument(parser, collectionPath + "/" + documentName, skipCurrent, handler)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean readDocument(JsonParser parser,
+                                 String documentPath,
+                                 boolean skipCurrent,
+                                 DocumentHandler handler) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return true;
+        }
+
+        ObjectNode fields = nodeFactory.objectNode();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            parser.nextToken();
+
+            if (isCollectionFieldName(name)) {
+                String collectionPath = documentPath + "/" + name.substring(COLLECTION_PREFIX.length());
+                if (!readCollection(parser, collectionPath, handler)) {
+                    return false;
+                }
+            } else if (skipCurrent) {
+                parser.skipChildren();
+            } else {
+                JsonNode value = parser.readValueAsTree();
+                fields.set(name, value);
+            }
+        }
+
+        if (skipCurrent || fields.isEmpty()) {
+            return true;
+        }
+        return handler.document(documentPath, fields);
+    }
+
+    private static String childPath(String parentPath, String name) {
+        return parentPath.isEmpty() ? name : parentPath + "/" + name;
+    }
+
+    private boolean isCollectionFieldName(String fieldName) {
+        return fieldName.startsWith(COLLECTION_PREFIX);
+    }
+}
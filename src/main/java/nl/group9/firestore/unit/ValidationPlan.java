@@ -0,0 +1,256 @@
+package nl.group9.firestore.unit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static nl.group9.firestore.unit.FirestoreTester.COLLECTION_PREFIX;
+
+/**
+ * Internal, immutable form of a reference tree. Compiling the tree resolves the paths of all documents and fields, and
+ * converts the expected values to typed values (including the parsing of date/time texts) once. A plan can be used for
+ * any number of validations, also concurrently.
+ */
+final class ValidationPlan {
+
+    private final List<DocumentPlan> documents;
+
+    private ValidationPlan(List<DocumentPlan> documents) {
+        this.documents = List.copyOf(documents);
+    }
+
+    /**
+     * Compile a reference tree. Only documents which are not skipped and define at least one field are part of the
+     * plan, in the order in which they occur in the tree.
+     * @param tree The reference tree
+     * @param zoneId The zone for date/time texts without zone information
+     * @return The plan
+     */
+    static ValidationPlan compile(JsonNode tree, ZoneId zoneId) {
+        List<DocumentPlan> documents = new ArrayList<>();
+        new Compiler(zoneId).collections("", tree, documents);
+        return new ValidationPlan(documents);
+    }
+
+    /**
+     * Create a plan from documents which were compiled separately
+     * @param documents The documents, in the order in which to validate them
+     * @return The plan
+     */
+    static ValidationPlan of(List<DocumentPlan> documents) {
+        return new ValidationPlan(documents);
+    }
+
+    /**
+     * Compile a single document
+     * @param path The path of the document
+     * @param fields The expected fields of the document; sub collections are ignored
+     * @param zoneId The zone for date/time texts without zone information
+     * @return The plan for the document
+     */
+    static DocumentPlan compileDocument(String path, JsonNode fields, ZoneId zoneId) {
+        return Compiler.document(path, new Compiler(zoneId).fields(path, fields));
+    }
+
+    /**
+     * @return The documents to validate
+     */
+    List<DocumentPlan> documents() {
+        return documents;
+    }
+
+    /**
+     * A document to validate
+     * @param path The path of the document
+     * @param fields The expected fields
+     * @param fieldPaths The segments of the paths of all fields to retrieve, with nested maps expanded into the
+     *                   paths of their expected fields
+     */
+    record DocumentPlan(String path, List<FieldPlan> fields, List<List<String>> fieldPaths) {
+        DocumentPlan {
+            fields = List.copyOf(fields);
+            fieldPaths = List.copyOf(fieldPaths);
+        }
+    }
+
+    /**
+     * An expected field of a document or map
+     * @param name The name of the field
+     * @param value The expected value
+     */
+    record FieldPlan(String name, ExpectedValue value) {}
+
+    /**
+     * An expected value, together with the path used when reporting a mismatch
+     */
+    sealed interface ExpectedValue
+            permits NullValue, BooleanValue, LongValue, DoubleValue, TextValue, MapValue, ArrayValue, UnsupportedValue {
+        String path();
+    }
+
+    record NullValue(String path) implements ExpectedValue {}
+
+    record BooleanValue(String path, boolean value) implements ExpectedValue {}
+
+    record LongValue(String path, long value) implements ExpectedValue {}
+
+    record DoubleValue(String path, double value) implements ExpectedValue {}
+
+    /**
+     * A text, which matches a string, a reference or (when the text is a date/time) a timestamp
+     * @param path The path of the value
+     * @param text The text
+     * @param dateTime Whether the text is a date/time
+     * @param seconds The seconds since the epoch of the date/time
+     * @param nanos The nanoseconds within the second of the date/time
+     */
+    record TextValue(String path, String text, boolean dateTime, long seconds, int nanos) implements ExpectedValue {}
+
+    record MapValue(String path, List<FieldPlan> fields) implements ExpectedValue {
+        MapValue {
+            fields = List.copyOf(fields);
+        }
+    }
+
+    record ArrayValue(String path, List<ExpectedValue> elements) implements ExpectedValue {
+        ArrayValue {
+            elements = List.copyOf(elements);
+        }
+    }
+
+    /**
+     * A value which cannot be validated
+     * @param path The path of the value
+     * @param value The value from the reference tree
+     * @param message The message to report
+     */
+    record UnsupportedValue(String path, Object value, String message) implements ExpectedValue {}
+
+    /**
+     * Converts the reference tree into the plan
+     */
+    private static class Compiler {
+        private final ZoneId zoneId;
+
+        Compiler(ZoneId zoneId) {
+            this.zoneId = zoneId;
+        }
+
+        /**
+         * Collect the documents of all collections of a node. Other fields of the node are ignored.
+         */
+        void collections(String parentPath, JsonNode node, List<DocumentPlan> documents) {
+            for (Iterator<Map.Entry<String, JsonNode>> it = node.fields(); it.hasNext(); ) {
+                Map.Entry<String, JsonNode> collectionEntry = it.next();
+                String name = collectionEntry.getKey();
+
+                if (name.startsWith(COLLECTION_PREFIX)) {
+                    String collectionPath = childPath(parentPath, name.substring(COLLECTION_PREFIX.length()));
+                    documents(collectionPath, collectionEntry.getValue(), documents);
+                }
+            }
+        }
+
+        private void documents(String collectionPath, JsonNode node, List<DocumentPlan> documents) {
+            for (Iterator<Map.Entry<String, JsonNode>> it = node.fields(); it.hasNext(); ) {
+                Map.Entry<String, JsonNode> documentEntry = it.next();
+                String name = documentEntry.getKey();
+                JsonNode documentNode = documentEntry.getValue();
+
+                boolean skipped = name.startsWith(COLLECTION_PREFIX);
+                String documentPath = collectionPath + "/" + (skipped ? name.substring(COLLECTION_PREFIX.length()) : name);
+
+                if (!skipped) {
+                    List<FieldPlan> fields = fields(documentPath, documentNode);
+                    if (!fields.isEmpty()) {
+                        documents.add(document(documentPath, fields));
+                    }
+                }
+                collections(documentPath, documentNode, documents);
+            }
+        }
+
+        /**
+         * The expected fields of a document or map; fields starting with the collection prefix are skipped
+         */
+        List<FieldPlan> fields(String parentPath, JsonNode node) {
+            List<FieldPlan> fields = new ArrayList<>();
+            for (Iterator<Map.Entry<String, JsonNode>> it = node.fields(); it.hasNext(); ) {
+                Map.Entry<String, JsonNode> fieldEntry = it.next();
+                String name = fieldEntry.getKey();
+
+                if (!name.startsWith(COLLECTION_PREFIX)) {
+                    fields.add(new FieldPlan(name, value(parentPath + "/" + name, fieldEntry.getValue())));
+                }
+            }
+            return fields;
+        }
+
+        private ExpectedValue value(String path, JsonNode value) {
+            // https://firebase.google.com/docs/firestore/manage-data/data-types
+            if (value.isNull()) {
+                return new NullValue(path);
+            } else if (value.isArray()) {
+                List<ExpectedValue> elements = new ArrayList<>(value.size());
+                for (int i = 0; i < value.size(); i++) {
+                    elements.add(value(path + "[" + i + "]", value.get(i)));
+                }
+                return new ArrayValue(path, elements);
+            } else if (value.isBoolean()) {
+                return new BooleanValue(path, value.booleanValue());
+            } else if (value.isBinary()) {
+                // TODO:
+                return new UnsupportedValue(path, value, "Not supported yet at " + path);
+            } else if (value.isFloatingPointNumber()) {
+                return new DoubleValue(path, value.asDouble());
+            } else if (value.isIntegralNumber()) {
+                return new LongValue(path, value.asLong());
+            } else if (value.isObject()) {
+                return new MapValue(path, fields(path, value));
+            } else if (value.isTextual()) {
+                String text = value.textValue();
+                Instant instant = DateTimes.parse(text, zoneId);
+                if (instant == null) {
+                    return new TextValue(path, text, false, 0, 0);
+                }
+                return new TextValue(path, text, true, instant.getEpochSecond(), instant.getNano());
+            }
+
+            // TODO: Geographical point not supported
+            return new UnsupportedValue(path, value, "Invalid JSON Node type encountered for document path " + path);
+        }
+
+        static DocumentPlan document(String path, List<FieldPlan> fields) {
+            List<List<String>> fieldPaths = new ArrayList<>();
+            fieldPaths(List.of(), fields, fieldPaths);
+            return new DocumentPlan(path, fields, fieldPaths);
+        }
+
+        /**
+         * Collect the paths of the fields to retrieve. All field names are taken literally, also names containing
+         * dots, the same way as they are loaded and exported. Maps with expected fields are expanded, other values
+         * (including empty maps) are retrieved as a whole.
+         */
+        private static void fieldPaths(List<String> parent, List<FieldPlan> fields, List<List<String>> fieldPaths) {
+            for (FieldPlan field : fields) {
+                List<String> path = new ArrayList<>(parent);
+                path.add(field.name());
+
+                if (field.value() instanceof MapValue map && !map.fields().isEmpty()) {
+                    fieldPaths(path, map.fields(), fieldPaths);
+                } else {
+                    fieldPaths.add(List.copyOf(path));
+                }
+            }
+        }
+
+        private static String childPath(String parentPath, String name) {
+            return parentPath.isEmpty() ? name : parentPath + "/" + name;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package nl.group9.firestore.unit;
+
+import java.util.List;
+
+/**
+ * The result of the validation of the Firestore database against the reference data.
+ */
+public class ValidationResult {
+
+    private final List<Mismatch> mismatches;
+    private final long retries;
+    private final long throttledReads;
+
+    ValidationResult(List<Mismatch> mismatches) {
+        this(mismatches, 0, 0);
+    }
+
+    ValidationResult(List<Mismatch> mismatches, long retries, long throttledReads) {
+        this.mismatches = List.copyOf(mismatches);
+        this.retries = retries;
+        this.throttledReads = throttledReads;
+    }
+
+    /**
+     * Whether the Firestore database matched the reference data
+     * @return true when no mismatches were found
+     */
+    public boolean isValid() {
+        return mismatches.isEmpty();
+    }
+
+    /**
+     * The mismatches found, ordered by path
+     * @return The mismatches
+     */
+    public List<Mismatch> getMismatches() {
+        return mismatches;
+    }
+
+    /**
+     * The number of calls to Firestore which failed with a transient error and were retried
+     * @see FirestoreUnit.Options#withRetries(int, java.time.Duration, java.time.Duration)
+     * @return The number of retries
+     */
+    public long getRetries() {
+        return retries;
+    }
+
+    /**
+     * The number of reads which were rejected with RESOURCE_EXHAUSTED and retried at a lower concurrency
+     * @see FirestoreUnit.Options#withMaxConcurrentReads(int)
+     * @return The number of throttled reads
+     */
+    public long getThrottledReads() {
+        return throttledReads;
+    }
+}
@@ -0,0 +1,387 @@
+package nl.group9.firestore.unit;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static nl.group9.firestore.unit.ValidationPlan.*;
+
+/**
+ * Internal class to compare the expected values of the reference data with the values in a document. Mismatches are
+ * handed to a {@link MismatchSink} instead of being thrown. The expected values come from a compiled
+ * {@link ValidationPlan}, so no parsing or path building takes place while comparing.
+ */
+class ValueComparator {
+
+    /**
+     * Sink used when probing for a match, which stops at the first mismatch and discards it
+     */
+    static final MismatchSink PROBE = mismatch -> false;
+
+    /**
+     * Canonical key for null values in arrays
+     */
+    private static final Object NULL_KEY = new Object();
+
+    private final FirestoreUnit.Options options;
+
+    /**
+     * Receives the mismatches found while comparing
+     */
+    @FunctionalInterface
+    interface MismatchSink {
+
+        /**
+         * Handle a mismatch
+         * @param mismatch The mismatch found
+         * @return true to continue comparing, false to stop
+         */
+        boolean mismatch(Mismatch mismatch);
+    }
+
+    ValueComparator(FirestoreUnit.Options options) {
+        this.options = options;
+    }
+
+    /**
+     * Compare the fields of a document with the expected fields
+     * @param snapshot The document
+     * @param document The plan of the document
+     * @param sink The sink for mismatches
+     * @return false when the comparison was stopped by the sink
+     */
+    boolean compareDocument(DocumentSnapshot snapshot, DocumentPlan document, MismatchSink sink) {
+        // VALIDATE: document exists
+        if (!snapshot.exists()) {
+            String path = document.path();
+            return sink.mismatch(new Mismatch(path, Mismatch.Kind.MISSING_DOCUMENT,
+                    "The document was not found at " + path, true, false));
+        }
+        // Field names are literal segments, not dotted field paths, the same as when loading or exporting
+        return compareFields(document.fields(),
+                name -> snapshot.contains(FieldPath.of(name)),
+                name -> snapshot.get(FieldPath.of(name)),
+                sink);
+    }
+
+    private boolean compareFields(List<FieldPlan> fields,
+                                  Predicate<String> fieldExists,
+                                  Function<String, Object> fieldAccessor,
+                                  MismatchSink sink) {
+        for (FieldPlan field : fields) {
+            // VALIDATE: Field exists and has correct value
+            boolean proceed;
+            if (fieldExists.test(field.name())) {
+                proceed = compareValue(field.value(), fieldAccessor.apply(field.name()), sink);
+            } else {
+                String fieldPath = field.value().path();
+                proceed = sink.mismatch(new Mismatch(fieldPath, Mismatch.Kind.MISSING_FIELD,
+                        "Field does not exist at field path " + fieldPath, true, false));
+            }
+
+            if (!proceed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare a single value
+     */
+    boolean compareValue(ExpectedValue value, Object docValue, MismatchSink sink) {
+        if (value instanceof NullValue) {
+            return docValue == null
+                    || sink.mismatch(new Mismatch(value.path(), Mismatch.Kind.INVALID_VALUE, null, null, docValue));
+        } else if (value instanceof ArrayValue array) {
+            return compareArray(array, docValue, sink);
+        } else if (value instanceof BooleanValue expected) {
+            if (!(docValue instanceof Boolean b)) {
+                return typeMismatch(Boolean.class, docValue, value, sink);
+            }
+            return b == expected.value()
+                    || valueMismatch(expected.value(), b, value, sink);
+        } else if (value instanceof DoubleValue expected) {
+            if (!(docValue instanceof Double d)) {
+                return typeMismatch(Double.class, docValue, value, sink);
+            }
+            // Same semantics as Double.equals()
+            return Double.doubleToLongBits(expected.value()) == Double.doubleToLongBits(d)
+                    || valueMismatch(expected.value(), d, value, sink);
+        } else if (value instanceof LongValue expected) {
+            if (!(docValue instanceof Long l)) {
+                return typeMismatch(Long.class, docValue, value, sink);
+            }
+            return expected.value() == l
+                    || valueMismatch(expected.value(), l, value, sink);
+        } else if (value instanceof MapValue map) {
+            if (!(docValue instanceof Map<?, ?> mapDocValue)) {
+                return typeMismatch(Map.class, docValue, value, sink);
+            }
+            return compareFields(map.fields(), mapDocValue::containsKey, mapDocValue::get, sink);
+        } else if (value instanceof TextValue expected) {
+            if (docValue instanceof Timestamp timestamp) {
+                // Date and time, the date/time objects are only created to report a mismatch
+                if (!expected.dateTime()) {
+                    return valueMismatch(expected.text(), toZonedDateTime(timestamp.getSeconds(), timestamp.getNanos()),
+                            value, sink);
+                }
+                return (expected.seconds() == timestamp.getSeconds() && expected.nanos() == timestamp.getNanos())
+                        || valueMismatch(toZonedDateTime(expected.seconds(), expected.nanos()),
+                            toZonedDateTime(timestamp.getSeconds(), timestamp.getNanos()), value, sink);
+            } else if (docValue instanceof DocumentReference reference) {
+                String actual = reference.getPath();
+                return expected.text().equals(actual)
+                        || valueMismatch(expected.text(), actual, value, sink);
+            } else if (docValue instanceof String text) {
+                // Text string
+                return expected.text().equals(text)
+                        || valueMismatch(expected.text(), text, value, sink);
+            }
+            return typeMismatch(String.class, docValue, value, sink);
+        }
+
+        UnsupportedValue unsupported = (UnsupportedValue) value;
+        return sink.mismatch(new Mismatch(unsupported.path(), Mismatch.Kind.UNSUPPORTED,
+                unsupported.message(), unsupported.value(), docValue));
+    }
+
+    private boolean compareArray(ArrayValue array, Object docValue, MismatchSink sink) {
+        if (!(docValue instanceof List<?> docListValue)) {
+            return typeMismatch(List.class, docValue, array, sink);
+        }
+
+        List<ExpectedValue> elements = array.elements();
+        if (elements.size() != docListValue.size()) {
+            String fieldPath = array.path();
+            return sink.mismatch(new Mismatch(fieldPath, Mismatch.Kind.ARRAY_SIZE,
+                    "Array field does not contain the same number of elements at " + fieldPath,
+                    elements.size(), docListValue.size()));
+        }
+
+        if (options.isStrictArrayOrdering()) {
+            return compareArrayStrict(elements, docListValue, sink);
+        } else {
+            return compareArrayLax(elements, docListValue, sink);
+        }
+    }
+
+    private boolean compareArrayStrict(List<ExpectedValue> elements, List<?> docListValue, MismatchSink sink) {
+        for (int i = 0; i < docListValue.size(); i++) {
+            if (!compareValue(elements.get(i), docListValue.get(i), sink)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lax array validation. Scalar elements are matched by converting both sides to canonical keys and counting them
+     * in a hash multiset, which takes linear time. Maps (which only need to contain the expected fields) cannot be
+     * reduced to a key, and are matched by comparing them with each of the map elements of the document.
+     * @see #matchComposites(List, List, boolean)
+     */
+    private boolean compareArrayLax(List<ExpectedValue> elements, List<?> docListValue, MismatchSink sink) {
+        boolean countDuplicates = options.isCountedLaxArrayOrdering();
+
+        Map<Object, Integer> available = new HashMap<>();
+        List<Object> docComposites = new ArrayList<>();
+        for (Object docArrayValue : docListValue) {
+            Object key = documentValueKey(docArrayValue);
+            if (key == null) {
+                docComposites.add(docArrayValue);
+            } else {
+                available.merge(key, 1, Integer::sum);
+            }
+        }
+        boolean[] compositeFound = matchComposites(elements, docComposites, countDuplicates);
+
+        for (int i = 0; i < elements.size(); i++) {
+            ExpectedValue element = elements.get(i);
+            boolean found;
+            if (isScalar(element)) {
+                found = matchScalar(element, available, countDuplicates);
+            } else {
+                found = compositeFound[i];
+            }
+
+            if (!found) {
+                String subPath = element.path();
+                if (!sink.mismatch(new Mismatch(subPath, Mismatch.Kind.ARRAY_ELEMENT_NOT_FOUND,
+                        "Array value for path " + subPath + " not found in document", plainValue(element), docListValue))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean matchScalar(ExpectedValue element, Map<Object, Integer> available, boolean countDuplicates) {
+        for (Object key : expectedValueKeys(element)) {
+            Integer count = available.get(key);
+            if (count != null && count > 0) {
+                if (countDuplicates) {
+                    available.put(key, count - 1);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Match the expected maps and arrays with the map and array elements of the document. Without counting duplicates,
+     * an expected element only has to match any of them. When counting, each document element can be used once; as a
+     * map matches any map containing its fields, a greedy choice can use up the only candidate of a later element.
+     * A maximum bipartite matching (augmenting paths) is used instead, so the result does not depend on the order of
+     * either array.
+     * @return Per expected element whether it was matched; always false for scalars
+     */
+    private boolean[] matchComposites(List<ExpectedValue> elements, List<Object> docComposites, boolean countDuplicates) {
+        boolean[] found = new boolean[elements.size()];
+        List<List<Integer>> candidates = new ArrayList<>(elements.size());
+        for (int i = 0; i < elements.size(); i++) {
+            List<Integer> matches = new ArrayList<>();
+            if (!isScalar(elements.get(i))) {
+                for (int j = 0; j < docComposites.size(); j++) {
+                    if (compareValue(elements.get(i), docComposites.get(j), PROBE)) {
+                        matches.add(j);
+                    }
+                }
+            }
+            candidates.add(matches);
+            found[i] = !matches.isEmpty();
+        }
+        if (!countDuplicates) {
+            return found;
+        }
+
+        int[] owner = new int[docComposites.size()];
+        Arrays.fill(owner, -1);
+        for (int i = 0; i < elements.size(); i++) {
+            if (found[i]) {
+                found[i] = augment(i, candidates, owner, new boolean[docComposites.size()]);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Find an augmenting path for an expected element: use a free candidate, or take the candidate of another element
+     * which can move to a different one
+     */
+    private static boolean augment(int element, List<List<Integer>> candidates, int[] owner, boolean[] visited) {
+        for (int candidate : candidates.get(element)) {
+            if (!visited[candidate]) {
+                visited[candidate] = true;
+                if (owner[candidate] < 0 || augment(owner[candidate], candidates, owner, visited)) {
+                    owner[candidate] = element;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isScalar(ExpectedValue value) {
+        return value instanceof NullValue || value instanceof BooleanValue || value instanceof LongValue
+                || value instanceof DoubleValue || value instanceof TextValue;
+    }
+
+    /**
+     * The canonical keys an expected scalar value matches with. A text matches a string, a document reference with
+     * that path or a timestamp, depending on the type of the value in the document.
+     */
+    private List<Object> expectedValueKeys(ExpectedValue value) {
+        if (value instanceof BooleanValue b) {
+            return List.of(b.value());
+        } else if (value instanceof DoubleValue d) {
+            return List.of(d.value());
+        } else if (value instanceof LongValue l) {
+            return List.of(l.value());
+        } else if (value instanceof TextValue t) {
+            if (!t.dateTime()) {
+                return List.of(t.text(), new ReferenceKey(t.text()));
+            }
+            return List.of(t.text(), new ReferenceKey(t.text()), new TimestampKey(t.seconds(), t.nanos()));
+        }
+        return List.of(NULL_KEY);
+    }
+
+    /**
+     * The canonical key of a scalar value in a document, or null for maps, arrays and unsupported types
+     */
+    private Object documentValueKey(Object docValue) {
+        if (docValue == null) {
+            return NULL_KEY;
+        } else if (docValue instanceof Boolean || docValue instanceof Long || docValue instanceof Double
+                || docValue instanceof String) {
+            return docValue;
+        } else if (docValue instanceof Timestamp timestamp) {
+            return new TimestampKey(timestamp.getSeconds(), timestamp.getNanos());
+        } else if (docValue instanceof DocumentReference reference) {
+            return new ReferenceKey(reference.getPath());
+        }
+        return null;
+    }
+
+    /**
+     * Convert an expected value back to plain Java objects, to report it in a mismatch
+     */
+    private Object plainValue(ExpectedValue value) {
+        if (value instanceof BooleanValue b) {
+            return b.value();
+        } else if (value instanceof DoubleValue d) {
+            return d.value();
+        } else if (value instanceof LongValue l) {
+            return l.value();
+        } else if (value instanceof TextValue t) {
+            return t.text();
+        } else if (value instanceof MapValue m) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            m.fields().forEach(field -> map.put(field.name(), plainValue(field.value())));
+            return map;
+        } else if (value instanceof ArrayValue a) {
+            List<Object> list = new ArrayList<>();
+            a.elements().forEach(element -> list.add(plainValue(element)));
+            return list;
+        } else if (value instanceof UnsupportedValue u) {
+            return u.value();
+        }
+        return null;
+    }
+
+    private boolean typeMismatch(Class<?> type, Object docValue, ExpectedValue value, MismatchSink sink) {
+        String fieldPath = value.path();
+        return sink.mismatch(new Mismatch(fieldPath, Mismatch.Kind.INVALID_TYPE,
+                "Field is not of expected type " + type + " at " + fieldPath,
+                type, docValue == null ? null : docValue.getClass()));
+    }
+
+    private boolean valueMismatch(Object expected, Object actual, ExpectedValue value, MismatchSink sink) {
+        String fieldPath = value.path();
+        return sink.mismatch(new Mismatch(fieldPath, Mismatch.Kind.INVALID_VALUE,
+                "Field does not have the expected value at " + fieldPath, expected, actual));
+    }
+
+    private ZonedDateTime toZonedDateTime(long seconds, int nanos) {
+        return Instant.ofEpochSecond(seconds, nanos).atZone(options.getZoneId());
+    }
+
+    /**
+     * Canonical key for timestamps in arrays
+     */
+    private record TimestampKey(long seconds, int nanos) {}
+
+    /**
+     * Canonical key for document references in arrays
+     */
+    private record ReferenceKey(String path) {}
+}
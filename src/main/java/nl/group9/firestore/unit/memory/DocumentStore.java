@@ -0,0 +1,336 @@
+package nl.group9.firestore.unit.memory;
+
+import com.google.firestore.v1.ArrayValue;
+import com.google.firestore.v1.Document;
+import com.google.firestore.v1.DocumentTransform;
+import com.google.firestore.v1.Precondition;
+import com.google.firestore.v1.Value;
+import com.google.firestore.v1.Write;
+import com.google.protobuf.Timestamp;
+import io.grpc.Status;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Internal storage of the documents of an in-memory Firestore, in a sorted map keyed on the path of the document.
+ * <p>
+ * In the keys, the slashes between the segments of a path are replaced by a character which sorts before any other,
+ * so the keys sort segment by segment, like the paths in Firestore. All documents below a document or collection
+ * form a contiguous range of keys, and the range of a child can be skipped by searching for the first key after it.
+ * Missing documents, which have no fields but do have sub collections, exist implicitly as the prefix of the keys of
+ * their descendants.
+ * </p>
+ * <p>
+ * Reads are lock free; writes are serialized, so the writes of a commit are applied atomically and commit times
+ * increase strictly.
+ * </p>
+ */
+final class DocumentStore {
+
+    private static final char SEPARATOR = '\0';
+    private static final char AFTER_SEPARATOR = '\u0001';
+
+    private final ConcurrentSkipListMap<String, Document> documents = new ConcurrentSkipListMap<>();
+    private final Object writeLock = new Object();
+    private volatile long lastMicros;
+
+    /**
+     * Thrown when the precondition of a write does not hold
+     */
+    static class WriteFailure extends RuntimeException {
+        private final Status.Code code;
+
+        WriteFailure(Status.Code code, String message) {
+            super(message);
+            this.code = code;
+        }
+
+        Status.Code code() {
+            return code;
+        }
+    }
+
+    /**
+     * Get a document. The document has no name, the name depends on the client reading it.
+     * @param path The path of the document
+     * @return The document, or null when it does not exist
+     */
+    Document get(String path) {
+        return documents.get(key(path));
+    }
+
+    /**
+     * List the ids of the documents in a collection, including missing documents
+     * @param collectionPath The path of the collection
+     * @param startAfter The id to start after, or null to start at the first document
+     * @param limit The maximum number of ids, or 0 for all
+     * @return The ids, in order
+     */
+    List<String> documentIds(String collectionPath, String startAfter, int limit) {
+        return childIds(key(collectionPath) + SEPARATOR, startAfter, limit);
+    }
+
+    /**
+     * List the ids of the collections of a document
+     * @param documentPath The path of the document, or an empty string for the root collections
+     * @param startAfter The id to start after, or null to start at the first collection
+     * @param limit The maximum number of ids, or 0 for all
+     * @return The ids, in order
+     */
+    List<String> collectionIds(String documentPath, String startAfter, int limit) {
+        return childIds(documentPath.isEmpty() ? "" : key(documentPath) + SEPARATOR, startAfter, limit);
+    }
+
+    /**
+     * @param collectionPath The path of the collection
+     * @return The paths and documents of the existing documents in a collection, in order
+     */
+    Map<String, Document> collection(String collectionPath) {
+        Map<String, Document> result = new LinkedHashMap<>();
+        for (String id : documentIds(collectionPath, null, 0)) {
+            String path = collectionPath + "/" + id;
+            Document document = get(path);
+            if (document != null) {
+                result.put(path, document);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param parentPath The path of the document to search below, or an empty string for all documents
+     * @param collectionId The id of the collections
+     * @return The paths and documents of all existing documents below the parent in a collection with the given id,
+     *         in order
+     */
+    Map<String, Document> collectionGroup(String parentPath, String collectionId) {
+        Map<String, Document> source = parentPath.isEmpty()
+                ? documents
+                : documents.subMap(key(parentPath) + SEPARATOR, key(parentPath) + AFTER_SEPARATOR);
+        Map<String, Document> result = new LinkedHashMap<>();
+        source.forEach((key, document) -> {
+            String[] segments = path(key).split("/");
+            if (segments.length >= 2 && segments[segments.length - 2].equals(collectionId)) {
+                result.put(path(key), document);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return The current time, which is never before the last commit
+     */
+    Timestamp now() {
+        return timestamp(Math.max(currentMicros(), lastMicros));
+    }
+
+    /**
+     * Apply writes atomically. Either all preconditions hold and all writes are applied, or none is.
+     * @param writes The writes
+     * @return The commit time
+     * @throws WriteFailure When the precondition of one of the writes does not hold
+     */
+    Timestamp commit(List<Write> writes) {
+        synchronized (writeLock) {
+            writes.forEach(this::check);
+            Timestamp commitTime = nextTime();
+            writes.forEach(write -> apply(write, commitTime));
+            return commitTime;
+        }
+    }
+
+    /**
+     * Apply a single write, as part of a non-atomic batch
+     * @param write The write
+     * @return The commit time of the write
+     * @throws WriteFailure When the precondition of the write does not hold
+     */
+    Timestamp write(Write write) {
+        return commit(List.of(write));
+    }
+
+    /**
+     * Remove all documents
+     */
+    void clear() {
+        synchronized (writeLock) {
+            documents.clear();
+        }
+    }
+
+    /**
+     * List the first segments after the prefix, skipping the range of keys of each segment found
+     */
+    private List<String> childIds(String prefix, String startAfter, int limit) {
+        List<String> ids = new ArrayList<>();
+        String key = documents.ceilingKey(startAfter == null ? prefix : prefix + startAfter + AFTER_SEPARATOR);
+        while (key != null && key.startsWith(prefix) && (limit <= 0 || ids.size() < limit)) {
+            int end = key.indexOf(SEPARATOR, prefix.length());
+            String id = end < 0 ? key.substring(prefix.length()) : key.substring(prefix.length(), end);
+            ids.add(id);
+            key = documents.ceilingKey(prefix + id + AFTER_SEPARATOR);
+        }
+        return ids;
+    }
+
+    private void check(Write write) {
+        if (!write.hasCurrentDocument()) {
+            return;
+        }
+
+        String path = switch (write.getOperationCase()) {
+            case UPDATE -> ResourceNames.path(write.getUpdate().getName());
+            case DELETE -> ResourceNames.path(write.getDelete());
+            case TRANSFORM -> ResourceNames.path(write.getTransform().getDocument());
+            default -> null;
+        };
+        if (path == null) {
+            throw new WriteFailure(Status.Code.INVALID_ARGUMENT, "Write without operation");
+        }
+
+        Document existing = get(path);
+        Precondition precondition = write.getCurrentDocument();
+        if (precondition.getConditionTypeCase() == Precondition.ConditionTypeCase.EXISTS) {
+            if (precondition.getExists() && existing == null) {
+                throw new WriteFailure(Status.Code.NOT_FOUND, "No document to update: " + path);
+            } else if (!precondition.getExists() && existing != null) {
+                throw new WriteFailure(Status.Code.ALREADY_EXISTS, "Document already exists: " + path);
+            }
+        } else if (precondition.getConditionTypeCase() == Precondition.ConditionTypeCase.UPDATE_TIME
+                && (existing == null || !existing.getUpdateTime().equals(precondition.getUpdateTime()))) {
+            throw new WriteFailure(Status.Code.FAILED_PRECONDITION, "Document has a different update time: " + path);
+        }
+    }
+
+    private void apply(Write write, Timestamp commitTime) {
+        switch (write.getOperationCase()) {
+            case UPDATE -> {
+                Document update = write.getUpdate();
+                String path = ResourceNames.path(update.getName());
+                Document existing = get(path);
+
+                Map<String, Value> fields;
+                if (write.hasUpdateMask()) {
+                    fields = existing == null ? new HashMap<>() : new HashMap<>(existing.getFieldsMap());
+                    for (String fieldPath : write.getUpdateMask().getFieldPathsList()) {
+                        List<String> segments = Values.segments(fieldPath);
+                        Values.set(fields, segments, Values.get(update.getFieldsMap(), segments));
+                    }
+                } else {
+                    fields = new HashMap<>(update.getFieldsMap());
+                }
+                transform(fields, write.getUpdateTransformsList(), commitTime);
+                put(path, existing, fields, commitTime);
+            }
+            case DELETE -> documents.remove(key(ResourceNames.path(write.getDelete())));
+            case TRANSFORM -> {
+                String path = ResourceNames.path(write.getTransform().getDocument());
+                Document existing = get(path);
+                Map<String, Value> fields = existing == null ? new HashMap<>() : new HashMap<>(existing.getFieldsMap());
+                transform(fields, write.getTransform().getFieldTransformsList(), commitTime);
+                put(path, existing, fields, commitTime);
+            }
+            default -> {
+                // Nothing to apply
+            }
+        }
+    }
+
+    private void put(String path, Document existing, Map<String, Value> fields, Timestamp commitTime) {
+        documents.put(key(path), Document.newBuilder()
+                .putAllFields(fields)
+                .setCreateTime(existing == null ? commitTime : existing.getCreateTime())
+                .setUpdateTime(commitTime)
+                .build());
+    }
+
+    private static void transform(Map<String, Value> fields, List<DocumentTransform.FieldTransform> transforms,
+                                  Timestamp commitTime) {
+        for (DocumentTransform.FieldTransform transform : transforms) {
+            List<String> segments = Values.segments(transform.getFieldPath());
+            Value current = Values.get(fields, segments);
+            Value result = switch (transform.getTransformTypeCase()) {
+                case SET_TO_SERVER_VALUE -> Value.newBuilder().setTimestampValue(commitTime).build();
+                case INCREMENT -> increment(current, transform.getIncrement());
+                case MAXIMUM -> current != null && Values.isNumber(current)
+                        && Values.compare(current, transform.getMaximum()) >= 0 ? current : transform.getMaximum();
+                case MINIMUM -> current != null && Values.isNumber(current)
+                        && Values.compare(current, transform.getMinimum()) <= 0 ? current : transform.getMinimum();
+                case APPEND_MISSING_ELEMENTS -> {
+                    List<Value> elements = new ArrayList<>(elements(current));
+                    for (Value element : transform.getAppendMissingElements().getValuesList()) {
+                        if (elements.stream().noneMatch(e -> Values.compare(e, element) == 0)) {
+                            elements.add(element);
+                        }
+                    }
+                    yield Values.arrayValue(elements);
+                }
+                case REMOVE_ALL_FROM_ARRAY -> {
+                    List<Value> elements = new ArrayList<>(elements(current));
+                    ArrayValue removed = transform.getRemoveAllFromArray();
+                    elements.removeIf(e -> removed.getValuesList().stream().anyMatch(r -> Values.compare(e, r) == 0));
+                    yield Values.arrayValue(elements);
+                }
+                default -> current;
+            };
+            Values.set(fields, segments, result);
+        }
+    }
+
+    private static Value increment(Value current, Value operand) {
+        if (current == null || !Values.isNumber(current)) {
+            return operand;
+        }
+        if (current.getValueTypeCase() == Value.ValueTypeCase.INTEGER_VALUE
+                && operand.getValueTypeCase() == Value.ValueTypeCase.INTEGER_VALUE) {
+            long left = current.getIntegerValue();
+            long right = operand.getIntegerValue();
+            long sum = left + right;
+            // Saturate on overflow, like Firestore does
+            if (((left ^ sum) & (right ^ sum)) < 0) {
+                sum = left < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+            }
+            return Value.newBuilder().setIntegerValue(sum).build();
+        }
+        return Value.newBuilder().setDoubleValue(Values.doubleValue(current) + Values.doubleValue(operand)).build();
+    }
+
+    private static List<Value> elements(Value value) {
+        return value != null && value.getValueTypeCase() == Value.ValueTypeCase.ARRAY_VALUE
+                ? value.getArrayValue().getValuesList()
+                : List.of();
+    }
+
+    /**
+     * Called with the write lock held
+     */
+    private Timestamp nextTime() {
+        long micros = Math.max(currentMicros(), lastMicros + 1);
+        lastMicros = micros;
+        return timestamp(micros);
+    }
+
+    private static long currentMicros() {
+        return System.currentTimeMillis() * 1000;
+    }
+
+    private static Timestamp timestamp(long micros) {
+        return Timestamp.newBuilder()
+                .setSeconds(Math.floorDiv(micros, 1_000_000))
+                .setNanos((int) Math.floorMod(micros, 1_000_000) * 1000)
+                .build();
+    }
+
+    private static String key(String path) {
+        return path.replace('/', SEPARATOR);
+    }
+
+    private static String path(String key) {
+        return key.replace(SEPARATOR, '/');
+    }
+}
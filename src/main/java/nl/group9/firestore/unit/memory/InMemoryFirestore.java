@@ -0,0 +1,60 @@
+package nl.group9.firestore.unit.memory;
+
+import com.google.cloud.NoCredentials;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+
+/**
+ * An in-process, thread-safe Firestore, to run assertions and exports without a network or an emulator.
+ * <p>
+ * The documents are kept in a sorted map keyed on their path, so listing the documents of a collection or the
+ * collections of a document is a range scan. The clients returned by {@link #connect()} are regular Firestore
+ * clients: document and collection references, get(), getAll() (including field masks), listDocuments(),
+ * listCollections(), the BulkWriter, batches and queries all work as usual, and all clients of the same instance see
+ * the same documents. Listening to changes and partitioning queries are not supported, and transactions are not
+ * isolated from each other.
+ * </p>
+ * <pre>
+ *     InMemoryFirestore inMemory = InMemoryFirestore.create();
+ *     try (Firestore firestore = inMemory.connect()) {
+ *         FirestoreUnit.loadJson(firestore, FirestoreUnit.options(), new File("reference.json"));
+ *         FirestoreUnit.assertFirestoreJson(firestore, new File("reference.json"));
+ *     }
+ * </pre>
+ */
+public final class InMemoryFirestore {
+
+    private static final String PROJECT_ID = "in-memory";
+
+    private final DocumentStore store = new DocumentStore();
+
+    private InMemoryFirestore() {}
+
+    /**
+     * @return A new, empty in-memory Firestore
+     */
+    public static InMemoryFirestore create() {
+        return new InMemoryFirestore();
+    }
+
+    /**
+     * Create a client for this Firestore. The client should be closed when no longer needed; this does not remove
+     * any documents.
+     * @return The client
+     */
+    public Firestore connect() {
+        return FirestoreOptions.newBuilder()
+                .setProjectId(PROJECT_ID)
+                .setCredentials(NoCredentials.getInstance())
+                .setServiceRpcFactory(options -> new InMemoryFirestoreRpc(store))
+                .build()
+                .getService();
+    }
+
+    /**
+     * Remove all documents
+     */
+    public void clear() {
+        store.clear();
+    }
+}
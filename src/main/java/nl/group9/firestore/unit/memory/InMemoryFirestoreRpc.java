@@ -0,0 +1,540 @@
+package nl.group9.firestore.unit.memory;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.grpc.GrpcCallContext;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import com.google.api.gax.rpc.BidiStreamingCallable;
+import com.google.api.gax.rpc.PageContext;
+import com.google.api.gax.rpc.PagedListDescriptor;
+import com.google.api.gax.rpc.ResponseObserver;
+import com.google.api.gax.rpc.ServerStreamingCallable;
+import com.google.api.gax.rpc.StreamController;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.cloud.firestore.spi.v1.FirestoreRpc;
+import com.google.cloud.firestore.v1.FirestoreClient.ListCollectionIdsPagedResponse;
+import com.google.cloud.firestore.v1.FirestoreClient.ListDocumentsPagedResponse;
+import com.google.cloud.firestore.v1.FirestoreClient.PartitionQueryPagedResponse;
+import com.google.firestore.v1.AggregationResult;
+import com.google.firestore.v1.BatchGetDocumentsRequest;
+import com.google.firestore.v1.BatchGetDocumentsResponse;
+import com.google.firestore.v1.BatchWriteRequest;
+import com.google.firestore.v1.BatchWriteResponse;
+import com.google.firestore.v1.BeginTransactionRequest;
+import com.google.firestore.v1.BeginTransactionResponse;
+import com.google.firestore.v1.CommitRequest;
+import com.google.firestore.v1.CommitResponse;
+import com.google.firestore.v1.Document;
+import com.google.firestore.v1.ListCollectionIdsRequest;
+import com.google.firestore.v1.ListCollectionIdsResponse;
+import com.google.firestore.v1.ListDocumentsRequest;
+import com.google.firestore.v1.ListDocumentsResponse;
+import com.google.firestore.v1.ListenRequest;
+import com.google.firestore.v1.ListenResponse;
+import com.google.firestore.v1.PartitionQueryRequest;
+import com.google.firestore.v1.RollbackRequest;
+import com.google.firestore.v1.RunAggregationQueryRequest;
+import com.google.firestore.v1.RunAggregationQueryResponse;
+import com.google.firestore.v1.RunQueryRequest;
+import com.google.firestore.v1.RunQueryResponse;
+import com.google.firestore.v1.StructuredAggregationQuery;
+import com.google.firestore.v1.Value;
+import com.google.firestore.v1.Write;
+import com.google.firestore.v1.WriteResult;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
+import com.google.protobuf.NullValue;
+import com.google.protobuf.Timestamp;
+import io.grpc.Status;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Internal implementation of the RPCs of the Firestore client on a {@link DocumentStore}. The client is the regular
+ * Firestore client, so references, snapshots, the {@link com.google.cloud.firestore.BulkWriter} and queries behave
+ * as they do against Firestore itself; only the transport is replaced.
+ * <p>
+ * Calls are handled synchronously on the calling thread. The executor is only used by the client itself, e.g. for
+ * the batches of a bulk writer. Transactions are accepted but not isolated, and listening to changes is not
+ * supported.
+ * </p>
+ */
+final class InMemoryFirestoreRpc implements FirestoreRpc {
+
+    private static final int EXECUTOR_THREADS = 4;
+
+    private static final PagedListDescriptor<ListDocumentsRequest, ListDocumentsResponse, Document> DOCUMENTS =
+            new PagedListDescriptor<>() {
+                @Override
+                public String emptyToken() {
+                    return "";
+                }
+
+                @Override
+                public ListDocumentsRequest injectToken(ListDocumentsRequest payload, String token) {
+                    return payload.toBuilder().setPageToken(token).build();
+                }
+
+                @Override
+                public ListDocumentsRequest injectPageSize(ListDocumentsRequest payload, int pageSize) {
+                    return payload.toBuilder().setPageSize(pageSize).build();
+                }
+
+                @Override
+                public Integer extractPageSize(ListDocumentsRequest payload) {
+                    return payload.getPageSize();
+                }
+
+                @Override
+                public String extractNextToken(ListDocumentsResponse payload) {
+                    return payload.getNextPageToken();
+                }
+
+                @Override
+                public Iterable<Document> extractResources(ListDocumentsResponse payload) {
+                    return payload.getDocumentsList();
+                }
+            };
+
+    private static final PagedListDescriptor<ListCollectionIdsRequest, ListCollectionIdsResponse, String>
+            COLLECTION_IDS = new PagedListDescriptor<>() {
+                @Override
+                public String emptyToken() {
+                    return "";
+                }
+
+                @Override
+                public ListCollectionIdsRequest injectToken(ListCollectionIdsRequest payload, String token) {
+                    return payload.toBuilder().setPageToken(token).build();
+                }
+
+                @Override
+                public ListCollectionIdsRequest injectPageSize(ListCollectionIdsRequest payload, int pageSize) {
+                    return payload.toBuilder().setPageSize(pageSize).build();
+                }
+
+                @Override
+                public Integer extractPageSize(ListCollectionIdsRequest payload) {
+                    return payload.getPageSize();
+                }
+
+                @Override
+                public String extractNextToken(ListCollectionIdsResponse payload) {
+                    return payload.getNextPageToken();
+                }
+
+                @Override
+                public Iterable<String> extractResources(ListCollectionIdsResponse payload) {
+                    return payload.getCollectionIdsList();
+                }
+            };
+
+    private final DocumentStore store;
+    private final QueryEngine queries;
+    private final ScheduledExecutorService executor;
+    private final AtomicLong transactions = new AtomicLong();
+
+    private final UnaryCallable<ListDocumentsRequest, ListDocumentsResponse> listDocuments =
+            unary(this::listDocuments);
+    private final UnaryCallable<ListCollectionIdsRequest, ListCollectionIdsResponse> listCollectionIds =
+            unary(this::listCollectionIds);
+
+    InMemoryFirestoreRpc(DocumentStore store) {
+        this.store = store;
+        this.queries = new QueryEngine(store);
+        this.executor = Executors.newScheduledThreadPool(EXECUTOR_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "in-memory-firestore");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public UnaryCallable<CommitRequest, CommitResponse> commitCallable() {
+        return unary(this::commit);
+    }
+
+    @Override
+    public UnaryCallable<BatchWriteRequest, BatchWriteResponse> batchWriteCallable() {
+        return unary(this::batchWrite);
+    }
+
+    @Override
+    public ServerStreamingCallable<BatchGetDocumentsRequest, BatchGetDocumentsResponse> batchGetDocumentsCallable() {
+        return streaming(this::batchGetDocuments);
+    }
+
+    @Override
+    public UnaryCallable<BeginTransactionRequest, BeginTransactionResponse> beginTransactionCallable() {
+        return unary(request -> BeginTransactionResponse.newBuilder().setTransaction(newTransaction()).build());
+    }
+
+    @Override
+    public UnaryCallable<RollbackRequest, Empty> rollbackCallable() {
+        return unary(request -> Empty.getDefaultInstance());
+    }
+
+    @Override
+    public ServerStreamingCallable<RunQueryRequest, RunQueryResponse> runQueryCallable() {
+        return streaming(this::runQuery);
+    }
+
+    @Override
+    public ServerStreamingCallable<RunAggregationQueryRequest, RunAggregationQueryResponse> runAggregationQueryCallable() {
+        return streaming(this::runAggregationQuery);
+    }
+
+    @Override
+    public UnaryCallable<ListCollectionIdsRequest, ListCollectionIdsPagedResponse> listCollectionIdsPagedCallable() {
+        return new UnaryCallable<>() {
+            @Override
+            public ApiFuture<ListCollectionIdsPagedResponse> futureCall(ListCollectionIdsRequest request,
+                                                                         ApiCallContext context) {
+                ApiCallContext callContext = context == null ? GrpcCallContext.createDefault() : context;
+                return ListCollectionIdsPagedResponse.createAsync(
+                        PageContext.create(listCollectionIds, COLLECTION_IDS, request, callContext),
+                        listCollectionIds.futureCall(request, callContext));
+            }
+        };
+    }
+
+    @Override
+    public UnaryCallable<ListDocumentsRequest, ListDocumentsPagedResponse> listDocumentsPagedCallable() {
+        return new UnaryCallable<>() {
+            @Override
+            public ApiFuture<ListDocumentsPagedResponse> futureCall(ListDocumentsRequest request,
+                                                                    ApiCallContext context) {
+                ApiCallContext callContext = context == null ? GrpcCallContext.createDefault() : context;
+                return ListDocumentsPagedResponse.createAsync(
+                        PageContext.create(listDocuments, DOCUMENTS, request, callContext),
+                        listDocuments.futureCall(request, callContext));
+            }
+        };
+    }
+
+    @Override
+    public UnaryCallable<PartitionQueryRequest, PartitionQueryPagedResponse> partitionQueryPagedCallable() {
+        throw new UnsupportedOperationException("Partitioning queries is not supported by the in-memory Firestore");
+    }
+
+    @Override
+    public BidiStreamingCallable<ListenRequest, ListenResponse> listenCallable() {
+        throw new UnsupportedOperationException("Listening to changes is not supported by the in-memory Firestore");
+    }
+
+    @Override
+    public ScheduledExecutorService getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    public boolean isTerminated() {
+        return executor.isTerminated();
+    }
+
+    public boolean awaitTermination(long duration, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(duration, unit);
+    }
+
+    private CommitResponse commit(CommitRequest request) {
+        Timestamp commitTime = store.commit(request.getWritesList());
+        CommitResponse.Builder response = CommitResponse.newBuilder().setCommitTime(commitTime);
+        for (int i = 0; i < request.getWritesCount(); i++) {
+            response.addWriteResults(WriteResult.newBuilder().setUpdateTime(commitTime));
+        }
+        return response.build();
+    }
+
+    /**
+     * Apply the writes independently, reporting a status per write as the bulk writer expects
+     */
+    private BatchWriteResponse batchWrite(BatchWriteRequest request) {
+        BatchWriteResponse.Builder response = BatchWriteResponse.newBuilder();
+        for (Write write : request.getWritesList()) {
+            try {
+                Timestamp updateTime = store.write(write);
+                response.addWriteResults(WriteResult.newBuilder().setUpdateTime(updateTime));
+                response.addStatus(com.google.rpc.Status.newBuilder().setCode(Status.Code.OK.value()));
+            } catch (DocumentStore.WriteFailure e) {
+                response.addWriteResults(WriteResult.getDefaultInstance());
+                response.addStatus(com.google.rpc.Status.newBuilder()
+                        .setCode(e.code().value())
+                        .setMessage(e.getMessage()));
+            }
+        }
+        return response.build();
+    }
+
+    private List<BatchGetDocumentsResponse> batchGetDocuments(BatchGetDocumentsRequest request) {
+        Timestamp readTime = store.now();
+        List<BatchGetDocumentsResponse> responses = new ArrayList<>(request.getDocumentsCount());
+        for (String name : request.getDocumentsList()) {
+            BatchGetDocumentsResponse.Builder response = BatchGetDocumentsResponse.newBuilder().setReadTime(readTime);
+            if (responses.isEmpty() && request.hasNewTransaction()) {
+                response.setTransaction(newTransaction());
+            }
+
+            Document document = store.get(ResourceNames.path(name));
+            if (document == null) {
+                response.setMissing(name);
+            } else {
+                Document.Builder found = document.toBuilder().setName(name);
+                if (request.hasMask()) {
+                    found.clearFields().putAllFields(
+                            Values.project(document.getFieldsMap(), request.getMask().getFieldPathsList()));
+                }
+                response.setFound(found);
+            }
+            responses.add(response.build());
+        }
+        return responses;
+    }
+
+    private List<RunQueryResponse> runQuery(RunQueryRequest request) {
+        Timestamp readTime = store.now();
+        List<Document> documents = queries.run(
+                ResourceNames.database(request.getParent()),
+                ResourceNames.path(request.getParent()),
+                request.getStructuredQuery());
+
+        List<RunQueryResponse> responses = new ArrayList<>(documents.size() + 1);
+        for (Document document : documents) {
+            responses.add(RunQueryResponse.newBuilder().setDocument(document).setReadTime(readTime).build());
+        }
+        if (responses.isEmpty()) {
+            // Report the read time, also without results
+            responses.add(RunQueryResponse.newBuilder().setReadTime(readTime).build());
+        }
+        if (request.hasNewTransaction()) {
+            responses.set(0, responses.get(0).toBuilder().setTransaction(newTransaction()).build());
+        }
+        return responses;
+    }
+
+    private List<RunAggregationQueryResponse> runAggregationQuery(RunAggregationQueryRequest request) {
+        Timestamp readTime = store.now();
+        StructuredAggregationQuery aggregationQuery = request.getStructuredAggregationQuery();
+        List<Document> documents = queries.run(
+                ResourceNames.database(request.getParent()),
+                ResourceNames.path(request.getParent()),
+                aggregationQuery.getStructuredQuery());
+
+        AggregationResult.Builder result = AggregationResult.newBuilder();
+        for (StructuredAggregationQuery.Aggregation aggregation : aggregationQuery.getAggregationsList()) {
+            result.putAggregateFields(aggregation.getAlias(), aggregate(aggregation, documents));
+        }
+        return List.of(RunAggregationQueryResponse.newBuilder().setResult(result).setReadTime(readTime).build());
+    }
+
+    /**
+     * Count, or sum or average the numeric values of a field. A sum of integers stays an integer unless it
+     * overflows; an average without values is null.
+     */
+    private static Value aggregate(StructuredAggregationQuery.Aggregation aggregation, List<Document> documents) {
+        if (aggregation.getOperatorCase() == StructuredAggregationQuery.Aggregation.OperatorCase.COUNT) {
+            long count = documents.size();
+            if (aggregation.getCount().hasUpTo()) {
+                count = Math.min(count, aggregation.getCount().getUpTo().getValue());
+            }
+            return Value.newBuilder().setIntegerValue(count).build();
+        }
+
+        String fieldPath = switch (aggregation.getOperatorCase()) {
+            case SUM -> aggregation.getSum().getField().getFieldPath();
+            case AVG -> aggregation.getAvg().getField().getFieldPath();
+            default -> throw new UnsupportedOperationException(
+                    "Aggregation not supported by the in-memory Firestore: " + aggregation.getOperatorCase());
+        };
+        List<Value> values = documents.stream()
+                .map(document -> Values.get(document.getFieldsMap(), Values.segments(fieldPath)))
+                .filter(value -> value != null && Values.isNumber(value))
+                .toList();
+
+        double sum = values.stream().mapToDouble(Values::doubleValue).sum();
+        if (aggregation.getOperatorCase() == StructuredAggregationQuery.Aggregation.OperatorCase.AVG) {
+            return values.isEmpty()
+                    ? Value.newBuilder().setNullValue(NullValue.NULL_VALUE).build()
+                    : Value.newBuilder().setDoubleValue(sum / values.size()).build();
+        }
+        if (values.stream().allMatch(value -> value.getValueTypeCase() == Value.ValueTypeCase.INTEGER_VALUE)) {
+            try {
+                long integerSum = 0;
+                for (Value value : values) {
+                    integerSum = Math.addExact(integerSum, value.getIntegerValue());
+                }
+                return Value.newBuilder().setIntegerValue(integerSum).build();
+            } catch (ArithmeticException e) {
+                // Overflow, fall back to a double
+            }
+        }
+        return Value.newBuilder().setDoubleValue(sum).build();
+    }
+
+    /**
+     * List a page of documents, including missing documents when requested. The page token is the id of the last
+     * document of the previous page.
+     */
+    private ListDocumentsResponse listDocuments(ListDocumentsRequest request) {
+        String parentPath = ResourceNames.path(request.getParent());
+        String collectionPath = parentPath.isEmpty()
+                ? request.getCollectionId()
+                : parentPath + "/" + request.getCollectionId();
+        String collectionName = request.getParent() + "/" + request.getCollectionId();
+
+        int pageSize = request.getPageSize();
+        List<String> ids = store.documentIds(collectionPath, token(request.getPageToken()), limit(pageSize));
+        ListDocumentsResponse.Builder response = ListDocumentsResponse.newBuilder();
+        if (pageSize > 0 && ids.size() > pageSize) {
+            ids = ids.subList(0, pageSize);
+            response.setNextPageToken(ids.get(pageSize - 1));
+        }
+        for (String id : ids) {
+            String name = collectionName + "/" + id;
+            Document document = store.get(collectionPath + "/" + id);
+            if (document == null) {
+                if (request.getShowMissing()) {
+                    response.addDocuments(Document.newBuilder().setName(name));
+                }
+            } else {
+                Document.Builder found = document.toBuilder().setName(name);
+                if (request.hasMask()) {
+                    found.clearFields().putAllFields(
+                            Values.project(document.getFieldsMap(), request.getMask().getFieldPathsList()));
+                }
+                response.addDocuments(found);
+            }
+        }
+        return response.build();
+    }
+
+    /**
+     * List a page of collection ids. The page token is the last id of the previous page.
+     */
+    private ListCollectionIdsResponse listCollectionIds(ListCollectionIdsRequest request) {
+        String documentPath = ResourceNames.path(request.getParent());
+        int pageSize = request.getPageSize();
+        List<String> ids = store.collectionIds(documentPath, token(request.getPageToken()), limit(pageSize));
+        ListCollectionIdsResponse.Builder response = ListCollectionIdsResponse.newBuilder();
+        if (pageSize > 0 && ids.size() > pageSize) {
+            ids = ids.subList(0, pageSize);
+            response.setNextPageToken(ids.get(pageSize - 1));
+        }
+        return response.addAllCollectionIds(ids).build();
+    }
+
+    private static String token(String pageToken) {
+        return pageToken.isEmpty() ? null : pageToken;
+    }
+
+    /**
+     * One more than the page size, to know whether there is a next page
+     */
+    private static int limit(int pageSize) {
+        return pageSize > 0 ? pageSize + 1 : 0;
+    }
+
+    private ByteString newTransaction() {
+        return ByteString.copyFromUtf8(Long.toString(transactions.incrementAndGet()));
+    }
+
+    /**
+     * A callable which handles a request on the calling thread. A failed precondition of a write results in a
+     * failed future, like a status returned by Firestore.
+     */
+    private static <RequestT, ResponseT> UnaryCallable<RequestT, ResponseT> unary(
+            Function<RequestT, ResponseT> handler) {
+        return new UnaryCallable<>() {
+            @Override
+            public ApiFuture<ResponseT> futureCall(RequestT request, ApiCallContext context) {
+                try {
+                    return ApiFutures.immediateFuture(handler.apply(request));
+                } catch (DocumentStore.WriteFailure e) {
+                    return ApiFutures.immediateFailedFuture(exception(e));
+                }
+            }
+        };
+    }
+
+    /**
+     * A callable which handles a request on the calling thread, and passes the responses to the observer until it
+     * cancels the stream
+     */
+    private static <RequestT, ResponseT> ServerStreamingCallable<RequestT, ResponseT> streaming(
+            Function<RequestT, List<ResponseT>> handler) {
+        return new ServerStreamingCallable<>() {
+            @Override
+            public void call(RequestT request, ResponseObserver<ResponseT> observer, ApiCallContext context) {
+                Controller controller = new Controller();
+                observer.onStart(controller);
+
+                List<ResponseT> responses;
+                try {
+                    responses = handler.apply(request);
+                } catch (RuntimeException e) {
+                    observer.onError(e);
+                    return;
+                }
+                for (ResponseT response : responses) {
+                    if (controller.cancelled) {
+                        return;
+                    }
+                    observer.onResponse(response);
+                }
+                observer.onComplete();
+            }
+        };
+    }
+
+    private static RuntimeException exception(DocumentStore.WriteFailure failure) {
+        return ApiExceptionFactory.createException(
+                failure.code().toStatus().withDescription(failure.getMessage()).asRuntimeException(),
+                GrpcStatusCode.of(failure.code()),
+                false);
+    }
+
+    /**
+     * Controller of a stream; flow control is ignored as all responses are available at once
+     */
+    private static class Controller implements StreamController {
+        private volatile boolean cancelled;
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() {
+            // All responses are delivered immediately
+        }
+
+        @Override
+        public void request(int count) {
+            // All responses are delivered immediately
+        }
+    }
+}
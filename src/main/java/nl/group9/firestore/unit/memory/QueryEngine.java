@@ -0,0 +1,237 @@
+package nl.group9.firestore.unit.memory;
+
+import com.google.firestore.v1.Cursor;
+import com.google.firestore.v1.Document;
+import com.google.firestore.v1.StructuredQuery;
+import com.google.firestore.v1.Value;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Internal evaluation of structured queries against a {@link DocumentStore}. Supports collection and collection group
+ * selectors, field, unary and composite filters, ordering (including the implicit ordering on the document name and
+ * on the first inequality), cursors, offset, limit and projections.
+ */
+final class QueryEngine {
+
+    private static final String NAME_FIELD = "__name__";
+
+    private final DocumentStore store;
+
+    QueryEngine(DocumentStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Run a query
+     * @param database The resource name of the root of the database, used to name the documents
+     * @param parentPath The path of the parent document of the query, or an empty string for the root
+     * @param query The query
+     * @return The matching documents, in order and named
+     */
+    List<Document> run(String database, String parentPath, StructuredQuery query) {
+        List<Document> documents = new ArrayList<>();
+        for (StructuredQuery.CollectionSelector from : query.getFromList()) {
+            Map<String, Document> selected = from.getAllDescendants()
+                    ? store.collectionGroup(parentPath, from.getCollectionId())
+                    : store.collection(parentPath.isEmpty()
+                            ? from.getCollectionId()
+                            : parentPath + "/" + from.getCollectionId());
+            selected.forEach((path, document) ->
+                    documents.add(document.toBuilder().setName(ResourceNames.name(database, path)).build()));
+        }
+
+        List<StructuredQuery.Order> orders = orders(query);
+        documents.removeIf(document -> (query.hasWhere() && !matches(document, query.getWhere()))
+                || orders.stream().anyMatch(order -> value(document, order.getField().getFieldPath()) == null));
+        documents.sort(comparator(orders));
+        if (query.hasStartAt()) {
+            Cursor startAt = query.getStartAt();
+            documents.removeIf(document -> {
+                int result = compare(document, orders, startAt);
+                return startAt.getBefore() ? result < 0 : result <= 0;
+            });
+        }
+        if (query.hasEndAt()) {
+            Cursor endAt = query.getEndAt();
+            documents.removeIf(document -> {
+                int result = compare(document, orders, endAt);
+                return endAt.getBefore() ? result >= 0 : result > 0;
+            });
+        }
+
+        int from = Math.min(query.getOffset(), documents.size());
+        int to = query.hasLimit() ? Math.min(from + query.getLimit().getValue(), documents.size()) : documents.size();
+        List<Document> result = new ArrayList<>(documents.subList(from, to));
+        if (query.hasSelect()) {
+            List<String> fieldPaths = query.getSelect().getFieldsList().stream()
+                    .map(StructuredQuery.FieldReference::getFieldPath)
+                    .filter(fieldPath -> !NAME_FIELD.equals(fieldPath))
+                    .toList();
+            result.replaceAll(document -> document.toBuilder()
+                    .clearFields()
+                    .putAllFields(Values.project(document.getFieldsMap(), fieldPaths))
+                    .build());
+        }
+        return result;
+    }
+
+    /**
+     * The explicit orders, preceded by the first inequality when there are none, followed by the document name in
+     * the direction of the last order
+     */
+    private static List<StructuredQuery.Order> orders(StructuredQuery query) {
+        List<StructuredQuery.Order> orders = new ArrayList<>(query.getOrderByList());
+        if (orders.isEmpty() && query.hasWhere()) {
+            String inequality = inequality(query.getWhere());
+            if (inequality != null) {
+                orders.add(order(inequality, StructuredQuery.Direction.ASCENDING));
+            }
+        }
+        if (orders.stream().noneMatch(order -> NAME_FIELD.equals(order.getField().getFieldPath()))) {
+            orders.add(order(NAME_FIELD, orders.isEmpty()
+                    ? StructuredQuery.Direction.ASCENDING
+                    : orders.get(orders.size() - 1).getDirection()));
+        }
+        return orders;
+    }
+
+    private static StructuredQuery.Order order(String fieldPath, StructuredQuery.Direction direction) {
+        return StructuredQuery.Order.newBuilder()
+                .setField(StructuredQuery.FieldReference.newBuilder().setFieldPath(fieldPath))
+                .setDirection(direction)
+                .build();
+    }
+
+    private static String inequality(StructuredQuery.Filter filter) {
+        switch (filter.getFilterTypeCase()) {
+            case COMPOSITE_FILTER:
+                for (StructuredQuery.Filter child : filter.getCompositeFilter().getFiltersList()) {
+                    String inequality = inequality(child);
+                    if (inequality != null) {
+                        return inequality;
+                    }
+                }
+                return null;
+            case FIELD_FILTER:
+                return switch (filter.getFieldFilter().getOp()) {
+                    case LESS_THAN, LESS_THAN_OR_EQUAL, GREATER_THAN, GREATER_THAN_OR_EQUAL, NOT_EQUAL, NOT_IN ->
+                            filter.getFieldFilter().getField().getFieldPath();
+                    default -> null;
+                };
+            default:
+                return null;
+        }
+    }
+
+    private static Comparator<Document> comparator(List<StructuredQuery.Order> orders) {
+        return (left, right) -> {
+            for (StructuredQuery.Order order : orders) {
+                String fieldPath = order.getField().getFieldPath();
+                int result = Values.compare(value(left, fieldPath), value(right, fieldPath));
+                if (result != 0) {
+                    return order.getDirection() == StructuredQuery.Direction.DESCENDING ? -result : result;
+                }
+            }
+            return 0;
+        };
+    }
+
+    /**
+     * Compare a document with a cursor, which holds values for a prefix of the orders
+     */
+    private static int compare(Document document, List<StructuredQuery.Order> orders, Cursor cursor) {
+        for (int i = 0; i < Math.min(orders.size(), cursor.getValuesCount()); i++) {
+            StructuredQuery.Order order = orders.get(i);
+            int result = Values.compare(value(document, order.getField().getFieldPath()), cursor.getValues(i));
+            if (result != 0) {
+                return order.getDirection() == StructuredQuery.Direction.DESCENDING ? -result : result;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean matches(Document document, StructuredQuery.Filter filter) {
+        return switch (filter.getFilterTypeCase()) {
+            case COMPOSITE_FILTER -> {
+                StructuredQuery.CompositeFilter composite = filter.getCompositeFilter();
+                yield composite.getOp() == StructuredQuery.CompositeFilter.Operator.OR
+                        ? composite.getFiltersList().stream().anyMatch(child -> matches(document, child))
+                        : composite.getFiltersList().stream().allMatch(child -> matches(document, child));
+            }
+            case FIELD_FILTER -> matches(document, filter.getFieldFilter());
+            case UNARY_FILTER -> matches(document, filter.getUnaryFilter());
+            default -> true;
+        };
+    }
+
+    private static boolean matches(Document document, StructuredQuery.FieldFilter filter) {
+        Value value = value(document, filter.getField().getFieldPath());
+        if (value == null) {
+            return false;
+        }
+
+        Value operand = filter.getValue();
+        return switch (filter.getOp()) {
+            case EQUAL -> Values.compare(value, operand) == 0;
+            case NOT_EQUAL -> Values.compare(value, operand) != 0;
+            case LESS_THAN -> comparable(value, operand) && Values.compare(value, operand) < 0;
+            case LESS_THAN_OR_EQUAL -> comparable(value, operand) && Values.compare(value, operand) <= 0;
+            case GREATER_THAN -> comparable(value, operand) && Values.compare(value, operand) > 0;
+            case GREATER_THAN_OR_EQUAL -> comparable(value, operand) && Values.compare(value, operand) >= 0;
+            case ARRAY_CONTAINS -> contains(elements(value), operand);
+            case IN -> contains(elements(operand), value);
+            case ARRAY_CONTAINS_ANY -> elements(value).stream().anyMatch(element -> contains(elements(operand), element));
+            case NOT_IN -> value.getValueTypeCase() != Value.ValueTypeCase.NULL_VALUE
+                    && !contains(elements(operand), value);
+            default -> false;
+        };
+    }
+
+    private static boolean matches(Document document, StructuredQuery.UnaryFilter filter) {
+        Value value = value(document, filter.getField().getFieldPath());
+        if (value == null) {
+            return false;
+        }
+
+        boolean isNull = value.getValueTypeCase() == Value.ValueTypeCase.NULL_VALUE;
+        return switch (filter.getOp()) {
+            case IS_NULL -> isNull;
+            case IS_NOT_NULL -> !isNull;
+            case IS_NAN -> Values.isNaN(value);
+            case IS_NOT_NAN -> !Values.isNaN(value);
+            default -> false;
+        };
+    }
+
+    /**
+     * Range filters only match values of the same type
+     */
+    private static boolean comparable(Value value, Value operand) {
+        return Values.typeOrder(value) == Values.typeOrder(operand) && !Values.isNaN(value) && !Values.isNaN(operand);
+    }
+
+    private static boolean contains(List<Value> elements, Value value) {
+        return elements.stream().anyMatch(element -> Values.compare(element, value) == 0);
+    }
+
+    private static List<Value> elements(Value value) {
+        return value.getValueTypeCase() == Value.ValueTypeCase.ARRAY_VALUE
+                ? value.getArrayValue().getValuesList()
+                : List.of();
+    }
+
+    /**
+     * @return The value of a field of the document, the document name for {@code __name__}, or null when the field
+     *         does not exist
+     */
+    private static Value value(Document document, String fieldPath) {
+        if (NAME_FIELD.equals(fieldPath)) {
+            return Value.newBuilder().setReferenceValue(document.getName()).build();
+        }
+        return Values.get(document.getFieldsMap(), Values.segments(fieldPath));
+    }
+}
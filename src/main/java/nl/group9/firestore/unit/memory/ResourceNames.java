@@ -0,0 +1,50 @@
+package nl.group9.firestore.unit.memory;
+
+/**
+ * Internal helper to convert between the resource names used in requests, like
+ * {@code projects/p/databases/d/documents/users/alice}, and the paths of documents and collections.
+ */
+final class ResourceNames {
+
+    private static final String DATABASES = "/databases/";
+    private static final String DOCUMENTS = "/documents";
+
+    private ResourceNames() {}
+
+    /**
+     * @param name The resource name of a document or collection, or of the root of the database
+     * @return The path relative to the root of the database; an empty string for the root
+     */
+    static String path(String name) {
+        int index = documentsIndex(name);
+        if (index < 0) {
+            throw new IllegalArgumentException("Not a document resource name: " + name);
+        }
+        String path = name.substring(index + DOCUMENTS.length());
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    /**
+     * @param database The resource name of the root of the database
+     * @param path The path of a document or collection
+     * @return The resource name
+     */
+    static String name(String database, String path) {
+        return path.isEmpty() ? database : database + "/" + path;
+    }
+
+    /**
+     * @param name A resource name
+     * @return The resource name of the root of the database of the name
+     */
+    static String database(String name) {
+        return name.substring(0, documentsIndex(name) + DOCUMENTS.length());
+    }
+
+    /**
+     * Search after the database, as a project id may contain the word documents
+     */
+    private static int documentsIndex(String name) {
+        return name.indexOf(DOCUMENTS, Math.max(name.indexOf(DATABASES), 0));
+    }
+}
@@ -0,0 +1,266 @@
+package nl.group9.firestore.unit.memory;
+
+import com.google.firestore.v1.ArrayValue;
+import com.google.firestore.v1.MapValue;
+import com.google.firestore.v1.Value;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Timestamp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Internal helpers for Firestore values: field paths, and the ordering of values as defined by Firestore.
+ */
+final class Values {
+
+    private Values() {}
+
+    /**
+     * Split an encoded field path (as used in masks, filters and transforms) into its segments. Segments may be
+     * quoted with backticks, in which a backslash escapes the next character.
+     * @param encoded The encoded field path
+     * @return The segments
+     */
+    static List<String> segments(String encoded) {
+        List<String> segments = new ArrayList<>();
+        StringBuilder segment = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < encoded.length(); i++) {
+            char c = encoded.charAt(i);
+            if (quoted && c == '\\' && i + 1 < encoded.length()) {
+                segment.append(encoded.charAt(++i));
+            } else if (c == '`') {
+                quoted = !quoted;
+            } else if (c == '.' && !quoted) {
+                segments.add(segment.toString());
+                segment.setLength(0);
+            } else {
+                segment.append(c);
+            }
+        }
+        segments.add(segment.toString());
+        return segments;
+    }
+
+    /**
+     * Get the value at a field path
+     * @return The value, or null when the field does not exist
+     */
+    static Value get(Map<String, Value> fields, List<String> segments) {
+        Value value = fields.get(segments.get(0));
+        for (int i = 1; i < segments.size() && value != null; i++) {
+            value = value.getValueTypeCase() == Value.ValueTypeCase.MAP_VALUE
+                    ? value.getMapValue().getFieldsMap().get(segments.get(i))
+                    : null;
+        }
+        return value;
+    }
+
+    /**
+     * Set or remove the value at a field path, creating intermediate maps when needed
+     * @param fields The mutable fields to update
+     * @param segments The field path
+     * @param value The value, or null to remove the field
+     */
+    static void set(Map<String, Value> fields, List<String> segments, Value value) {
+        String name = segments.get(0);
+        if (segments.size() == 1) {
+            if (value == null) {
+                fields.remove(name);
+            } else {
+                fields.put(name, value);
+            }
+            return;
+        }
+
+        Value current = fields.get(name);
+        boolean isMap = current != null && current.getValueTypeCase() == Value.ValueTypeCase.MAP_VALUE;
+        if (value == null && !isMap) {
+            return;
+        }
+        Map<String, Value> child = isMap ? new HashMap<>(current.getMapValue().getFieldsMap()) : new HashMap<>();
+        set(child, segments.subList(1, segments.size()), value);
+        fields.put(name, mapValue(child));
+    }
+
+    /**
+     * Keep only the given field paths
+     * @param fields The fields
+     * @param fieldPaths The encoded field paths to keep
+     * @return The projected fields
+     */
+    static Map<String, Value> project(Map<String, Value> fields, List<String> fieldPaths) {
+        Map<String, Value> projected = new HashMap<>();
+        for (String fieldPath : fieldPaths) {
+            List<String> segments = segments(fieldPath);
+            Value value = get(fields, segments);
+            if (value != null) {
+                set(projected, segments, value);
+            }
+        }
+        return projected;
+    }
+
+    static Value mapValue(Map<String, Value> fields) {
+        return Value.newBuilder().setMapValue(MapValue.newBuilder().putAllFields(fields)).build();
+    }
+
+    static Value arrayValue(List<Value> values) {
+        return Value.newBuilder().setArrayValue(ArrayValue.newBuilder().addAllValues(values)).build();
+    }
+
+    static boolean isNumber(Value value) {
+        return value.getValueTypeCase() == Value.ValueTypeCase.INTEGER_VALUE
+                || value.getValueTypeCase() == Value.ValueTypeCase.DOUBLE_VALUE;
+    }
+
+    static boolean isNaN(Value value) {
+        return value.getValueTypeCase() == Value.ValueTypeCase.DOUBLE_VALUE && Double.isNaN(value.getDoubleValue());
+    }
+
+    static double doubleValue(Value value) {
+        return value.getValueTypeCase() == Value.ValueTypeCase.INTEGER_VALUE
+                ? value.getIntegerValue()
+                : value.getDoubleValue();
+    }
+
+    /**
+     * The position of the type of the value in the Firestore ordering: null, booleans, numbers, timestamps, strings,
+     * bytes, references, geographical points, arrays and maps
+     */
+    static int typeOrder(Value value) {
+        return switch (value.getValueTypeCase()) {
+            case NULL_VALUE -> 0;
+            case BOOLEAN_VALUE -> 1;
+            case INTEGER_VALUE, DOUBLE_VALUE -> 2;
+            case TIMESTAMP_VALUE -> 3;
+            case STRING_VALUE -> 4;
+            case BYTES_VALUE -> 5;
+            case REFERENCE_VALUE -> 6;
+            case GEO_POINT_VALUE -> 7;
+            case ARRAY_VALUE -> 8;
+            case MAP_VALUE -> 9;
+            default -> 10;
+        };
+    }
+
+    /**
+     * Compare two values in the Firestore ordering. Integers and doubles compare by their numeric value, NaN before
+     * all other numbers.
+     */
+    static int compare(Value left, Value right) {
+        int result = Integer.compare(typeOrder(left), typeOrder(right));
+        if (result != 0) {
+            return result;
+        }
+
+        return switch (left.getValueTypeCase()) {
+            case BOOLEAN_VALUE -> Boolean.compare(left.getBooleanValue(), right.getBooleanValue());
+            case INTEGER_VALUE, DOUBLE_VALUE -> compareNumbers(left, right);
+            case TIMESTAMP_VALUE -> compareTimestamps(left.getTimestampValue(), right.getTimestampValue());
+            case STRING_VALUE -> compareStrings(left.getStringValue(), right.getStringValue());
+            case BYTES_VALUE -> compareBytes(left.getBytesValue(), right.getBytesValue());
+            case REFERENCE_VALUE -> compareReferences(left.getReferenceValue(), right.getReferenceValue());
+            case GEO_POINT_VALUE -> {
+                int latitude = Double.compare(left.getGeoPointValue().getLatitude(), right.getGeoPointValue().getLatitude());
+                yield latitude != 0
+                        ? latitude
+                        : Double.compare(left.getGeoPointValue().getLongitude(), right.getGeoPointValue().getLongitude());
+            }
+            case ARRAY_VALUE -> compareArrays(left.getArrayValue().getValuesList(), right.getArrayValue().getValuesList());
+            case MAP_VALUE -> compareMaps(left.getMapValue().getFieldsMap(), right.getMapValue().getFieldsMap());
+            default -> 0;
+        };
+    }
+
+    /**
+     * Compare two document names by their segments
+     */
+    static int compareReferences(String left, String right) {
+        String[] leftSegments = left.split("/");
+        String[] rightSegments = right.split("/");
+        for (int i = 0; i < Math.min(leftSegments.length, rightSegments.length); i++) {
+            int result = compareStrings(leftSegments[i], rightSegments[i]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(leftSegments.length, rightSegments.length);
+    }
+
+    private static int compareNumbers(Value left, Value right) {
+        if (left.getValueTypeCase() == Value.ValueTypeCase.INTEGER_VALUE
+                && right.getValueTypeCase() == Value.ValueTypeCase.INTEGER_VALUE) {
+            return Long.compare(left.getIntegerValue(), right.getIntegerValue());
+        }
+        double leftDouble = doubleValue(left);
+        double rightDouble = doubleValue(right);
+        if (Double.isNaN(leftDouble) || Double.isNaN(rightDouble)) {
+            return Boolean.compare(!Double.isNaN(leftDouble), !Double.isNaN(rightDouble));
+        }
+        // Unlike Double.compare(), 0.0 and -0.0 are equal
+        return leftDouble < rightDouble ? -1 : leftDouble > rightDouble ? 1 : 0;
+    }
+
+    private static int compareTimestamps(Timestamp left, Timestamp right) {
+        int result = Long.compare(left.getSeconds(), right.getSeconds());
+        return result != 0 ? result : Integer.compare(left.getNanos(), right.getNanos());
+    }
+
+    /**
+     * Compare by code point, which is the same as comparing the UTF-8 encoding
+     */
+    private static int compareStrings(String left, String right) {
+        int i = 0;
+        int j = 0;
+        while (i < left.length() && j < right.length()) {
+            int leftCodePoint = left.codePointAt(i);
+            int rightCodePoint = right.codePointAt(j);
+            if (leftCodePoint != rightCodePoint) {
+                return Integer.compare(leftCodePoint, rightCodePoint);
+            }
+            i += Character.charCount(leftCodePoint);
+            j += Character.charCount(rightCodePoint);
+        }
+        return Boolean.compare(i < left.length(), j < right.length());
+    }
+
+    private static int compareBytes(ByteString left, ByteString right) {
+        for (int i = 0; i < Math.min(left.size(), right.size()); i++) {
+            int result = Integer.compare(left.byteAt(i) & 0xff, right.byteAt(i) & 0xff);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(left.size(), right.size());
+    }
+
+    private static int compareArrays(List<Value> left, List<Value> right) {
+        for (int i = 0; i < Math.min(left.size(), right.size()); i++) {
+            int result = compare(left.get(i), right.get(i));
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(left.size(), right.size());
+    }
+
+    private static int compareMaps(Map<String, Value> left, Map<String, Value> right) {
+        List<Map.Entry<String, Value>> leftEntries = new ArrayList<>(new TreeMap<>(left).entrySet());
+        List<Map.Entry<String, Value>> rightEntries = new ArrayList<>(new TreeMap<>(right).entrySet());
+        for (int i = 0; i < Math.min(leftEntries.size(), rightEntries.size()); i++) {
+            int result = compareStrings(leftEntries.get(i).getKey(), rightEntries.get(i).getKey());
+            if (result == 0) {
+                result = compare(leftEntries.get(i).getValue(), rightEntries.get(i).getValue());
+            }
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(leftEntries.size(), rightEntries.size());
+    }
+}
@@ -1,10 +1,23 @@
 package nl.group9.firestore.unit;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import com.google.api.gax.rpc.StatusCode;
 import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.CollectionReference;
 import com.google.cloud.firestore.DocumentReference;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.FirestoreOptions;
+import io.grpc.Status;
+import nl.group9.firestore.unit.memory.InMemoryFirestore;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.opentest4j.AssertionFailedError;
@@ -14,12 +27,24 @@ import org.testcontainers.junit.jupiter.Testcontainers;
 import org.testcontainers.utility.DockerImageName;
 
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.*;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 import static nl.group9.firestore.unit.FirestoreUnit.*;
 import static org.junit.jupiter.api.Assertions.*;
@@ -209,6 +234,300 @@ public class FirestoreUnitTest {
         }
     }
 
+    @Test
+    void testBatchedReads() throws Exception {
+        try (Firestore firestore = connection()) {
+            assertFirestoreJson(firestore, FirestoreUnit.options().withBatchedReads(2), asInputStream(CORRECT_JSON));
+            assertFirestoreJson(firestore, FirestoreUnit.options().withBatchedReads(2), asInputStream("json/missing_subdoc.json"));
+            assertFirestoreJson(firestore, FirestoreUnit.options().withBatchedReads(2), asInputStream("json/dangling.json"));
+        }
+    }
+
+    @Test
+    void testBatchedReadsMissingDoc() {
+        testInvalidFile(
+                "json/missing_doc.json",
+                FirestoreUnit.options().withBatchedReads(10),
+                "The document was not found at testcollection/testdoc1/subcollection/testdoc3 ==> expected: <true> but was: <false>"
+        );
+    }
+
+    @Test
+    void testMaxConcurrentReads() throws Exception {
+        try (Firestore firestore = connection()) {
+            assertFirestoreJson(firestore, FirestoreUnit.options().withMaxConcurrentReads(1), asInputStream(CORRECT_JSON));
+            assertFirestoreJson(firestore, FirestoreUnit.options().withMaxConcurrentReads(2).withBatchedReads(1), asInputStream(CORRECT_JSON));
+            assertFirestoreJson(firestore, FirestoreUnit.options().withMaxConcurrentReads(1).withStreamingValidation(), asInputStream(CORRECT_JSON));
+            assertThrows(IllegalArgumentException.class, () -> FirestoreUnit.options().withMaxConcurrentReads(0));
+        }
+    }
+
+    @Test
+    void testMaxConcurrentReadsMissingDoc() {
+        testInvalidFile(
+                "json/missing_doc.json",
+                FirestoreUnit.options().withMaxConcurrentReads(1),
+                "The document was not found at testcollection/testdoc1/subcollection/testdoc3 ==> expected: <true> but was: <false>"
+        );
+    }
+
+    @Test
+    void testMaxConcurrentReadsStopAtFirstMismatch() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        try (Firestore firestore = intercept(InMemoryFirestore.create().connect(), "getAll", (args, call) -> {
+            reads.incrementAndGet();
+            return call.get();
+        })) {
+            StringBuilder yaml = new StringBuilder("_stopcollection:\n");
+            for (int i = 0; i < 50; i++) {
+                firestore.document("stopcollection/stopdoc" + i).set(Map.of("testInteger", i)).get();
+                yaml.append("  stopdoc").append(i).append(":\n    testInteger: -1\n");
+            }
+            Options options = FirestoreUnit.options().withMaxConcurrentReads(1).withBatchedReads(1);
+
+            // The reads which were not started yet are cancelled
+            assertThrows(AssertionFailedError.class, () -> assertFirestoreYaml(firestore, options, yaml.toString()));
+            assertTrue(reads.get() < 50);
+
+            reads.set(0);
+            FirestoreValidationError error = assertThrows(FirestoreValidationError.class,
+                    () -> assertFirestoreYaml(firestore, options.withCollectAllFailures(), yaml.toString()));
+            assertEquals(50, error.getResult().getMismatches().size());
+            assertEquals(50, reads.get());
+        }
+    }
+
+    @Test
+    void testMaxConcurrentReadsThrottled() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        try (Firestore firestore = intercept(InMemoryFirestore.create().connect(), "getAll",
+                (args, call) -> calls.incrementAndGet() <= 2 ? failure(Status.Code.RESOURCE_EXHAUSTED) : call.get())) {
+            firestore.document("throttledcollection/throttleddoc").set(Map.of("testInteger", 1)).get();
+
+            ValidationResult result = assertFirestoreYamlAsync(firestore,
+                    "_throttledcollection:\n  throttleddoc:\n    testInteger: 1\n").get();
+            assertTrue(result.isValid());
+            assertEquals(2, result.getThrottledReads());
+            assertEquals(0, result.getRetries());
+        }
+    }
+
+    @Test
+    void testReadLimiterHalvesAndGrowsLimit() throws Exception {
+        ReadLimiter limiter = new ReadLimiter(4, 1, 1);
+        AtomicInteger attempts = new AtomicInteger();
+        ApiFuture<String> read = limiter.read(() -> attempts.incrementAndGet() <= 2
+                ? failure(Status.Code.RESOURCE_EXHAUSTED)
+                : ApiFutures.immediateFuture("read"));
+
+        assertEquals("read", read.get());
+        assertEquals(3, attempts.get());
+        assertEquals(2, limiter.throttled());
+        // Halved twice to 1, raised again by the successful attempt
+        assertEquals(2, limiter.limit());
+
+        for (int expected = 3; expected <= 4; expected++) {
+            for (int i = 0; i < expected - 1; i++) {
+                limiter.read(() -> ApiFutures.immediateFuture("read")).get();
+            }
+            assertEquals(expected, limiter.limit());
+        }
+        for (int i = 0; i < 10; i++) {
+            limiter.read(() -> ApiFutures.immediateFuture("read")).get();
+        }
+        assertEquals(4, limiter.limit());
+    }
+
+    @Test
+    void testReadLimiterRequeuesAtFront() throws Exception {
+        ReadLimiter limiter = new ReadLimiter(1, 1, 1);
+        List<String> started = Collections.synchronizedList(new ArrayList<>());
+        SettableApiFuture<String> firstA = SettableApiFuture.create();
+        SettableApiFuture<String> b = SettableApiFuture.create();
+
+        ApiFuture<String> readA = limiter.read(() -> {
+            started.add("A");
+            return started.size() == 1 ? firstA : ApiFutures.immediateFuture("A");
+        });
+        ApiFuture<String> readB = limiter.read(() -> {
+            started.add("B");
+            return b;
+        });
+        ApiFuture<String> readC = limiter.read(() -> {
+            started.add("C");
+            return ApiFutures.immediateFuture("C");
+        });
+
+        // A is throttled, B takes its place while A waits to be queued again, ahead of C
+        firstA.setException(exception(Status.Code.RESOURCE_EXHAUSTED));
+        Thread.sleep(100);
+        assertEquals(List.of("A", "B"), started);
+        b.set("B");
+
+        assertEquals("A", readA.get());
+        assertEquals("B", readB.get());
+        assertEquals("C", readC.get());
+        assertEquals(List.of("A", "B", "A", "C"), started);
+        assertEquals(1, limiter.throttled());
+    }
+
+    @Test
+    void testReadLimiterGivesUpAfterMaxAttempts() {
+        ReadLimiter limiter = new ReadLimiter(2, 1, 1);
+        AtomicInteger attempts = new AtomicInteger();
+        ApiFuture<String> read = limiter.read(() -> {
+            attempts.incrementAndGet();
+            return failure(Status.Code.RESOURCE_EXHAUSTED);
+        });
+
+        ExecutionException e = assertThrows(ExecutionException.class, read::get);
+        assertInstanceOf(ApiException.class, e.getCause());
+        assertEquals(StatusCode.Code.RESOURCE_EXHAUSTED, ((ApiException) e.getCause()).getStatusCode().getCode());
+        assertEquals(ReadLimiter.MAX_THROTTLED_ATTEMPTS, attempts.get());
+        assertEquals(ReadLimiter.MAX_THROTTLED_ATTEMPTS - 1, limiter.throttled());
+    }
+
+    @Test
+    void testRetries() throws Exception {
+        try (Firestore firestore = connection()) {
+            Options options = FirestoreUnit.options().withRetries(3).withCallDeadline(Duration.ofSeconds(30));
+            ValidationResult result = assertFirestoreJsonAsync(firestore, options, asFile(CORRECT_JSON)).get();
+            assertTrue(result.isValid());
+            assertEquals(0, result.getRetries());
+            assertEquals(0, result.getThrottledReads());
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            exportRecursiveJson(firestore, options.withExportParallelism(2), "testcollection/testdoc1", baos);
+            assertFirestoreJson(firestore, new ByteArrayInputStream(baos.toByteArray()));
+
+            Options expired = FirestoreUnit.options()
+                    .withRetries(2, Duration.ofMillis(1), Duration.ofMillis(1))
+                    .withCallDeadline(Duration.ofNanos(1));
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> assertFirestoreJsonAsync(firestore, expired, asFile(CORRECT_JSON)).get());
+            assertInstanceOf(TimeoutException.class, e.getCause());
+            assertThrows(IllegalArgumentException.class, () -> FirestoreUnit.options().withRetries(0));
+        }
+    }
+
+    @Test
+    void testRetriesTransientFailures() throws Exception {
+        List<Status.Code> failures = List.of(Status.Code.UNAVAILABLE, Status.Code.DEADLINE_EXCEEDED, Status.Code.ABORTED);
+        AtomicInteger calls = new AtomicInteger();
+        try (Firestore firestore = intercept(InMemoryFirestore.create().connect(), "getAll", (args, call) -> {
+            int attempt = calls.getAndIncrement();
+            return attempt < failures.size() ? failure(failures.get(attempt)) : call.get();
+        })) {
+            firestore.document("retrycollection/retrydoc").set(Map.of("testInteger", 1)).get();
+            String yaml = "_retrycollection:\n  retrydoc:\n    testInteger: 1\n";
+
+            Options options = FirestoreUnit.options().withRetries(4, Duration.ofMillis(1), Duration.ofMillis(1));
+            ValidationResult result = assertFirestoreYamlAsync(firestore, options, yaml).get();
+            assertTrue(result.isValid());
+            assertEquals(3, result.getRetries());
+            assertEquals(4, calls.get());
+
+            // Not retried beyond the maximum number of attempts
+            calls.set(0);
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> assertFirestoreYamlAsync(firestore, options.withRetries(3, Duration.ofMillis(1), Duration.ofMillis(1)), yaml).get());
+            assertEquals(StatusCode.Code.ABORTED, ((ApiException) e.getCause()).getStatusCode().getCode());
+            assertEquals(3, calls.get());
+        }
+    }
+
+    @Test
+    void testRetriesRestartListing() {
+        Retrier retrier = new Retrier(FirestoreUnit.options().withRetries(3, Duration.ofMillis(1), Duration.ofMillis(1)));
+        List<String> items = List.of("a", "b", "c", "d");
+        AtomicInteger listings = new AtomicInteger();
+        Iterable<String> listing = retrier.iterable(() -> listings.incrementAndGet() == 1
+                ? failingAfter(items, 2, Status.Code.UNAVAILABLE)
+                : items);
+
+        List<String> listed = new ArrayList<>();
+        listing.forEach(listed::add);
+        assertEquals(items, listed);
+        assertEquals(2, listings.get());
+        assertEquals(1, retrier.retries());
+    }
+
+    @Test
+    void testRetriesRestartExportListing() throws Exception {
+        AtomicInteger listings = new AtomicInteger();
+        try (Firestore firestore = intercept(InMemoryFirestore.create().connect(), "listCollections", (args, call) -> {
+            @SuppressWarnings("unchecked")
+            Iterable<CollectionReference> collections = (Iterable<CollectionReference>) call.get();
+            return listings.incrementAndGet() == 1 ? failingAfter(collections, 1, Status.Code.UNAVAILABLE) : collections;
+        })) {
+            for (String collection : List.of("alpha", "beta", "gamma")) {
+                firestore.document(collection + "/doc").set(Map.of("testInteger", 1)).get();
+            }
+
+            File directory = Files.createTempDirectory("shards").toFile();
+            directory.deleteOnExit();
+            Options options = FirestoreUnit.options().withRetries(3, Duration.ofMillis(1), Duration.ofMillis(1));
+            exportShardedJson(firestore, options, "", directory);
+            assertEquals(2, listings.get());
+
+            // Each collection is exported once, none is lost or duplicated by the restart
+            File manifest = new File(directory, "manifest.json");
+            List<String> exported = new ArrayList<>();
+            new ObjectMapper().readTree(manifest).get("shards").forEach(shard -> exported.add(shard.get("collection").asText()));
+            assertEquals(List.of("alpha", "beta", "gamma"), exported);
+            assertFirestoreManifest(firestore, manifest);
+        }
+    }
+
+    @Test
+    void testStreamingValidation() throws Exception {
+        try (Firestore firestore = connection()) {
+            assertFirestoreJson(firestore, FirestoreUnit.options().withStreamingValidation(), asInputStream(CORRECT_JSON));
+            assertFirestoreYaml(firestore, FirestoreUnit.options().withStreamingValidation(), asInputStream(CORRECT_YAML));
+            assertFirestoreJson(firestore, FirestoreUnit.options().withStreamingValidation().withBatchedReads(2), asInputStream("json/missing_subdoc.json"));
+        }
+    }
+
+    @Test
+    void testStreamingValidationMissingDoc() {
+        testInvalidFile(
+                "json/missing_doc.json",
+                FirestoreUnit.options().withStreamingValidation(),
+                "The document was not found at testcollection/testdoc1/subcollection/testdoc3 ==> expected: <true> but was: <false>"
+        );
+    }
+
+    @Test
+    void testWithoutFieldMaskedReads() throws Exception {
+        try (Firestore firestore = connection()) {
+            assertFirestoreJson(firestore, FirestoreUnit.options().withoutFieldMaskedReads(), asInputStream(CORRECT_JSON));
+            assertFirestoreJson(firestore, FirestoreUnit.options().withFieldMaskedReads().withBatchedReads(2), asInputStream(CORRECT_JSON));
+        }
+    }
+
+    @Test
+    void testMapTypeMismatchWithoutFieldMask() throws Exception {
+        try (Firestore firestore = connection()) {
+            firestore.document("maskcollection/maskdoc").set(Map.of("notAMap", 5)).get();
+
+            String yaml = "_maskcollection:\n" +
+                    "  maskdoc:\n" +
+                    "    notAMap:\n" +
+                    "      field1: 5\n";
+            AssertionFailedError e = assertThrows(AssertionFailedError.class, () -> assertFirestoreYaml(firestore, yaml));
+            assertTrue(e.getMessage().startsWith("Field is not of expected type interface java.util.Map at maskcollection/maskdoc/notAMap"));
+        }
+    }
+
+    @Test
+    void testFieldMaskedReadsNestedMap() {
+        testInvalidFile(
+                "json/incorrect_map.json",
+                FirestoreUnit.options().withFieldMaskedReads(),
+                "Field does not have the expected value at testcollection/testdoc1/testMap/field1 ==> expected: <11> but was: <10>"
+        );
+    }
+
     @Test
     void testArrayDifferentElements() {
         testInvalidFile("json/array_diff_element.json", "Field does not have the expected value at testcollection/testdoc1/testArray[0] ==> expected: <true> but was: <false>");
@@ -245,6 +564,44 @@ public class FirestoreUnitTest {
         }
     }
 
+    @Test
+    void testArrayOrderingCountedLax() throws Exception {
+        try (Firestore firestore = connection()) {
+            assertFirestoreJson(
+                    firestore,
+                    FirestoreUnit.options().withCountedLaxArrayOrdering(),
+                    asInputStream("json/lax_array.json")
+            );
+        }
+    }
+
+    @Test
+    void testArrayOrderingCountedLaxWithDuplicates() {
+        testInvalidFile(
+                "json/lax_array_with_duplicates.json",
+                FirestoreUnit.options().withCountedLaxArrayOrdering(),
+                "Array value for path testcollection/testdoc1/testDuplicatesArray[2] not found in document"
+        );
+    }
+
+    @Test
+    void testArrayOrderingCountedLaxMaps() throws Exception {
+        try (Firestore firestore = connection()) {
+            firestore.document("laxcollection/laxdoc").set(Map.of("maps", List.of(
+                    Map.of("a", 1, "b", 2),
+                    Map.of("a", 1)
+            ))).get();
+
+            String yaml = "_laxcollection:\n" +
+                    "  laxdoc:\n" +
+                    "    maps:\n" +
+                    "      - a: 1\n" +
+                    "      - a: 1\n" +
+                    "        b: 2\n";
+            assertFirestoreYaml(firestore, FirestoreUnit.options().withCountedLaxArrayOrdering(), yaml);
+        }
+    }
+
     @Test
     void testArrayDifferenSize() {
         testInvalidFile("json/array_diff_size.json", "Array field does not contain the same number of elements at testcollection/testdoc1/testArray ==> expected: <5> but was: <4>");
@@ -305,6 +662,163 @@ public class FirestoreUnitTest {
         testInvalidFile("json/invalid_type.json", "Field is not of expected type class java.lang.Double at testcollection/testdoc1/testBoolean ==> Unexpected type, expected: <java.lang.Double> but was: <java.lang.Boolean>");
     }
 
+    @Test
+    void testCollectAllFailures() throws Exception {
+        try (Firestore firestore = connection()) {
+            FirestoreValidationError error = assertThrows(FirestoreValidationError.class, () ->
+                    assertFirestoreJson(
+                            firestore,
+                            FirestoreUnit.options().withCollectAllFailures(),
+                            asInputStream("json/multiple_failures.json")
+                    )
+            );
+
+            List<Mismatch> mismatches = error.getResult().getMismatches();
+            assertEquals(4, mismatches.size());
+            assertEquals(4, error.getFailures().size());
+
+            assertEquals("testcollection/testdoc1/subcollection/testdoc3", mismatches.get(0).path());
+            assertEquals(Mismatch.Kind.MISSING_DOCUMENT, mismatches.get(0).kind());
+            assertEquals("testcollection/testdoc1/testInteger", mismatches.get(1).path());
+            assertEquals(Mismatch.Kind.INVALID_VALUE, mismatches.get(1).kind());
+            assertEquals(50L, mismatches.get(1).expected());
+            assertEquals(20L, mismatches.get(1).actual());
+            assertEquals("testcollection/testdoc1/testMissing", mismatches.get(2).path());
+            assertEquals(Mismatch.Kind.MISSING_FIELD, mismatches.get(2).kind());
+            assertEquals("testcollection/testdoc1/testText", mismatches.get(3).path());
+            assertEquals(
+                    "Field does not have the expected value at testcollection/testdoc1/testText ==> expected: <Hello other world> but was: <Hello world>",
+                    mismatches.get(3).toAssertionError().getMessage()
+            );
+        }
+    }
+
+    @Test
+    void testReferenceCacheChangedFile() throws Exception {
+        File reference = File.createTempFile("reference", ".json");
+        reference.deleteOnExit();
+        try (Firestore firestore = connection()) {
+            Options cached = FirestoreUnit.options().withReferenceCache();
+            Files.writeString(reference.toPath(), asString(CORRECT_JSON));
+            assertFirestoreJson(firestore, cached, reference);
+            assertFirestoreJson(firestore, cached, reference);
+
+            // Rewritten immediately, possibly within the resolution of the modification time
+            long lastModified = reference.lastModified();
+            Files.writeString(reference.toPath(), asString("json/incorrect_text.json"));
+            assertTrue(reference.setLastModified(lastModified));
+            assertThrows(AssertionFailedError.class, () -> assertFirestoreJson(firestore, cached, reference));
+
+            FirestoreUnit.clearReferenceCache();
+            assertThrows(AssertionFailedError.class, () -> assertFirestoreJson(firestore, reference));
+        }
+    }
+
+    @Test
+    void testConcurrentAssertions() throws Exception {
+        File reference = asFile(CORRECT_JSON);
+        try (Firestore firestore = connection()) {
+            List.of(1, 2, 3, 4, 5, 6, 7, 8).parallelStream()
+                    .forEach(i -> assertFirestoreJson(firestore, FirestoreUnit.options().withBatchedReads(i), reference));
+        }
+    }
+
+    @Test
+    void testFingerprintManifest() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        try (Firestore firestore = intercept(connection(), "getAll", (args, call) -> {
+            // Only the full reads are counted, the update times are read with an empty field mask
+            if (args.length == 1) {
+                reads.incrementAndGet();
+            }
+            return call.get();
+        })) {
+            String yaml = "_manifestcollection:\n  manifestdoc1:\n    testInteger: 1\n";
+            loadYaml(firestore, FirestoreUnit.options(), yaml);
+
+            File manifest = Files.createTempFile("fingerprints", ".json").toFile();
+            manifest.deleteOnExit();
+            assertTrue(manifest.delete());
+            Options options = FirestoreUnit.options().withFingerprintManifest(manifest);
+
+            assertFirestoreYaml(firestore, options, yaml);
+            assertEquals(1, reads.get());
+            assertTrue(Files.readString(manifest.toPath()).contains("manifestcollection/manifestdoc1"));
+
+            // Unchanged, skipped using the manifest
+            reads.set(0);
+            assertFirestoreYaml(firestore, options, yaml);
+            assertEquals(0, reads.get());
+
+            // Updated since, validated again
+            firestore.document("manifestcollection/manifestdoc1").set(Map.of("testInteger", 2)).get();
+            assertThrows(AssertionFailedError.class, () -> assertFirestoreYaml(firestore, options, yaml));
+            assertEquals(1, reads.get());
+            assertFalse(Files.readString(manifest.toPath()).contains("manifestcollection/manifestdoc1"));
+
+            // The same instant in another text is a different reference for a text value, validated again
+            firestore.document("manifestcollection/manifestdoc2").set(Map.of("testText", "2024-01-01T00:00:00Z")).get();
+            assertFirestoreYaml(firestore, options, "_manifestcollection:\n  manifestdoc2:\n    testText: '2024-01-01T00:00:00Z'\n");
+            assertTrue(Files.readString(manifest.toPath()).contains("manifestcollection/manifestdoc2"));
+            reads.set(0);
+            assertThrows(AssertionFailedError.class, () -> assertFirestoreYaml(firestore, options,
+                    "_manifestcollection:\n  manifestdoc2:\n    testText: '2024-01-01T01:00:00+01:00'\n"));
+            assertEquals(1, reads.get());
+        }
+    }
+
+    @Test
+    void testDateTimeLowercaseSeparator() {
+        assertEquals(Instant.parse("2024-03-22T12:13:14Z"), DateTimes.parse("2024-03-22t12:13:14Z", TIMEZONE));
+        assertEquals(DateTimes.parse("2024-03-22T12:13:14", TIMEZONE), DateTimes.parse("2024-03-22t12:13:14", TIMEZONE));
+        assertNull(DateTimes.parse("2024-03-22x12:13:14Z", TIMEZONE));
+    }
+
+    @Test
+    void testDateTimeFormatMatchesIsoFormatter() {
+        for (ZoneId zone : List.of(ZoneId.of("UTC"), ZoneOffset.UTC, TIMEZONE, ZoneId.of("Europe/Amsterdam"))) {
+            for (long seconds : new long[] {0, 1711109594, -62135596800L, 253402300799L}) {
+                for (int nanos : new int[] {0, 123000000, 100000, 5000, 999999000}) {
+                    assertEquals(
+                            DateTimeFormatter.ISO_DATE_TIME.format(Instant.ofEpochSecond(seconds, nanos).atZone(zone)),
+                            DateTimes.format(seconds, nanos, zone)
+                    );
+                }
+            }
+        }
+    }
+
+    @Test
+    void testAsyncDefaultOptions() throws Exception {
+        try (Firestore firestore = connection()) {
+            assertTrue(assertFirestoreJsonAsync(firestore, asFile(CORRECT_JSON)).get().isValid());
+            assertTrue(assertFirestoreYamlAsync(firestore, asReader(CORRECT_YAML)).get().isValid());
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> assertFirestoreJsonAsync(firestore, asString("json/incorrect_text.json")).get());
+            assertInstanceOf(AssertionFailedError.class, e.getCause());
+        }
+    }
+
+    @Test
+    void testAsyncWithExecutor() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (Firestore firestore = connection()) {
+            Options options = FirestoreUnit.options().withExecutor(executor);
+            CompletableFuture<ValidationResult> correct = assertFirestoreJsonAsync(firestore, options, asFile(CORRECT_JSON));
+            CompletableFuture<ValidationResult> incorrect = assertFirestoreJsonAsync(firestore, options, asInputStream("json/incorrect_text.json"));
+
+            assertTrue(correct.get().isValid());
+            ExecutionException e = assertThrows(ExecutionException.class, incorrect::get);
+            assertInstanceOf(AssertionFailedError.class, e.getCause());
+            assertEquals(
+                    "Field does not have the expected value at testcollection/testdoc1/testText ==> expected: <Hello other world> but was: <Hello world>",
+                    e.getCause().getMessage()
+            );
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     @Test
     void testExportJson() throws Exception {
         testExport(
@@ -341,6 +855,336 @@ public class FirestoreUnitTest {
         );
     }
 
+    @Test
+    void testExportJsonRecursiveParallel() throws Exception {
+        testExport(
+                (firestore, baos) ->
+                        exportRecursiveJson(firestore, FirestoreUnit.options().withExportParallelism(4), "testcollection/testdoc1", baos),
+                FirestoreUnit::assertFirestoreJson
+        );
+    }
+
+    @Test
+    void testExportStreamingIdenticalOutput() throws Exception {
+        try (Firestore firestore = connection()) {
+            for (BiConsumer<Options, OutputStream> exporter : List.<BiConsumer<Options, OutputStream>>of(
+                    (options, os) -> exportRecursiveJson(firestore, options, "testcollection/testdoc1", os),
+                    (options, os) -> exportRecursiveYaml(firestore, options, "testcollection/testdoc1", os))) {
+                ByteArrayOutputStream tree = new ByteArrayOutputStream();
+                exporter.accept(FirestoreUnit.options(), tree);
+                ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+                exporter.accept(FirestoreUnit.options().withStreamingExport(), streamed);
+                ByteArrayOutputStream paged = new ByteArrayOutputStream();
+                exporter.accept(FirestoreUnit.options().withStreamingExport().withPageSize(1), paged);
+
+                assertEquals(tree.toString(), streamed.toString());
+                assertEquals(tree.toString(), paged.toString());
+            }
+        }
+    }
+
+    @Test
+    void testLoadJson() throws Exception {
+        try (Firestore firestore = connection()) {
+            loadJson(firestore, FirestoreUnit.options().withWriteRate(10, 100), asInputStream("json/load.json"));
+
+            assertFirestoreJson(firestore, asInputStream("json/load.json"));
+            assertEquals(
+                    timestampValue(ZoneId.of("UTC")),
+                    firestore.document("loadcollection/loaddoc1").get().get().getTimestamp("testDateTime")
+            );
+            assertFalse(firestore.document("loadcollection/loaddoc3").get().get().exists());
+        }
+    }
+
+    @Test
+    void testLoadYamlUnthrottled() throws Exception {
+        try (Firestore firestore = connection()) {
+            String yaml = "_loadcollection:\n  loaddoc5:\n    testInteger: 42\n";
+            loadYaml(firestore, FirestoreUnit.options().withoutWriteThrottling(), yaml);
+
+            assertFirestoreYaml(firestore, yaml);
+        }
+    }
+
+    @Test
+    void testLoadDottedFieldName() throws Exception {
+        try (Firestore firestore = connection()) {
+            String yaml = "_loadcollection:\n" +
+                    "  loaddoc6:\n" +
+                    "    \"a.b\": 1\n" +
+                    "    nested:\n" +
+                    "      \"c.d\": 2\n";
+            loadYaml(firestore, FirestoreUnit.options(), yaml);
+
+            assertFirestoreYaml(firestore, yaml);
+            assertFirestoreYaml(firestore, FirestoreUnit.options().withFieldMaskedReads(), yaml);
+        }
+    }
+
+    @Test
+    void testClearYaml() throws Exception {
+        try (Firestore firestore = connection()) {
+            String yaml = "_clearcollection:\n" +
+                    "  cleardoc1:\n" +
+                    "    testInteger: 1\n" +
+                    "    _subcollection:\n" +
+                    "      cleardoc2:\n" +
+                    "        testInteger: 2\n";
+            loadYaml(firestore, FirestoreUnit.options(), yaml);
+
+            clearYaml(firestore, FirestoreUnit.options().withExportParallelism(4), yaml);
+
+            assertFalse(firestore.document("clearcollection/cleardoc1").get().get().exists());
+            assertFalse(firestore.document("clearcollection/cleardoc1/subcollection/cleardoc2").get().get().exists());
+        }
+    }
+
+    @Test
+    void testClearTree() throws Exception {
+        try (Firestore firestore = connection()) {
+            String yaml = "_cleartreecollection:\n" +
+                    "  cleardoc1:\n" +
+                    "    _subcollection:\n" +
+                    "      cleardoc2:\n" +
+                    "        testInteger: 2\n" +
+                    "  cleardoc3:\n" +
+                    "    testInteger: 3\n";
+            loadYaml(firestore, FirestoreUnit.options(), yaml);
+
+            clearTree(firestore, FirestoreUnit.options(), "cleartreecollection/cleardoc1");
+
+            assertFalse(firestore.document("cleartreecollection/cleardoc1/subcollection/cleardoc2").get().get().exists());
+            assertTrue(firestore.document("cleartreecollection/cleardoc3").get().get().exists());
+        }
+    }
+
+    @Test
+    void testExportProgress() throws Exception {
+        try (Firestore firestore = connection()) {
+            List<String> visited = Collections.synchronizedList(new ArrayList<>());
+            Options options = FirestoreUnit.options()
+                    .withExportParallelism(4)
+                    .withPageSize(1)
+                    .withProgressListener((path, count) -> visited.add(path));
+
+            exportRecursiveJson(firestore, options, "testcollection/testdoc1", new ByteArrayOutputStream());
+
+            assertEquals(2, visited.size());
+            assertTrue(visited.contains("testcollection/testdoc1/subcollection/testdoc2"));
+        }
+    }
+
+    @Test
+    void testExportIncremental() throws Exception {
+        try (Firestore firestore = connection()) {
+            String yaml = "_incrementalcollection:\n" +
+                    "  incrementaldoc1:\n" +
+                    "    testInteger: 1\n" +
+                    "    _subcollection:\n" +
+                    "      incrementaldoc2:\n" +
+                    "        testInteger: 2\n" +
+                    "      incrementaldoc3:\n" +
+                    "        testInteger: 3\n";
+            loadYaml(firestore, FirestoreUnit.options(), yaml);
+
+            File output = Files.createTempFile("incremental", ".json").toFile();
+            File manifest = new File(output.getPath() + ".manifest");
+            output.deleteOnExit();
+            manifest.deleteOnExit();
+            assertTrue(output.delete());
+
+            exportIncrementalJson(firestore, FirestoreUnit.options(), "incrementalcollection/incrementaldoc1", output);
+            assertTrue(manifest.isFile());
+            assertFirestoreJson(firestore, FirestoreUnit.options().withoutReferenceCache(), output);
+
+            firestore.document("incrementalcollection/incrementaldoc1/subcollection/incrementaldoc2").set(Map.of("testInteger", 20)).get();
+            firestore.document("incrementalcollection/incrementaldoc1/subcollection/incrementaldoc3").delete().get();
+            firestore.document("incrementalcollection/incrementaldoc1/othercollection/incrementaldoc4").set(Map.of("testInteger", 4)).get();
+
+            exportIncrementalJson(firestore, FirestoreUnit.options().withExportParallelism(4), "incrementalcollection/incrementaldoc1", output);
+
+            ByteArrayOutputStream complete = new ByteArrayOutputStream();
+            exportRecursiveJson(firestore, FirestoreUnit.options(), "incrementalcollection/incrementaldoc1", complete);
+            ObjectMapper mapper = new ObjectMapper();
+            assertEquals(mapper.readTree(complete.toByteArray()), mapper.readTree(output));
+        }
+    }
+
+    @Test
+    void testDiffUnchanged() throws Exception {
+        try (Firestore firestore = connection()) {
+            File export = Files.createTempFile("diff", ".yaml").toFile();
+            export.deleteOnExit();
+            exportRecursiveYaml(firestore, FirestoreUnit.options(), "testcollection/testdoc1", export);
+
+            assertEquals(List.of(), diff(
+                    FirestoreUnit.options(),
+                    DiffSource.yaml(export),
+                    DiffSource.firestore(firestore, FirestoreUnit.options().withPageSize(1), "testcollection/testdoc1")
+            ));
+        }
+    }
+
+    @Test
+    void testDiffChanged() throws Exception {
+        try (Firestore firestore = connection()) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            exportRecursiveJson(firestore, FirestoreUnit.options(), "testcollection/testdoc1", baos);
+            ObjectNode tree = (ObjectNode) new ObjectMapper().readTree(baos.toByteArray());
+            ObjectNode testdoc1 = (ObjectNode) tree.get("_testcollection").get("testdoc1");
+            testdoc1.put("testText", "Hello other world");
+            ((ObjectNode) testdoc1.get("testMap")).remove("field2");
+            testdoc1.withObject("_subcollection").remove("testdoc2");
+            testdoc1.withObject("_subcollection").putObject("testdoc9").put("testInteger", 9);
+
+            List<Difference> differences = diff(
+                    FirestoreUnit.options(),
+                    DiffSource.firestore(firestore, FirestoreUnit.options(), "testcollection/testdoc1"),
+                    DiffSource.tree(tree)
+            );
+
+            assertEquals(4, differences.size());
+            assertTrue(differences.contains(new Difference(
+                    "testcollection/testdoc1/subcollection/testdoc9", Difference.Kind.DOCUMENT_ADDED,
+                    null, testdoc1.get("_subcollection").get("testdoc9"))));
+            assertTrue(differences.stream().anyMatch(difference ->
+                    difference.kind() == Difference.Kind.DOCUMENT_REMOVED
+                            && difference.path().equals("testcollection/testdoc1/subcollection/testdoc2")));
+            assertTrue(differences.contains(new Difference(
+                    "testcollection/testdoc1/testText", Difference.Kind.FIELD_CHANGED,
+                    TextNode.valueOf("Hello world"), TextNode.valueOf("Hello other world"))));
+            assertTrue(differences.contains(new Difference(
+                    "testcollection/testdoc1/testMap/field2", Difference.Kind.FIELD_REMOVED,
+                    TextNode.valueOf("text"), null)));
+        }
+    }
+
+    @Test
+    void testExportSnapshot() throws Exception {
+        try (Firestore firestore = connection()) {
+            File snapshot = Files.createTempFile("snapshot", ".bin").toFile();
+            File json = Files.createTempFile("snapshot", ".json").toFile();
+            snapshot.deleteOnExit();
+            json.deleteOnExit();
+            exportSnapshot(firestore, FirestoreUnit.options().withPageSize(1), "testcollection/testdoc1", snapshot);
+            exportRecursiveJson(firestore, FirestoreUnit.options(), "testcollection/testdoc1", json);
+
+            assertFirestoreSnapshot(firestore, snapshot);
+            assertFirestoreSnapshot(firestore, FirestoreUnit.options(), snapshot, "testcollection/testdoc1/subcollection/testdoc2");
+            assertEquals(List.of(), diff(FirestoreUnit.options(), DiffSource.json(json), DiffSource.snapshot(snapshot)));
+            assertTrue(snapshot.length() < json.length());
+        }
+    }
+
+    @Test
+    void testFailedSnapshotExportIsIncomplete() throws Exception {
+        try (Firestore firestore = connection()) {
+            File snapshot = Files.createTempFile("snapshot", ".bin").toFile();
+            snapshot.deleteOnExit();
+            Options failing = FirestoreUnit.options().withProgressListener((path, documentsVisited) -> {
+                if (documentsVisited > 1) {
+                    throw new IllegalStateException("Export interrupted at " + path);
+                }
+            });
+
+            assertThrows(IllegalStateException.class,
+                    () -> exportSnapshot(firestore, failing, "testcollection/testdoc1", snapshot));
+            IOException e = assertThrows(IOException.class, () -> SnapshotReader.open(snapshot).close());
+            assertEquals("Snapshot file is incomplete", e.getMessage());
+            assertThrows(AssertionFailedError.class, () -> assertFirestoreSnapshot(firestore, snapshot));
+        }
+    }
+
+    @Test
+    void testSnapshotDocumentMismatch() throws Exception {
+        try (Firestore firestore = connection()) {
+            String yaml = "_snapshotcollection:\n" +
+                    "  snapshotdoc1:\n" +
+                    "    testInteger: 1\n" +
+                    "    _subcollection:\n" +
+                    "      snapshotdoc2:\n" +
+                    "        testInteger: 2\n";
+            loadYaml(firestore, FirestoreUnit.options(), yaml);
+            File snapshot = Files.createTempFile("snapshot", ".bin").toFile();
+            snapshot.deleteOnExit();
+            exportSnapshot(firestore, FirestoreUnit.options(), "snapshotcollection/snapshotdoc1", snapshot);
+
+            firestore.document("snapshotcollection/snapshotdoc1").set(Map.of("testInteger", 10)).get();
+
+            assertFirestoreSnapshot(firestore, FirestoreUnit.options(), snapshot, "snapshotcollection/snapshotdoc1/subcollection/snapshotdoc2");
+            assertThrows(AssertionFailedError.class, () -> assertFirestoreSnapshot(firestore, snapshot));
+        }
+    }
+
+    @Test
+    void testExportSharded() throws Exception {
+        try (Firestore firestore = connection()) {
+            String yaml = "_shardcollection:\n" +
+                    "  sharddoc:\n" +
+                    "    testInteger: 0\n" +
+                    "    _first:\n" +
+                    "      sharddoc1:\n" +
+                    "        testInteger: 1\n" +
+                    "        _subcollection:\n" +
+                    "          sharddoc2:\n" +
+                    "            testInteger: 2\n" +
+                    "    _second:\n" +
+                    "      sharddoc3:\n" +
+                    "        testInteger: 3\n";
+            loadYaml(firestore, FirestoreUnit.options(), yaml);
+            File directory = Files.createTempDirectory("shards").toFile();
+            directory.deleteOnExit();
+
+            exportShardedJson(firestore, FirestoreUnit.options(), "shardcollection/sharddoc", directory);
+            File manifest = new File(directory, "manifest.json");
+            JsonNode manifestNode = new ObjectMapper().readTree(manifest);
+            assertEquals(4, manifestNode.get("documents").asLong());
+            assertEquals(3, manifestNode.get("shards").size());
+            assertFirestoreManifest(firestore, manifest);
+
+            File yamlDirectory = Files.createTempDirectory("shards").toFile();
+            yamlDirectory.deleteOnExit();
+            exportShardedYaml(firestore, FirestoreUnit.options().withShardSize(1).withExportParallelism(4), "shardcollection/sharddoc", yamlDirectory);
+            File yamlManifest = new File(yamlDirectory, "manifest.json");
+            assertEquals(4, new ObjectMapper().readTree(yamlManifest).get("shards").size());
+            assertFirestoreManifest(firestore, FirestoreUnit.options().withExportParallelism(4), yamlManifest);
+
+            firestore.document("shardcollection/sharddoc/first/sharddoc1/subcollection/sharddoc2").set(Map.of("testInteger", 20)).get();
+            AssertionFailedError error = assertThrows(AssertionFailedError.class, () -> assertFirestoreManifest(firestore, manifest));
+            assertTrue(error.getMessage().startsWith("Shard 0001-first.json: "));
+            assertThrows(AssertionFailedError.class, () -> assertFirestoreManifest(firestore, yamlManifest));
+            FirestoreValidationError all = assertThrows(FirestoreValidationError.class,
+                    () -> assertFirestoreManifest(firestore, FirestoreUnit.options().withCollectAllFailures(), manifest));
+            assertEquals(1, all.getResult().getMismatches().size());
+        }
+    }
+
+    @Test
+    void testExportQueryJson() throws Exception {
+        testExport(
+                (firestore, baos) ->
+                        exportQueryJson(firestore, FirestoreUnit.options(),
+                                firestore.collection("testcollection").whereEqualTo("testBoolean", true).select("testText", "testMap"),
+                                baos),
+                FirestoreUnit::assertFirestoreJson
+        );
+    }
+
+    @Test
+    void testExportQueryCollectionGroupYaml() throws Exception {
+        try (Firestore firestore = connection()) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            exportQueryYaml(firestore, FirestoreUnit.options(), firestore.collectionGroup("subcollection").select("testText"), baos);
+
+            String export = baos.toString();
+            assertTrue(export.contains("testdoc2"));
+            assertTrue(export.contains("testdoc4"));
+            assertFalse(export.contains("testInteger"));
+            assertFirestoreYaml(firestore, new ByteArrayInputStream(baos.toByteArray()));
+        }
+    }
+
     private void testExport(BiConsumer<Firestore, OutputStream> exporter, BiConsumer<Firestore, InputStream> asserter) throws Exception {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try (Firestore firestore = connection()) {
@@ -404,6 +1248,63 @@ public class FirestoreUnitTest {
         return new BufferedReader(new InputStreamReader(asInputStream(file)));
     }
 
+    /**
+     * A client which passes all calls on to another client. The calls of the given method are passed to the handler
+     * instead, with their arguments and the call to the other client, e.g. to count them or to let them fail.
+     */
+    private static Firestore intercept(Firestore firestore, String method,
+                                       BiFunction<Object[], Supplier<Object>, Object> handler) {
+        return (Firestore) Proxy.newProxyInstance(Firestore.class.getClassLoader(), new Class<?>[] {Firestore.class},
+                (proxy, called, args) -> {
+                    Supplier<Object> call = () -> {
+                        try {
+                            return called.invoke(firestore, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause() instanceof RuntimeException r ? r : new IllegalStateException(e.getCause());
+                        } catch (IllegalAccessException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    };
+                    return called.getName().equals(method) ? handler.apply(args, call) : call.get();
+                });
+    }
+
+    /**
+     * A failed call, as reported by Firestore
+     */
+    private static <T> ApiFuture<T> failure(Status.Code code) {
+        return ApiFutures.immediateFailedFuture(exception(code));
+    }
+
+    /**
+     * A listing which fails after the given number of items
+     */
+    private static <T> Iterable<T> failingAfter(Iterable<T> items, int count, Status.Code code) {
+        return () -> new Iterator<>() {
+            private final Iterator<T> iterator = items.iterator();
+            private int returned;
+
+            @Override
+            public boolean hasNext() {
+                if (returned >= count) {
+                    throw exception(code);
+                }
+                return iterator.hasNext();
+            }
+
+            @Override
+            public T next() {
+                hasNext();
+                returned++;
+                return iterator.next();
+            }
+        };
+    }
+
+    private static ApiException exception(Status.Code code) {
+        return ApiExceptionFactory.createException(new RuntimeException(code.name()), GrpcStatusCode.of(code), false);
+    }
+
     private static Firestore connection() {
         FirestoreOptions options = FirestoreOptions
                 .newBuilder()
@@ -0,0 +1,117 @@
+package nl.group9.firestore.unit.memory;
+
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.SetOptions;
+import nl.group9.firestore.unit.FirestoreUnit;
+import org.junit.jupiter.api.Test;
+import org.opentest4j.AssertionFailedError;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import static nl.group9.firestore.unit.FirestoreUnit.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InMemoryFirestoreTest {
+
+    @Test
+    void testLoadAndAssert() throws Exception {
+        try (Firestore firestore = InMemoryFirestore.create().connect()) {
+            loadJson(firestore, FirestoreUnit.options(), resource("json/load.json"));
+
+            assertFirestoreJson(firestore, resource("json/load.json"));
+            assertFalse(firestore.document("loadcollection/loaddoc3").get().get().exists());
+            assertEquals("subcollection",
+                    firestore.document("loadcollection/loaddoc3").listCollections().iterator().next().getId());
+        }
+    }
+
+    @Test
+    void testAssertMismatch() throws Exception {
+        try (Firestore firestore = InMemoryFirestore.create().connect()) {
+            firestore.document("collection/doc").set(Map.of("testInteger", 1)).get();
+
+            assertThrows(AssertionFailedError.class,
+                    () -> assertFirestoreYaml(firestore, "_collection:\n  doc:\n    testInteger: 2\n"));
+        }
+    }
+
+    @Test
+    void testExportRoundTrip() throws Exception {
+        InMemoryFirestore inMemory = InMemoryFirestore.create();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (Firestore firestore = inMemory.connect()) {
+            loadJson(firestore, FirestoreUnit.options(), resource("json/load.json"));
+            exportRecursiveJson(firestore, FirestoreUnit.options().withPageSize(1), "loadcollection", baos);
+        }
+
+        // A second client sees the same documents
+        try (Firestore firestore = inMemory.connect()) {
+            assertFirestoreJson(firestore, new ByteArrayInputStream(baos.toByteArray()));
+            assertTrue(baos.toString().contains("loaddoc4"));
+        }
+    }
+
+    @Test
+    void testWritePreconditions() throws Exception {
+        try (Firestore firestore = InMemoryFirestore.create().connect()) {
+            firestore.document("collection/doc").create(Map.of("testInteger", 1)).get();
+            assertThrows(ExecutionException.class,
+                    () -> firestore.document("collection/doc").create(Map.of("testInteger", 2)).get());
+            assertThrows(ExecutionException.class,
+                    () -> firestore.document("collection/missing").update("testInteger", 2).get());
+
+            firestore.document("collection/doc").set(Map.of("testMap", Map.of("field1", 10)), SetOptions.merge()).get();
+            DocumentSnapshot snapshot = firestore.document("collection/doc").get().get();
+            assertEquals(1L, snapshot.getLong("testInteger"));
+            assertEquals(10L, snapshot.getLong("testMap.field1"));
+        }
+    }
+
+    @Test
+    void testQuery() throws Exception {
+        try (Firestore firestore = InMemoryFirestore.create().connect()) {
+            for (int i = 0; i < 5; i++) {
+                firestore.document("collection/doc" + i).set(Map.of("testInteger", i, "testText", "text" + i)).get();
+                firestore.document("collection/doc" + i + "/subcollection/sub").set(Map.of("testInteger", i)).get();
+            }
+
+            Query query = firestore.collection("collection")
+                    .whereGreaterThan("testInteger", 1)
+                    .orderBy("testInteger", Query.Direction.DESCENDING)
+                    .limit(2)
+                    .select("testInteger");
+            List<QueryDocumentSnapshot> documents = query.get().get().getDocuments();
+            assertEquals(List.of("doc4", "doc3"), documents.stream().map(DocumentSnapshot::getId).toList());
+            assertNull(documents.get(0).getString("testText"));
+
+            assertEquals(5, firestore.collectionGroup("subcollection").get().get().size());
+            assertEquals(2L, firestore.collection("collection").whereIn("testInteger", List.of(0, 4))
+                    .count().get().get().getCount());
+        }
+    }
+
+    @Test
+    void testClear() throws Exception {
+        InMemoryFirestore inMemory = InMemoryFirestore.create();
+        try (Firestore firestore = inMemory.connect()) {
+            firestore.document("collection/doc").set(Map.of("testInteger", 1)).get();
+
+            inMemory.clear();
+
+            assertFalse(firestore.document("collection/doc").get().get().exists());
+            assertFalse(firestore.listCollections().iterator().hasNext());
+        }
+    }
+
+    private static InputStream resource(String name) {
+        return InMemoryFirestoreTest.class.getClassLoader().getResourceAsStream(name);
+    }
+}